@@ -0,0 +1,217 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.benchmark;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.qspool.clementineremote.backend.globalsearch.GlobalSearchDatabaseHelper;
+import de.qspool.clementineremote.backend.globalsearch.GlobalSearchQuery;
+import de.qspool.clementineremote.backend.globalsearch.GlobalSearchResultStore;
+import de.qspool.clementineremote.backend.globalsearch.GlobalSearchWriter;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseGlobalSearch;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.SongMetadata;
+
+/**
+ * Measures the time from receiving the results of a global search to the first screen of
+ * the result list, once with the results in memory and once written to a database. The
+ * results are songs of a synthetic library, sent in messages like Clementine does.
+ * <p/>
+ * The global search results of the app are not touched.
+ */
+public class GlobalSearchBenchmark {
+
+    public final static int RESULTS = 5000;
+
+    private final static int RESULTS_PER_MESSAGE = 100;
+
+    private final static String[] PROVIDERS = new String[]{"Library", "Jamendo",
+            "SoundCloud"};
+
+    private final static int SEARCH_ID = 1;
+
+    private final static int REPETITIONS = 5;
+
+    private final static int FIRST_PAGE_ROWS = 50;
+
+    private final static long SEED = 42;
+
+    private Context mContext;
+
+    private File mDirectory;
+
+    private SQLiteDatabase mDatabase;
+
+    private GlobalSearchResultStore mResultStore;
+
+    public GlobalSearchBenchmark(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+    }
+
+    public JSONObject run() throws JSONException {
+        List<ResponseGlobalSearch> messages = generateMessages();
+
+        JSONObject result = new JSONObject();
+        result.put("results", RESULTS);
+        result.put("messages", messages.size());
+
+        long[] memory = new long[REPETITIONS];
+        long[] sqlite = new long[REPETITIONS];
+        File dbFile = new File(mDirectory, "global-search.db");
+        for (int i = 0; i < REPETITIONS; i++) {
+            memory[i] = resultToScreen(messages, true, dbFile);
+            sqlite[i] = resultToScreen(messages, false, dbFile);
+        }
+        result.put("memory", LibraryBenchmark.timing(memory));
+        result.put("sqlite", LibraryBenchmark.timing(sqlite));
+        return result;
+    }
+
+    /**
+     * Ingest all messages, then query the first level and read its first screen
+     *
+     * @param inMemory true to keep the results in memory, false to write them to a database
+     * @return The time in milliseconds
+     */
+    private long resultToScreen(List<ResponseGlobalSearch> messages, boolean inMemory,
+            File dbFile) {
+        dbFile.delete();
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        new GlobalSearchDatabaseHelper(mContext).onCreate(mDatabase);
+        mResultStore = new GlobalSearchResultStore();
+
+        try {
+            long start = SystemClock.elapsedRealtime();
+            if (inMemory) {
+                for (ResponseGlobalSearch message : messages) {
+                    mResultStore.add(message);
+                }
+            } else {
+                SQLiteStatement insert = mDatabase.compileStatement(GlobalSearchWriter.INSERT);
+                mDatabase.beginTransaction();
+                try {
+                    for (ResponseGlobalSearch message : messages) {
+                        GlobalSearchWriter.insert(insert, message);
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                    insert.close();
+                }
+            }
+
+            GlobalSearchQuery query = new BenchmarkQuery();
+            query.openDatabase();
+            query.setLevel(0);
+            Cursor c = query.buildQuery();
+            for (int row = 0; row < Math.min(c.getCount(), FIRST_PAGE_ROWS); row++) {
+                c.moveToPosition(row);
+                query.fillSongSelectItem(c);
+            }
+            c.close();
+            return SystemClock.elapsedRealtime() - start;
+        } finally {
+            mDatabase.close();
+            mDatabase = null;
+        }
+    }
+
+    /**
+     * Read the songs of a synthetic library into result messages of the providers
+     */
+    private List<ResponseGlobalSearch> generateMessages() {
+        File libraryFile = new File(mDirectory, "global-search-source.db");
+        new SyntheticLibraryGenerator(SEED).generate(libraryFile, RESULTS);
+
+        List<ResponseGlobalSearch> messages = new ArrayList<>();
+        SQLiteDatabase library = SQLiteDatabase.openDatabase(libraryFile.getAbsolutePath(),
+                null, SQLiteDatabase.OPEN_READONLY);
+        Cursor c = library.rawQuery("SELECT title, album, artist, albumartist, track, year,"
+                + " genre, filename FROM songs", null);
+        try {
+            ResponseGlobalSearch.Builder message = null;
+            while (c.moveToNext()) {
+                if (message == null) {
+                    message = ResponseGlobalSearch.newBuilder()
+                            .setId(SEARCH_ID)
+                            .setQuery("benchmark")
+                            .setSearchProvider(PROVIDERS[messages.size() % PROVIDERS.length]);
+                }
+
+                message.addSongMetadata(SongMetadata.newBuilder()
+                        .setTitle(c.getString(0))
+                        .setAlbum(c.getString(1))
+                        .setArtist(c.getString(2))
+                        .setAlbumartist(c.getString(3))
+                        .setTrack(c.getInt(4))
+                        .setDisc(1)
+                        .setPrettyYear(c.getString(5))
+                        .setGenre(c.getString(6))
+                        .setPrettyLength("3:30")
+                        .setUrl(c.getString(7))
+                        .setIsLocal(true)
+                        .setFileSize(5000000)
+                        .setRating(0));
+
+                if (message.getSongMetadataCount() == RESULTS_PER_MESSAGE) {
+                    messages.add(message.build());
+                    message = null;
+                }
+            }
+            if (message != null) {
+                messages.add(message.build());
+            }
+        } finally {
+            c.close();
+            library.close();
+            libraryFile.delete();
+        }
+        return messages;
+    }
+
+    /**
+     * A global search query on the benchmark database and result store
+     */
+    private class BenchmarkQuery extends GlobalSearchQuery {
+
+        public BenchmarkQuery() {
+            super(mContext, SEARCH_ID);
+        }
+
+        @Override
+        protected GlobalSearchResultStore getResultStore() {
+            return mResultStore;
+        }
+
+        @Override
+        public SQLiteDatabase getReadableDatabase() {
+            return mDatabase;
+        }
+    }
+}
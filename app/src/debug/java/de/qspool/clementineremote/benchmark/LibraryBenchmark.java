@@ -0,0 +1,493 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.benchmark;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import de.qspool.clementineremote.R;
+import de.qspool.clementineremote.backend.library.BrowseIndex;
+import de.qspool.clementineremote.backend.library.FuzzySearch;
+import de.qspool.clementineremote.backend.library.LibraryDatabaseHelper;
+import de.qspool.clementineremote.backend.library.LibraryQuery;
+
+/**
+ * Measures how the library scales with its size. For each size a synthetic library is
+ * generated and optimized, then every grouping is browsed from the first level down to
+ * the songs and the library is searched. Browsing is measured with sql and with the
+ * browse index. The fts4 layout of the search is compared with the fts3 layout older
+ * versions created. The results are written as json report, together with the global
+ * search results of GlobalSearchBenchmark.
+ * <p/>
+ * The generated libraries are separate files, the library of the connected Clementine
+ * and the query cache are not touched.
+ */
+public class LibraryBenchmark {
+
+    private final static String TAG = "LibraryBenchmark";
+
+    public final static int[] DEFAULT_SIZES = new int[]{10000, 100000, 500000};
+
+    // Each measurement is repeated. The library was just written, so even the first run
+    // finds it in the page cache
+    private final static int REPETITIONS = 5;
+
+    // Rows read from each level, like a full screen of the list
+    private final static int FIRST_PAGE_ROWS = 50;
+
+    private final static int SEARCH_QUERIES = 20;
+
+    private final static long SEED = 42;
+
+    // The search of older versions read the songs from the fts3 copy
+    private final static String FTS3_SEARCH = "SELECT * FROM "
+            + LibraryDatabaseHelper.SONGS_FTS + " WHERE " + LibraryDatabaseHelper.SONGS_FTS
+            + " MATCH ?";
+
+    // The fts4 table only has the docids, the songs are read from the songs table
+    private final static String FTS4_SEARCH = "SELECT ROWID AS ROWID, * FROM "
+            + LibraryDatabaseHelper.SONGS + " WHERE ROWID IN (SELECT docid FROM "
+            + LibraryDatabaseHelper.SONGS_FTS + " WHERE " + LibraryDatabaseHelper.SONGS_FTS
+            + " MATCH ?)";
+
+    public interface OnBenchmarkProgressListener {
+        void OnBenchmarkProgress(String message);
+    }
+
+    private Context mContext;
+
+    private File mDirectory;
+
+    private OnBenchmarkProgressListener mListener;
+
+    private SQLiteDatabase mDatabase;
+
+    // Browse index of the generated library, null to browse with sql
+    private BrowseIndex mBrowseIndex;
+
+    // Fields of the grouping the next query is created with
+    private String[] mGroupingFields;
+
+    public LibraryBenchmark(Context context, File directory,
+            OnBenchmarkProgressListener listener) {
+        mContext = context;
+        mDirectory = directory;
+        mListener = listener;
+    }
+
+    /**
+     * Run the benchmark for all sizes and write the report
+     *
+     * @param sizes The numbers of songs of the generated libraries
+     * @return The report file
+     */
+    public File run(int[] sizes) throws IOException, JSONException {
+        mDirectory.mkdirs();
+
+        JSONObject report = new JSONObject();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        report.put("sdk", Build.VERSION.SDK_INT);
+        SQLiteDatabase memory = SQLiteDatabase.create(null);
+        report.put("sqlite_version", DatabaseUtils.stringForQuery(memory,
+                "SELECT sqlite_version()", null));
+        memory.close();
+        report.put("repetitions", REPETITIONS);
+
+        JSONArray libraries = new JSONArray();
+        for (int rows : sizes) {
+            libraries.put(runLibrary(rows));
+        }
+        report.put("libraries", libraries);
+
+        progress("Measuring global search results");
+        report.put("global_search", new GlobalSearchBenchmark(mContext, mDirectory).run());
+
+        File reportFile = new File(mDirectory, "library-benchmark-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + ".json");
+        FileWriter writer = new FileWriter(reportFile);
+        try {
+            writer.write(report.toString(2));
+        } finally {
+            writer.close();
+        }
+
+        Log.i(TAG, "Report written to " + reportFile.getAbsolutePath());
+        return reportFile;
+    }
+
+    private JSONObject runLibrary(int rows) throws IOException, JSONException {
+        JSONObject result = new JSONObject();
+        result.put("rows", rows);
+
+        File dbFile = new File(mDirectory, "library-" + rows + ".db");
+        SyntheticLibraryGenerator generator = new SyntheticLibraryGenerator(SEED);
+
+        progress("Generating " + rows + " songs");
+        long start = SystemClock.elapsedRealtime();
+        generator.generate(dbFile, rows);
+        result.put("generate_ms", SystemClock.elapsedRealtime() - start);
+        result.put("generated_bytes", dbFile.length());
+
+        progress("Optimizing " + rows + " songs");
+        start = SystemClock.elapsedRealtime();
+        new LibraryDatabaseHelper().optimizeTable(dbFile, null);
+        result.put("optimize_ms", SystemClock.elapsedRealtime() - start);
+        result.put("optimized_bytes", dbFile.length());
+
+        mDatabase = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        mDatabase.enableWriteAheadLogging();
+        try {
+            String[] groupingNames = mContext.getResources()
+                    .getStringArray(R.array.pref_library_grouping_values);
+            String[][] groupingFields = new String[groupingNames.length][];
+            for (int i = 0; i < groupingNames.length; i++) {
+                groupingFields[i] = LibraryQuery.getGroupingFields(groupingNames[i]);
+            }
+
+            result.put("groupings", browseAll(rows, groupingNames, groupingFields));
+
+            progress("Building browse index of " + rows + " songs");
+            File indexFile = new File(mDirectory, "library-" + rows + ".browse");
+            start = SystemClock.elapsedRealtime();
+            BrowseIndex.build(mDatabase, indexFile, groupingFields);
+            result.put("browse_index_ms", SystemClock.elapsedRealtime() - start);
+            result.put("browse_index_bytes", indexFile.length());
+
+            mBrowseIndex = BrowseIndex.open(indexFile);
+            try {
+                result.put("groupings_index", browseAll(rows, groupingNames, groupingFields));
+            } finally {
+                mBrowseIndex = null;
+            }
+
+            String[] words = new String[SEARCH_QUERIES];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = generator.word().toLowerCase(Locale.US);
+            }
+
+            progress("Searching " + rows + " songs");
+            result.put("search", search(words));
+
+            progress("Comparing fts layouts of " + rows + " songs");
+            JSONObject layouts = new JSONObject();
+            JSONObject fts4 = new JSONObject();
+            fts4.put("optimize_ms", result.get("optimize_ms"));
+            fts4.put("bytes", result.get("optimized_bytes"));
+            fts4.put("search", timeLayoutSearch(mDatabase, FTS4_SEARCH, words));
+            layouts.put("fts4", fts4);
+            layouts.put("fts3", runFts3Layout(rows, words));
+            result.put("fts_layout", layouts);
+        } finally {
+            mDatabase.close();
+            mDatabase = null;
+        }
+
+        return result;
+    }
+
+    /**
+     * Build the fts3 layout of older versions on the same library: a full copy of all
+     * columns of the songs in the fts table. The other steps of optimizeTable() are run as
+     * well, so only the fts layout differs.
+     */
+    private JSONObject runFts3Layout(int rows, String[] words) throws JSONException {
+        File dbFile = new File(mDirectory, "library-" + rows + "-fts3.db");
+        new SyntheticLibraryGenerator(SEED).generate(dbFile, rows);
+
+        JSONObject result = new JSONObject();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            // The same settings optimizeTable() writes with
+            Cursor c = db.rawQuery("PRAGMA journal_mode = OFF", null);
+            c.moveToFirst();
+            c.close();
+            db.execSQL("PRAGMA synchronous = OFF");
+            db.execSQL("PRAGMA temp_store = MEMORY");
+            db.execSQL("PRAGMA cache_size = -16384");
+
+            long start = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                db.execSQL("DELETE from SONGS where unavailable <> 0");
+                db.execSQL("CREATE VIRTUAL TABLE " + LibraryDatabaseHelper.SONGS_FTS
+                        + " USING fts3(" + getColumns(db) + ");");
+                db.execSQL("INSERT INTO " + LibraryDatabaseHelper.SONGS_FTS
+                        + " SELECT * FROM songs");
+                db.execSQL("CREATE INDEX " + LibraryDatabaseHelper.SONGS_ARTIST
+                        + " ON songs (artist);");
+                db.execSQL("CREATE INDEX " + LibraryDatabaseHelper.SONGS_ALBUM
+                        + " ON songs (artist, album);");
+                db.execSQL("CREATE INDEX " + LibraryDatabaseHelper.SONGS_TITLE
+                        + " ON songs (artist, album, title);");
+                FuzzySearch.buildIndex(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            result.put("optimize_ms", SystemClock.elapsedRealtime() - start);
+            result.put("bytes", dbFile.length());
+
+            result.put("search", timeLayoutSearch(db, FTS3_SEARCH, words));
+        } finally {
+            db.close();
+            dbFile.delete();
+        }
+        return result;
+    }
+
+    /**
+     * Run the prefix search of the app directly on the fts table of a layout and read
+     * all matching songs
+     */
+    private JSONObject timeLayoutSearch(SQLiteDatabase db, String sql, String[] words)
+            throws JSONException {
+        long[] samples = new long[words.length * REPETITIONS];
+        long results = 0;
+        for (int i = 0; i < samples.length; i++) {
+            String word = words[i % words.length];
+            String prefix = word.substring(0, Math.min(3, word.length())) + "*";
+
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = db.rawQuery(sql, new String[]{prefix});
+            while (c.moveToNext()) {
+                results++;
+            }
+            c.close();
+            samples[i] = SystemClock.elapsedRealtime() - start;
+        }
+
+        JSONObject result = timing(samples);
+        result.put("avg_results", (float) results / samples.length);
+        return result;
+    }
+
+    private String getColumns(SQLiteDatabase db) {
+        StringBuilder sb = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA table_info(songs);", null);
+        try {
+            while (c.moveToNext()) {
+                if (sb.length() != 0) {
+                    sb.append(", ");
+                }
+                sb.append(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    private JSONObject browseAll(int rows, String[] groupingNames, String[][] groupingFields)
+            throws JSONException {
+        JSONObject groupings = new JSONObject();
+        for (int i = 0; i < groupingNames.length; i++) {
+            progress("Browsing " + rows + " songs by " + groupingNames[i]
+                    + (mBrowseIndex == null ? "" : " with index"));
+            groupings.put(groupingNames[i], browse(groupingFields[i]));
+        }
+        return groupings;
+    }
+
+    /**
+     * Open the first level, then go down to the songs through the middle item of each level
+     */
+    private JSONArray browse(String[] fields) throws JSONException {
+        JSONArray levels = new JSONArray();
+        String[] selection = new String[]{};
+
+        for (int level = 0; level < fields.length; level++) {
+            long[] samples = new long[REPETITIONS];
+            int count = 0;
+            String[] next = null;
+
+            for (int i = 0; i < REPETITIONS; i++) {
+                LibraryQuery query = createQuery(fields);
+                query.setLevel(level);
+                query.setSelection(selection);
+
+                long start = SystemClock.elapsedRealtime();
+                Cursor c = query.buildQuery();
+                count = c.getCount();
+                for (int row = 0; row < Math.min(count, FIRST_PAGE_ROWS); row++) {
+                    c.moveToPosition(row);
+                    query.fillSongSelectItem(c);
+                }
+                samples[i] = SystemClock.elapsedRealtime() - start;
+
+                if (count > 0) {
+                    c.moveToPosition(count / 2);
+                    next = query.fillSongSelectItem(c).getSelection();
+                }
+                c.close();
+            }
+
+            JSONObject result = timing(samples);
+            result.put("level", fields[level]);
+            result.put("items", count);
+            levels.put(result);
+
+            if (next == null) {
+                break;
+            }
+            selection = next;
+        }
+
+        return levels;
+    }
+
+    /**
+     * Search for prefixes, whole words and misspelled words. A misspelled word only
+     * finds songs through the fuzzy search.
+     */
+    private JSONObject search(String[] words) throws JSONException {
+        LibraryQuery query = createQuery(LibraryQuery.getGroupingFields("artist-album"));
+
+        String[] prefixes = new String[words.length];
+        String[] typos = new String[words.length];
+        for (int i = 0; i < words.length; i++) {
+            prefixes[i] = words[i].substring(0, Math.min(3, words[i].length()));
+            typos[i] = misspell(words[i]);
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("prefix", timeSearch(query, prefixes));
+        result.put("word", timeSearch(query, words));
+        result.put("typo", timeSearch(query, typos));
+        return result;
+    }
+
+    private JSONObject timeSearch(LibraryQuery query, String[] queries) throws JSONException {
+        long[] samples = new long[queries.length * REPETITIONS];
+        long results = 0;
+        for (int i = 0; i < samples.length; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor c = query.buildMatchQuery(queries[i % queries.length]);
+            if (c != null) {
+                results += c.getCount();
+                c.close();
+            }
+            samples[i] = SystemClock.elapsedRealtime() - start;
+        }
+
+        JSONObject result = timing(samples);
+        result.put("avg_results", (float) results / samples.length);
+        return result;
+    }
+
+    /**
+     * Swap two letters in the middle of the word
+     */
+    private static String misspell(String word) {
+        if (word.length() < 4) {
+            return word + word.charAt(word.length() - 1);
+        }
+        int i = word.length() / 2;
+        return word.substring(0, i - 1) + word.charAt(i) + word.charAt(i - 1)
+                + word.substring(i + 1);
+    }
+
+    static JSONObject timing(long[] samples) throws JSONException {
+        long[] sorted = Arrays.copyOf(samples, samples.length);
+        Arrays.sort(sorted);
+
+        JSONArray values = new JSONArray();
+        for (long sample : samples) {
+            values.put(sample);
+        }
+
+        JSONObject result = new JSONObject();
+        // The first run. The page cache is warm, the library was just written
+        result.put("first_ms", samples[0]);
+        result.put("p50_ms", percentile(sorted, 50));
+        result.put("p99_ms", percentile(sorted, 99));
+        result.put("samples_ms", values);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private LibraryQuery createQuery(String[] fields) {
+        mGroupingFields = fields;
+        LibraryQuery query = new BenchmarkQuery();
+        query.openDatabase();
+        return query;
+    }
+
+    private void progress(String message) {
+        Log.d(TAG, message);
+        if (mListener != null) {
+            mListener.OnBenchmarkProgress(message);
+        }
+    }
+
+    /**
+     * A library query on the generated library. The fields are taken from the benchmark,
+     * because the query reads them in its constructor. The result cache is shared with the
+     * real library, so it is not used.
+     */
+    private class BenchmarkQuery extends LibraryQuery {
+
+        public BenchmarkQuery() {
+            super(mContext);
+        }
+
+        @Override
+        protected String[] getSelectedFields() {
+            return mGroupingFields;
+        }
+
+        @Override
+        protected boolean isCacheable() {
+            return false;
+        }
+
+        @Override
+        protected BrowseIndex getBrowseIndex() {
+            return mBrowseIndex;
+        }
+
+        @Override
+        public SQLiteDatabase getReadableDatabase() {
+            return mDatabase;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.benchmark;
+
+import android.app.Activity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import java.io.File;
+
+/**
+ * Runs the library benchmark and shows its progress. Only part of debug builds.
+ */
+public class LibraryBenchmarkActivity extends Activity {
+
+    private final static String TAG = "LibraryBenchmark";
+
+    public final static String EXTRA_SIZES = "sizes";
+
+    private TextView mStatus;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        mStatus = new TextView(this);
+        setContentView(mStatus);
+
+        // The big libraries take minutes
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+
+        int[] sizes = getIntent().getIntArrayExtra(EXTRA_SIZES);
+        if (sizes == null) {
+            sizes = LibraryBenchmark.DEFAULT_SIZES;
+        }
+
+        if (savedInstanceState == null) {
+            new BenchmarkTask().execute(sizes);
+        }
+    }
+
+    private class BenchmarkTask extends AsyncTask<int[], String, String> {
+
+        @Override
+        protected String doInBackground(int[]... params) {
+            LibraryBenchmark benchmark = new LibraryBenchmark(getApplicationContext(),
+                    new File(getExternalFilesDir(null), "benchmark"),
+                    new LibraryBenchmark.OnBenchmarkProgressListener() {
+                        @Override
+                        public void OnBenchmarkProgress(String message) {
+                            publishProgress(message);
+                        }
+                    });
+
+            try {
+                return "Report written to " + benchmark.run(params[0]).getAbsolutePath();
+            } catch (Exception e) {
+                Log.e(TAG, "Benchmark failed", e);
+                return "Benchmark failed: " + e.getMessage();
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(String... values) {
+            mStatus.setText(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            mStatus.setText(result);
+        }
+    }
+}
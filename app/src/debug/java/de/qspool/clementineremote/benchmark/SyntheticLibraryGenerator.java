@@ -0,0 +1,210 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.benchmark;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates library.db files with the songs table of Clementine, filled with random songs.
+ * <p/>
+ * Songs per artist and the words of the names follow a zipf distribution, so a few
+ * artists have many albums and most artists only one, like in a real library. Albums
+ * have 8 to 16 tracks, some albums are compilations of various artists. The same seed
+ * always generates the same library.
+ */
+public class SyntheticLibraryGenerator {
+
+    private final static String CREATE_SONGS = "CREATE TABLE songs ("
+            + "title TEXT NOT NULL, album TEXT NOT NULL, artist TEXT NOT NULL,"
+            + " albumartist TEXT NOT NULL, composer TEXT NOT NULL, track INTEGER NOT NULL,"
+            + " disc INTEGER NOT NULL, bpm REAL NOT NULL, year INTEGER NOT NULL,"
+            + " genre TEXT NOT NULL, comment TEXT NOT NULL, compilation INTEGER NOT NULL,"
+            + " length INTEGER NOT NULL, bitrate INTEGER NOT NULL, samplerate INTEGER NOT NULL,"
+            + " directory INTEGER NOT NULL, filename TEXT NOT NULL, mtime INTEGER NOT NULL,"
+            + " ctime INTEGER NOT NULL, filesize INTEGER NOT NULL,"
+            + " sampler INTEGER NOT NULL DEFAULT 0, art_automatic TEXT, art_manual TEXT,"
+            + " filetype INTEGER NOT NULL DEFAULT 0, playcount INTEGER NOT NULL DEFAULT 0,"
+            + " lastplayed INTEGER, rating INTEGER,"
+            + " forced_compilation_on INTEGER NOT NULL DEFAULT 0,"
+            + " forced_compilation_off INTEGER NOT NULL DEFAULT 0,"
+            + " effective_compilation NOT NULL DEFAULT 0,"
+            + " skipcount INTEGER NOT NULL DEFAULT 0, score INTEGER NOT NULL DEFAULT 0,"
+            + " beginning INTEGER NOT NULL DEFAULT 0, cue_path TEXT,"
+            + " unavailable INTEGER DEFAULT 0, effective_albumartist TEXT, etag TEXT,"
+            + " performer TEXT, grouping TEXT, lyrics TEXT, originalyear INTEGER,"
+            + " effective_originalyear INTEGER)";
+
+    private final static String INSERT_SONG = "INSERT INTO songs (title, album, artist,"
+            + " albumartist, composer, track, disc, bpm, year, genre, comment, compilation,"
+            + " length, bitrate, samplerate, directory, filename, mtime, ctime, filesize,"
+            + " unavailable, effective_albumartist, performer, grouping, lyrics)"
+            + " VALUES (?, ?, ?, ?, '', ?, 1, 0, ?, ?, '', ?, ?, 320, 44100, 1, ?, ?, ?, ?,"
+            + " ?, ?, '', '', '')";
+
+    private final static String[] GENRES = new String[]{"Rock", "Pop", "Jazz", "Classical",
+            "Electronic", "Hip-Hop", "Metal", "Folk", "Blues", "Soul", "Reggae", "Punk",
+            "Country", "Ambient", "Indie", "Funk", "Latin", "Soundtrack", "House", "Techno"};
+
+    private final static String[] SYLLABLES = new String[]{"ka", "lo", "mi", "ra", "ten",
+            "sun", "dor", "bel", "vi", "an", "tho", "mar", "zel", "qu", "is", "fen", "go",
+            "rin", "sha", "el", "por", "nu", "dra", "ex", "yo", "lin", "cre", "wa", "hol", "sti"};
+
+    private final static int VOCABULARY_SIZE = 5000;
+
+    // Share of albums that are compilations of several artists
+    private final static float COMPILATION_RATE = 0.05f;
+
+    // Share of songs that are unavailable and removed by optimizeTable()
+    private final static float UNAVAILABLE_RATE = 0.01f;
+
+    private final static double ZIPF_EXPONENT = 1.07;
+
+    private Random mRandom;
+
+    private String[] mVocabulary;
+
+    private double[] mWordWeights;
+
+    public SyntheticLibraryGenerator(long seed) {
+        mRandom = new Random(seed);
+
+        mVocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < mVocabulary.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 1 + mRandom.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                word.append(SYLLABLES[mRandom.nextInt(SYLLABLES.length)]);
+            }
+            word.setCharAt(0, Character.toUpperCase(word.charAt(0)));
+            mVocabulary[i] = word.toString();
+        }
+        mWordWeights = zipfWeights(VOCABULARY_SIZE);
+    }
+
+    /**
+     * Generate a library. An existing file is replaced.
+     *
+     * @param dbFile The file to write
+     * @param rows   The number of songs
+     */
+    public void generate(File dbFile, int rows) {
+        dbFile.delete();
+
+        // About 12 songs per album and 4 albums per artist on average
+        int artistCount = Math.max(10, rows / 50);
+        String[] artists = new String[artistCount];
+        String[] artistGenres = new String[artistCount];
+        for (int i = 0; i < artistCount; i++) {
+            artists[i] = name(1 + mRandom.nextInt(2)) + (i % 7 == 0 ? " Band" : "");
+            artistGenres[i] = GENRES[mRandom.nextInt(GENRES.length)];
+        }
+        double[] artistWeights = zipfWeights(artistCount);
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        try {
+            db.execSQL(CREATE_SONGS);
+
+            db.beginTransaction();
+            SQLiteStatement insert = db.compileStatement(INSERT_SONG);
+            try {
+                int song = 0;
+                long now = System.currentTimeMillis() / 1000;
+                while (song < rows) {
+                    boolean compilation = mRandom.nextFloat() < COMPILATION_RATE;
+                    int albumArtist = sample(artistWeights);
+                    String albumArtistName = compilation ? "Various Artists"
+                            : artists[albumArtist];
+                    String album = name(1 + mRandom.nextInt(3));
+                    int year = 1960 + mRandom.nextInt(60);
+                    int tracks = Math.min(8 + mRandom.nextInt(9), rows - song);
+
+                    for (int track = 1; track <= tracks; track++, song++) {
+                        int artist = compilation ? sample(artistWeights) : albumArtist;
+                        String path = "file:///music/" + albumArtistName + "/" + album + "/"
+                                + track + ".mp3";
+
+                        insert.bindString(1, name(1 + mRandom.nextInt(4)));
+                        insert.bindString(2, album);
+                        insert.bindString(3, artists[artist]);
+                        insert.bindString(4, compilation ? albumArtistName : "");
+                        insert.bindLong(5, track);
+                        insert.bindLong(6, year);
+                        insert.bindString(7, artistGenres[artist]);
+                        insert.bindLong(8, compilation ? 1 : 0);
+                        insert.bindLong(9, (120 + mRandom.nextInt(300)) * 1000000000L);
+                        insert.bindString(10, path);
+                        insert.bindLong(11, now - mRandom.nextInt(100000000));
+                        insert.bindLong(12, now);
+                        insert.bindLong(13, 3000000 + mRandom.nextInt(10000000));
+                        insert.bindLong(14, mRandom.nextFloat() < UNAVAILABLE_RATE ? 1 : 0);
+                        insert.bindString(15, albumArtistName);
+                        insert.executeInsert();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                insert.close();
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Get a random word of the generated vocabulary. Common words are more likely.
+     */
+    public String word() {
+        return mVocabulary[sample(mWordWeights)];
+    }
+
+    private String name(int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(word());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The cumulative weights of a zipf distribution over n items
+     */
+    private static double[] zipfWeights(int n) {
+        double[] weights = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            weights[i] = sum;
+        }
+        return weights;
+    }
+
+    private int sample(double[] cumulativeWeights) {
+        double value = mRandom.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+        int index = Arrays.binarySearch(cumulativeWeights, value);
+        return index >= 0 ? index : Math.min(-index - 1, cumulativeWeights.length - 1);
+    }
+}
@@ -35,6 +35,8 @@ public class SharedPreferencesKeys {
 
     public final static String SP_LASTFM = "pref_show_lastfm";
 
+    public final static String SP_PREFETCH_LYRICS = "pref_prefetch_lyrics";
+
     public final static String SP_KEEP_SCREEN_ON = "pref_keep_screen_on";
 
     public final static String SP_WAKE_LOCK = "pref_wake_lock";
@@ -49,6 +51,10 @@ public class SharedPreferencesKeys {
 
     public final static String SP_LIBRARY_SORTING = "pref_library_sorting";
 
+    public final static String SP_LIBRARY_INCREMENTAL_SYNC = "pref_library_incremental_sync";
+
+    public final static String SP_LIBRARY_CACHE_SIZE = "pref_library_cache_size";
+
     public final static String SP_WIFI_ONLY = "pref_dl_wifi_only";
 
     public final static String SP_DOWNLOAD_DIR = "pref_dl_dir";
@@ -67,5 +73,7 @@ public class SharedPreferencesKeys {
 
     public final static String SP_LIBRARY_IP = "library_ip";
 
+    public final static String SP_LIBRARY_NEEDS_REPAIR = "library_needs_repair";
+
     public final static String SP_KNOWN_IP = "known_ips";
 }
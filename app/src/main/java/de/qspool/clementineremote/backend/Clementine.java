@@ -17,12 +17,17 @@
 
 package de.qspool.clementineremote.backend;
 
+import de.qspool.clementineremote.backend.player.LyricsCache;
 import de.qspool.clementineremote.backend.player.MySong;
+import de.qspool.clementineremote.backend.player.PlaybackClock;
 import de.qspool.clementineremote.backend.player.PlaylistManager;
 
 /**
  * This Class stores the attributes of Clementine, like the version,
  * the current player state, current song, etc.
+ * <p/>
+ * The player state is stored in an immutable {@link PlayerState} snapshot. The setters
+ * atomically replace the snapshot, so other threads never see a partly updated state.
  */
 public class Clementine {
 
@@ -38,37 +43,64 @@ public class Clementine {
 
     public final static String DefaultVolumeInc = "10";
 
-    private String mHostname;
+    private volatile String mHostname;
 
-    private String mVersion;
+    private volatile String mVersion;
 
-    private MySong mCurrentSong;
+    private volatile PlayerState mPlayerState = new PlayerState();
 
-    private int mVolume;
-
-    private State mState;
-
-    private RepeatMode mRepeatMode = RepeatMode.OFF;
-
-    private ShuffleMode mShuffleMode = ShuffleMode.OFF;
-
-    private int mSongPosition;
+    private PlaybackClock mPlaybackClock = new PlaybackClock();
 
     private PlaylistManager mPlaylistManager = new PlaylistManager();
 
+    private LyricsCache mLyricsCache = new LyricsCache();
+
+    /**
+     * Get the position of the current track. It is extrapolated from the last position
+     * Clementine sent, so it changes while the track is playing.
+     *
+     * @return The position in seconds
+     */
     public int getSongPosition() {
-        return mSongPosition;
+        int position = mPlaybackClock.getPosition();
+        MySong currentSong = mPlayerState.getCurrentSong();
+        if (currentSong != null && currentSong.getLength() > 0
+                && position > currentSong.getLength()) {
+            position = currentSong.getLength();
+        }
+        return position;
     }
 
     public void setSongPosition(int songPosition) {
-        this.mSongPosition = songPosition;
+        mPlaybackClock.setPosition(songPosition);
+    }
+
+    /**
+     * Correct the track position with the position Clementine sent
+     *
+     * @param songPosition The position in seconds
+     * @return true if the local position drifted and was corrected
+     */
+    public boolean syncSongPosition(int songPosition) {
+        return mPlaybackClock.sync(songPosition);
+    }
+
+    public PlaybackClock getPlaybackClock() {
+        return mPlaybackClock;
     }
 
     public Clementine() {
         mVersion = "";
-        mCurrentSong = null;
-        mVolume = 100;
-        mState = State.STOP;
+    }
+
+    /**
+     * Get the current snapshot of the player state. Use
+     * {@link PlayerState#getChangesSince(long)} to check what changed since an older one.
+     *
+     * @return The current player state
+     */
+    public PlayerState getPlayerState() {
+        return mPlayerState;
     }
 
     public String getVersion() {
@@ -80,83 +112,96 @@ public class Clementine {
     }
 
     public MySong getCurrentSong() {
-        return mCurrentSong;
+        return mPlayerState.getCurrentSong();
     }
 
-    public void setCurrentSong(MySong currentSong) {
-        this.mCurrentSong = currentSong;
+    public synchronized void setCurrentSong(MySong currentSong) {
+        mPlayerState = mPlayerState.withCurrentSong(currentSong);
     }
 
     public int getVolume() {
-        return mVolume;
+        return mPlayerState.getVolume();
     }
 
-    public void setVolume(int volume) {
-        this.mVolume = volume;
+    public synchronized void setVolume(int volume) {
+        mPlayerState = mPlayerState.withVolume(volume);
     }
 
     public State getState() {
-        return mState;
+        return mPlayerState.getState();
     }
 
-    public void setState(State state) {
-        this.mState = state;
+    public synchronized void setState(State state) {
+        mPlayerState = mPlayerState.withState(state);
+
+        if (state == State.STOP) {
+            mPlaybackClock.setPosition(0);
+        }
+        mPlaybackClock.setRunning(state == State.PLAY);
     }
 
     public RepeatMode getRepeatMode() {
-        return mRepeatMode;
+        return mPlayerState.getRepeatMode();
     }
 
-    public void setRepeatMode(RepeatMode mRepeatMode) {
-        this.mRepeatMode = mRepeatMode;
+    public synchronized void setRepeatMode(RepeatMode repeatMode) {
+        mPlayerState = mPlayerState.withRepeatMode(repeatMode);
     }
 
-    public void nextRepeatMode() {
-        switch (mRepeatMode) {
+    public synchronized void nextRepeatMode() {
+        RepeatMode repeatMode = RepeatMode.OFF;
+        switch (mPlayerState.getRepeatMode()) {
             case OFF:
-                mRepeatMode = RepeatMode.TRACK;
+                repeatMode = RepeatMode.TRACK;
                 break;
             case TRACK:
-                mRepeatMode = RepeatMode.ALBUM;
+                repeatMode = RepeatMode.ALBUM;
                 break;
             case ALBUM:
-                mRepeatMode = RepeatMode.PLAYLIST;
+                repeatMode = RepeatMode.PLAYLIST;
                 break;
             case PLAYLIST:
-                mRepeatMode = RepeatMode.OFF;
+                repeatMode = RepeatMode.OFF;
                 break;
         }
+        setRepeatMode(repeatMode);
     }
 
     public ShuffleMode getShuffleMode() {
-        return mShuffleMode;
+        return mPlayerState.getShuffleMode();
     }
 
-    public void setShuffleMode(ShuffleMode mShuffleMode) {
-        this.mShuffleMode = mShuffleMode;
+    public synchronized void setShuffleMode(ShuffleMode shuffleMode) {
+        mPlayerState = mPlayerState.withShuffleMode(shuffleMode);
     }
 
-    public void nextShuffleMode() {
-        switch (mShuffleMode) {
+    public synchronized void nextShuffleMode() {
+        ShuffleMode shuffleMode = ShuffleMode.OFF;
+        switch (mPlayerState.getShuffleMode()) {
             case OFF:
-                mShuffleMode = ShuffleMode.ALL;
+                shuffleMode = ShuffleMode.ALL;
                 break;
             case ALL:
-                mShuffleMode = ShuffleMode.INSIDE_ALBUM;
+                shuffleMode = ShuffleMode.INSIDE_ALBUM;
                 break;
             case INSIDE_ALBUM:
-                mShuffleMode = ShuffleMode.ALBUMS;
+                shuffleMode = ShuffleMode.ALBUMS;
                 break;
             case ALBUMS:
-                mShuffleMode = ShuffleMode.OFF;
+                shuffleMode = ShuffleMode.OFF;
                 break;
         }
+        setShuffleMode(shuffleMode);
     }
 
     public PlaylistManager getPlaylistManager() {
         return mPlaylistManager;
     }
 
+    public LyricsCache getLyricsCache() {
+        return mLyricsCache;
+    }
+
     public String getHostname() {
         return mHostname;
     }
@@ -21,18 +21,23 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.Locale;
 
 import de.qspool.clementineremote.SharedPreferencesKeys;
 import de.qspool.clementineremote.backend.elements.DownloaderResult;
 import de.qspool.clementineremote.backend.elements.DownloaderResult.DownloadResult;
+import de.qspool.clementineremote.backend.library.LibraryChunkWriter;
 import de.qspool.clementineremote.backend.library.LibraryDatabaseHelper;
+import de.qspool.clementineremote.backend.library.LibraryDownloadJournal;
 import de.qspool.clementineremote.backend.listener.OnLibraryDownloadListener;
+import de.qspool.clementineremote.backend.listener.OnOptimizeProgressListener;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
 import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.MsgType;
@@ -55,11 +60,22 @@ public class ClementineLibraryDownloader extends
     private LinkedList<OnLibraryDownloadListener> listeners
             = new LinkedList<>();
 
+    // Flush the part file and update the journal after this many bytes
+    private final static int JOURNAL_SYNC_SIZE = 4 * 1024 * 1024;
+
+    // Free space needed for downloading and optimizing, as multiple of the library size
+    private final static int OPTIMIZE_SPACE_FACTOR = 3;
+
+    private final static int MAX_RESUME_ATTEMPTS = 3;
+
+    private final static long RESUME_DELAY = 2000;
+
     private int mTotalSize;
 
+    private float mThroughput;
+
     public ClementineLibraryDownloader(Context context) {
         mContext = context;
-        mLibrary = new LibraryDatabaseHelper();
         mSharedPref = PreferenceManager.getDefaultSharedPreferences(mContext);
     }
 
@@ -84,22 +100,44 @@ public class ClementineLibraryDownloader extends
 
     @Override
     protected DownloaderResult doInBackground(ClementineMessage... params) {
+        // The library of the host the download started for, even if the host changes
+        mLibrary = new LibraryDatabaseHelper(new LibraryDatabaseHelper().getLibraryDb());
+
         if (mSharedPref.getBoolean(SharedPreferencesKeys.SP_WIFI_ONLY, false)
                 && !Utilities.onWifi()) {
             return new DownloaderResult(0, DownloaderResult.DownloadResult.ONLY_WIFI);
         }
 
-        // First create a connection
-        if (!connect()) {
-            return new DownloaderResult(0, DownloaderResult.DownloadResult.CONNECTION_ERROR);
-        }
+        DownloaderResult result;
+        int attempt = 0;
+        do {
+            if (attempt > 0) {
+                Log.i(TAG, "Connection lost, resuming download (attempt " + attempt + ")");
+                SystemClock.sleep(RESUME_DELAY);
+            }
+
+            // First create a connection
+            if (!connect()) {
+                return new DownloaderResult(0, DownloaderResult.DownloadResult.CONNECTION_ERROR);
+            }
 
-        // Start the download
-        return startDownloading(params[0]);
+            // Start the download
+            result = startDownloading(params[0]);
+            attempt++;
+        } while (result.getResult() == DownloadResult.CONNECTION_ERROR
+                && attempt <= MAX_RESUME_ATTEMPTS && !isCancelled());
+
+        return result;
     }
 
     @Override
     protected void onProgressUpdate(Long... progress) {
+        // Two values are the step and step count of the optimization
+        if (progress.length == 2) {
+            fireOnOptimizeProgressListener(progress[0].intValue(), progress[1].intValue());
+            return;
+        }
+
         fireOnProgressUpdateListener(progress[0]);
 
         if (progress[0] == mTotalSize) {
@@ -140,119 +178,208 @@ public class ClementineLibraryDownloader extends
     }
 
     /**
-     * Start the Download
+     * Get the throughput of the last finished download
+     *
+     * @return The throughput in MB/s
+     */
+    public float getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Start the Download. The chunks are written by a LibraryChunkWriter into a part file
+     * and the received chunks are recorded in a journal. If a previous download of the same
+     * library was interrupted, the chunks already in the part file are skipped and the
+     * download continues after them.
      */
     private DownloaderResult startDownloading(
             ClementineMessage clementineMessage) {
-        boolean downloadFinished = false;
-        DownloaderResult result = new DownloaderResult(0,
-                DownloadResult.SUCCESSFUL);
-        File f = null;
-        FileOutputStream fo = null;
+        LibraryDownloadJournal journal = new LibraryDownloadJournal(mLibrary.getLibraryDb());
+        LibraryChunkWriter writer = new LibraryChunkWriter(journal, JOURNAL_SYNC_SIZE);
+        ConnectionChunkSource source = new ConnectionChunkSource();
+        DownloaderResult result = null;
 
         // Now request the songs
         mClient.sendRequest(clementineMessage);
 
-        while (!downloadFinished) {
-            // Check if the user canceled the process
-            if (isCancelled()) {
-                // Close the stream and delete the incomplete file
-                try {
-                    if (fo != null) {
-                        fo.flush();
-                        fo.close();
-                    }
-                    if (f != null) {
-                        f.delete();
+        try {
+            switch (writer.receive(source)) {
+                case COMPLETE:
+                    long duration = Math.max(1, SystemClock.elapsedRealtime() - source.mStartTime);
+                    mThroughput = (source.mBytesReceived / (1024f * 1024f)) / (duration / 1000f);
+                    Log.i(TAG, String.format(Locale.US, "Downloaded %d bytes in %dms (%.2f MB/s)",
+                            source.mBytesReceived, duration, mThroughput));
+                    break;
+                case INTERRUPTED:
+                    if (isCancelled()) {
+                        // Delete the incomplete file
+                        writer.abort();
                     }
-                } catch (IOException e) {
-                }
-                break;
+                    result = source.mResult;
+                    break;
+                case RESTART:
+                    // The part file does not fit, start again with a full download
+                    Log.w(TAG, "Part file differs, restarting");
+                    result = new DownloaderResult(0, DownloadResult.CONNECTION_ERROR);
+                    break;
+                case HASH_MISMATCH:
+                    Log.e(TAG, "Library hash mismatch");
+                    result = new DownloaderResult(0, DownloadResult.ERROR);
+                    break;
             }
+        } catch (IOException e) {
+            result = new DownloaderResult(0, DownloaderResult.DownloadResult.NOT_MOUNTED);
+        }
 
-            // Get the raw protocol buffer
-            ClementineMessage message = mClient.getProtoc(0);
+        // Disconnect at the end
+        mClient.disconnect(ClementineMessage.getMessage(MsgType.DISCONNECT));
 
-            if (message.isErrorMessage()) {
-                result = new DownloaderResult(0, DownloadResult.CONNECTION_ERROR);
-                break;
-            }
+        if (result == null) {
+            result = installLibrary(journal);
+        }
 
-            // Is the download forbidden?
-            if (message.getMessageType() == MsgType.DISCONNECT) {
-                result = new DownloaderResult(0, DownloadResult.FOBIDDEN);
-                break;
-            }
+        return result;
+    }
 
-            // Ignore other elements!
-            if (message.getMessageType() != MsgType.LIBRARY_CHUNK) {
-                continue;
-            }
+    /**
+     * Reads the library chunks from the connection to Clementine
+     */
+    private class ConnectionChunkSource implements LibraryChunkWriter.ChunkSource {
 
-            ResponseLibraryChunk chunk = message.getMessage()
-                    .getResponseLibraryChunk();
-
-            try {
-                // Check if we need to create a new file
-                if (f == null) {
-                    // Check if we have enougth free space
-                    // size times 2, because we optimise the table later and
-                    // need space for that too!
-                    if ((chunk.getSize() * 2) > Utilities.getFreeSpaceExternal()) {
-                        result = new DownloaderResult(0,
-                                DownloadResult.INSUFFIANT_SPACE);
-                        break;
-                    }
-                    f = mLibrary.getLibraryDb();
+        // The result if the download stops early
+        DownloaderResult mResult = new DownloaderResult(0, DownloadResult.SUCCESSFUL);
 
-                    // User wants to override files, so delete it here!
-                    // The check was already done in processSongOffer()
-                    if (f.exists()) {
-                        f.delete();
-                    }
+        long mBytesReceived;
 
-                    f.createNewFile();
-                    fo = new FileOutputStream(f);
+        long mStartTime;
 
-                    mTotalSize = chunk.getSize();
-                }
+        private boolean mFirst = true;
+
+        @Override
+        public ResponseLibraryChunk nextChunk() {
+            while (!isCancelled()) {
+                // Get the raw protocol buffer
+                ClementineMessage message = mClient.getProtoc(0);
 
-                // Write chunk to sdcard
-                fo.write(chunk.getData().toByteArray());
+                if (message.isErrorMessage()) {
+                    mResult = new DownloaderResult(0, DownloadResult.CONNECTION_ERROR);
+                    return null;
+                }
 
-                publishProgress(f.length());
+                // Is the download forbidden?
+                if (message.getMessageType() == MsgType.DISCONNECT) {
+                    mResult = new DownloaderResult(0, DownloadResult.FOBIDDEN);
+                    return null;
+                }
 
-                // Have we downloaded all chunks?
-                if (chunk.getChunkCount() == chunk.getChunkNumber()) {
-                    fo.flush();
-                    fo.close();
-                    f = null;
-                    downloadFinished = true;
+                // Ignore other elements!
+                if (message.getMessageType() != MsgType.LIBRARY_CHUNK) {
+                    continue;
                 }
 
-            } catch (IOException e) {
-                result = new DownloaderResult(0,
-                        DownloaderResult.DownloadResult.NOT_MOUNTED);
-                break;
+                ResponseLibraryChunk chunk = message.getMessage().getResponseLibraryChunk();
+
+                // Check if we have enougth free space. Besides the download, the
+                // optimization needs space for the indexes and for the temporary
+                // copy VACUUM writes
+                if (mFirst && (chunk.getSize() * (long) OPTIMIZE_SPACE_FACTOR)
+                        > Utilities.getFreeSpaceExternal()) {
+                    mResult = new DownloaderResult(0, DownloadResult.INSUFFIANT_SPACE);
+                    return null;
+                }
+                return chunk;
             }
+            return null;
         }
 
-        // Disconnect at the end
-        mClient.disconnect(ClementineMessage.getMessage(MsgType.DISCONNECT));
+        @Override
+        public void onChunkWritten(ResponseLibraryChunk chunk, long length) {
+            if (mFirst) {
+                mFirst = false;
+                if (length > chunk.getData().size()) {
+                    Log.i(TAG, "Resuming download at " + length + " bytes");
+                }
+                mTotalSize = chunk.getSize();
+                mStartTime = SystemClock.elapsedRealtime();
+            }
 
-        // Optimize library table
-        if (result.getResult() == DownloadResult.SUCCESSFUL &&
-                mLibrary.getLibraryDb().exists()) {
-            try {
-                mLibrary.optimizeTable();
-            } catch (SQLiteException e) {
-                // Database is damaged, delete it
-                mLibrary.getLibraryDb().delete();
-                result = new DownloaderResult(0, DownloadResult.ERROR);
+            mBytesReceived += chunk.getData().size();
+            publishProgress(Math.max(mBytesReceived, length));
+        }
+    }
+
+    /**
+     * Apply the downloaded library to the local library, or optimize it and replace the local
+     * library with it.
+     * <p/>
+     * Before it is optimized, the part file is moved out of the journal, so a download
+     * started after the app was killed during the optimization does not resume onto a half
+     * rewritten file. The optimized file is renamed over the local library, which is never
+     * missing or half optimized.
+     */
+    private DownloaderResult installLibrary(LibraryDownloadJournal journal) {
+        File snapshot = journal.getPartFile();
+
+        if (syncLibrary(snapshot)) {
+            journal.delete();
+            // Only rewritten if songs changed
+            if (!mLibrary.getBrowseIndexFile().exists()) {
+                mLibrary.buildBrowseIndex();
             }
+            return new DownloaderResult(0, DownloadResult.SUCCESSFUL);
         }
 
-        return result;
+        File newLibrary = mLibrary.getNewLibraryDb();
+        if (!journal.complete(newLibrary)) {
+            return new DownloaderResult(0, DownloadResult.NOT_MOUNTED);
+        }
+
+        try {
+            mLibrary.optimizeTable(newLibrary, new OnOptimizeProgressListener() {
+                @Override
+                public void OnOptimizeProgress(int step, int steps) {
+                    publishProgress((long) step, (long) steps);
+                }
+            });
+        } catch (SQLiteException e) {
+            // Database is damaged, delete it
+            newLibrary.delete();
+            return new DownloaderResult(0, DownloadResult.ERROR);
+        }
+
+        if (!mLibrary.replaceLibraryDb(newLibrary)) {
+            newLibrary.delete();
+            return new DownloaderResult(0, DownloadResult.NOT_MOUNTED);
+        }
+
+        // The new library might exceed the disk budget
+        mLibrary.evictLibraries();
+
+        mLibrary.buildBrowseIndex();
+
+        return new DownloaderResult(0, DownloadResult.SUCCESSFUL);
+    }
+
+    /**
+     * Apply the downloaded library to the local one, if the user enabled incremental updates
+     *
+     * @param snapshot The downloaded library
+     * @return true if the local library was updated, false if it has to be replaced
+     */
+    private boolean syncLibrary(File snapshot) {
+        if (!mSharedPref.getBoolean(SharedPreferencesKeys.SP_LIBRARY_INCREMENTAL_SYNC, true)) {
+            return false;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int changes = mLibrary.syncFrom(snapshot);
+        if (changes < 0) {
+            return false;
+        }
+
+        Log.i(TAG, "Updated " + changes + " songs in " + (SystemClock.elapsedRealtime() - start)
+                + "ms");
+        return true;
     }
 
     /*
@@ -270,6 +397,12 @@ public class ClementineLibraryDownloader extends
         }
     }
 
+    private void fireOnOptimizeProgressListener(int step, int steps) {
+        for (OnLibraryDownloadListener l : listeners) {
+            l.OnOptimizeProgress(step, steps);
+        }
+    }
+
     private void fireOnProgressUpdateListener(long progress) {
         for (OnLibraryDownloadListener l : listeners) {
             l.OnProgressUpdate(progress, mTotalSize);
@@ -30,10 +30,12 @@ import de.qspool.clementineremote.backend.listener.PlayerConnectionListener;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
 import de.qspool.clementineremote.backend.pb.ClementineMessage.ErrorMessage;
 import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
+import de.qspool.clementineremote.backend.pb.ClementinePbParser;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Message.Builder;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.MsgType;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ReasonDisconnect;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseDisconnect;
+import de.qspool.clementineremote.backend.player.PlaylistIngestor;
 
 /**
  * This Thread-Class is used to communicate with Clementine
@@ -70,6 +72,8 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
 
     private Thread mIncomingThread;
 
+    private PlaylistIngestor mPlaylistIngestor;
+
     /**
      * Add a new listener for closed connections
      *
@@ -116,6 +120,9 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
             // Set the current time to last keep alive
             setLastKeepAlive(System.currentTimeMillis());
 
+            // Lyrics requested on the old connection are not answered anymore
+            App.Clementine.getLyricsCache().clearRequests();
+
             // Until we get a new connection request from ui,
             // don't request the first data a second time
             mRequestConnect = ClementineMessageFactory
@@ -131,6 +138,8 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
 
             mStartTime = new Date().getTime();
 
+            mPlaylistIngestor = new PlaylistIngestor(mHandler, PROCESS_PROTOC);
+
             // Create a new thread for reading data from Clementine.
             // This is done blocking, so we receive the data directly instead of
             // waiting for the handler and still be able to send commands directly.
@@ -141,6 +150,10 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
                         checkKeepAlive();
 
                         ClementineMessage m = getProtoc(3000);
+                        if (m == null) {
+                            // Message is parsed by the playlist ingestor
+                            continue;
+                        }
                         if (!m.isErrorMessage() || m.getErrorMessage() != ErrorMessage.TIMEOUT) {
                             Message msg = Message.obtain();
                             msg.obj = m;
@@ -180,11 +193,36 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
             closeConnection(clementineMessage);
         } else if (clementineMessage.getMessageType() == MsgType.DISCONNECT) {
             closeConnection(clementineMessage);
+        } else if (clementineMessage.getMessageType() == MsgType.UPDATE_TRACK_POSITION) {
+            // The ui extrapolates the position with the playback clock while playing. It
+            // only needs the message if it does not, or if the position jumped
+            if (App.Clementine.getState() != Clementine.State.PLAY
+                    || App.Clementine.getPlaybackClock().wasLastSyncCorrected()) {
+                sendUiMessage(clementineMessage);
+            }
         } else {
             sendUiMessage(clementineMessage);
         }
     }
 
+    /**
+     * Playlist songs can be huge. They are parsed by the playlist ingestor, so keep alive
+     * and track position messages are not blocked by them.
+     *
+     * @param data The binary representation of the protocol buffer
+     * @return The parsed message or null if the message is parsed by the ingestor
+     */
+    @Override
+    protected ClementineMessage parseProtoc(byte[] data) {
+        if (mPlaylistIngestor != null
+                && ClementinePbParser.peekMessageType(data) == MsgType.PLAYLIST_SONGS) {
+            mPlaylistIngestor.ingest(data);
+            return null;
+        }
+
+        return super.parseProtoc(data);
+    }
+
     /**
      * Send a message to the ui thread
      *
@@ -207,6 +245,12 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
      */
     @Override
     public boolean sendRequest(ClementineMessage message) {
+        // Lyrics are answered for the song playing now. Remember it before sending, the
+        // answer could arrive before sendRequest() returns
+        if (message.getMessageType() == MsgType.GET_LYRICS) {
+            App.Clementine.getLyricsCache().addRequest(App.Clementine.getCurrentSong());
+        }
+
         // Send the request to Clementine
         boolean ret = super.sendRequest(message);
 
@@ -262,6 +306,11 @@ public class ClementinePlayerConnection extends ClementineSimpleConnection
             e.printStackTrace();
         }
 
+        if (mPlaylistIngestor != null) {
+            mPlaylistIngestor.shutdown();
+            mPlaylistIngestor = null;
+        }
+
         // Fire the listener
         if (clementineMessage.isErrorMessage() &&
                 (clementineMessage.getErrorMessage() == ErrorMessage.IO_EXCEPTION ||
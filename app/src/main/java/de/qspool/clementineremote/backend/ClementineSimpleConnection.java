@@ -17,6 +17,8 @@
 
 package de.qspool.clementineremote.backend;
 
+import android.os.SystemClock;
+
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -42,6 +44,11 @@ public class ClementineSimpleConnection {
     // Protocol buffer data
     private ClementinePbParser mClementinePbParser = new ClementinePbParser();
 
+    // Big messages are read in pieces, so the receive time is updated while they arrive
+    private final static int READ_PIECE_SIZE = 64 * 1024;
+
+    private volatile long mLastReceived;
+
     /**
      * Try to connect to Clementine
      *
@@ -102,9 +109,13 @@ public class ClementineSimpleConnection {
             if (len < 0 || len > 52428800) {
                 throw new IOException("Invalid data length");
             }
+            mLastReceived = SystemClock.elapsedRealtime();
             byte[] data = new byte[len];
-            mIn.readFully(data, 0, len);
-            message = mClementinePbParser.parse(data);
+            for (int read = 0; read < len; read += READ_PIECE_SIZE) {
+                mIn.readFully(data, read, Math.min(READ_PIECE_SIZE, len - read));
+                mLastReceived = SystemClock.elapsedRealtime();
+            }
+            message = parseProtoc(data);
         } catch (SocketTimeoutException e) {
             message = new ClementineMessage(ErrorMessage.TIMEOUT);
         } catch (IOException e) {
@@ -114,6 +125,23 @@ public class ClementineSimpleConnection {
         return message;
     }
 
+    /**
+     * @return The time (SystemClock.elapsedRealtime()) data was received last
+     */
+    public long getLastReceived() {
+        return mLastReceived;
+    }
+
+    /**
+     * Parse the received data. Subclasses can hand off messages to other threads here.
+     *
+     * @param data The binary representation of the protocol buffer
+     * @return The parsed message or null if the message is processed elsewhere
+     */
+    protected ClementineMessage parseProtoc(byte[] data) {
+        return mClementinePbParser.parse(data);
+    }
+
     /**
      * Check if the Socket is still connected
      *
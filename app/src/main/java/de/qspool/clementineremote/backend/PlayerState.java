@@ -0,0 +1,181 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package de.qspool.clementineremote.backend;
+
+import de.qspool.clementineremote.backend.Clementine.RepeatMode;
+import de.qspool.clementineremote.backend.Clementine.ShuffleMode;
+import de.qspool.clementineremote.backend.Clementine.State;
+import de.qspool.clementineremote.backend.player.MySong;
+
+/**
+ * An immutable snapshot of the player state. Every change creates a new snapshot with a
+ * higher version. For each attribute the version it was last changed in is stored, so a
+ * consumer can check what changed since the snapshot it has seen last.
+ */
+public final class PlayerState {
+
+    // Flags returned by getChangesSince()
+    public final static int CHANGED_SONG = 1;
+
+    public final static int CHANGED_STATE = 1 << 1;
+
+    public final static int CHANGED_VOLUME = 1 << 2;
+
+    public final static int CHANGED_REPEAT = 1 << 3;
+
+    public final static int CHANGED_SHUFFLE = 1 << 4;
+
+    private long mVersion;
+
+    private MySong mCurrentSong;
+
+    private long mSongVersion;
+
+    private State mState = State.STOP;
+
+    private long mStateVersion;
+
+    private int mVolume = 100;
+
+    private long mVolumeVersion;
+
+    private RepeatMode mRepeatMode = RepeatMode.OFF;
+
+    private long mRepeatVersion;
+
+    private ShuffleMode mShuffleMode = ShuffleMode.OFF;
+
+    private long mShuffleVersion;
+
+    PlayerState() {
+    }
+
+    /**
+     * Copy the state into a new snapshot with the next version
+     */
+    private PlayerState(PlayerState s) {
+        mVersion = s.mVersion + 1;
+        mCurrentSong = s.mCurrentSong;
+        mSongVersion = s.mSongVersion;
+        mState = s.mState;
+        mStateVersion = s.mStateVersion;
+        mVolume = s.mVolume;
+        mVolumeVersion = s.mVolumeVersion;
+        mRepeatMode = s.mRepeatMode;
+        mRepeatVersion = s.mRepeatVersion;
+        mShuffleMode = s.mShuffleMode;
+        mShuffleVersion = s.mShuffleVersion;
+    }
+
+    PlayerState withCurrentSong(MySong currentSong) {
+        PlayerState s = new PlayerState(this);
+        s.mCurrentSong = currentSong;
+        s.mSongVersion = s.mVersion;
+        return s;
+    }
+
+    PlayerState withState(State state) {
+        if (state == mState) {
+            return this;
+        }
+        PlayerState s = new PlayerState(this);
+        s.mState = state;
+        s.mStateVersion = s.mVersion;
+        return s;
+    }
+
+    PlayerState withVolume(int volume) {
+        if (volume == mVolume) {
+            return this;
+        }
+        PlayerState s = new PlayerState(this);
+        s.mVolume = volume;
+        s.mVolumeVersion = s.mVersion;
+        return s;
+    }
+
+    PlayerState withRepeatMode(RepeatMode repeatMode) {
+        if (repeatMode == mRepeatMode) {
+            return this;
+        }
+        PlayerState s = new PlayerState(this);
+        s.mRepeatMode = repeatMode;
+        s.mRepeatVersion = s.mVersion;
+        return s;
+    }
+
+    PlayerState withShuffleMode(ShuffleMode shuffleMode) {
+        if (shuffleMode == mShuffleMode) {
+            return this;
+        }
+        PlayerState s = new PlayerState(this);
+        s.mShuffleMode = shuffleMode;
+        s.mShuffleVersion = s.mVersion;
+        return s;
+    }
+
+    /**
+     * Get the attributes that changed after the given version
+     *
+     * @param version The version of the last snapshot the consumer has seen
+     * @return A combination of the CHANGED_* flags. 0 if nothing changed
+     */
+    public int getChangesSince(long version) {
+        int changes = 0;
+        if (mSongVersion > version) {
+            changes |= CHANGED_SONG;
+        }
+        if (mStateVersion > version) {
+            changes |= CHANGED_STATE;
+        }
+        if (mVolumeVersion > version) {
+            changes |= CHANGED_VOLUME;
+        }
+        if (mRepeatVersion > version) {
+            changes |= CHANGED_REPEAT;
+        }
+        if (mShuffleVersion > version) {
+            changes |= CHANGED_SHUFFLE;
+        }
+        return changes;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public MySong getCurrentSong() {
+        return mCurrentSong;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    public int getVolume() {
+        return mVolume;
+    }
+
+    public RepeatMode getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    public ShuffleMode getShuffleMode() {
+        return mShuffleMode;
+    }
+}
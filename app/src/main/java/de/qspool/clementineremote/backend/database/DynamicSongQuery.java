@@ -4,9 +4,16 @@ package de.qspool.clementineremote.backend.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 
 import de.qspool.clementineremote.R;
@@ -14,6 +21,22 @@ import de.qspool.clementineremote.backend.listener.OnSongSelectFinishedListener;
 
 public abstract class DynamicSongQuery {
 
+    private final static String TAG = "DynamicSongQuery";
+
+    // Levels with more rows are loaded in pages
+    private final static int PAGED_THRESHOLD = 1000;
+
+    private final static int PAGE_SIZE = 200;
+
+    private final static int KEYSET_NONE = 0;
+
+    private final static int KEYSET_AFTER = 1;
+
+    private final static int KEYSET_BEFORE = 2;
+
+    // A sub query can rank its rows in this column, the best match first
+    protected final static String RANK_COLUMN = "match_rank";
+
     protected Context mContext;
 
     private SQLiteDatabase mDatabase;
@@ -34,8 +57,14 @@ public abstract class DynamicSongQuery {
     abstract protected String getSorting();
     abstract protected String getTable();
     abstract protected SQLiteDatabase getReadableDatabase();
-    abstract public String getMatchesSubQuery(String match);
+    abstract public String getMatchesSubQuery();
     protected String getHiddenWhere() { return ""; }
+    protected boolean isCacheable() { return false; }
+    protected boolean isPageable() { return false; }
+    protected Cursor queryBrowseIndex(String[] fields, int level, String[] selection,
+            boolean descending) { return null; }
+    protected QuerySections queryBrowseIndexSections(String[] fields, int level,
+            String[] selection, boolean descending, boolean decade) { return null; }
 
     public DynamicSongQuery(Context context) {
         mContext = context;
@@ -50,12 +79,206 @@ public abstract class DynamicSongQuery {
         mDatabase = getReadableDatabase();
     }
 
+    /**
+     * Get the database for a single query. Every call is paired with releaseDatabase(),
+     * the cursors of the query release it when they are closed.
+     *
+     * @return The database
+     */
+    protected SQLiteDatabase acquireDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Release the database of a query
+     *
+     * @param db The database acquireDatabase() returned
+     */
+    protected void releaseDatabase(SQLiteDatabase db) {
+    }
+
     public int getMaxLevels() {
         return mMaxLevels;
     }
 
     public Cursor buildQuery(String fromTable) {
+        return buildQuery(fromTable, new String[]{});
+    }
+
+    /**
+     * Query the current level
+     *
+     * @param fromTable The table or a sub query to select from
+     * @param fromArgs  The arguments of the sub query
+     * @return The cursor or null if the query failed
+     */
+    public Cursor buildQuery(String fromTable, String[] fromArgs) {
+        return buildQuery(fromTable, fromArgs, false);
+    }
+
+    /**
+     * Query the current level
+     *
+     * @param fromTable The table or a sub query to select from
+     * @param fromArgs  The arguments of the sub query
+     * @param ranked    true if the sub query has a RANK_COLUMN. The rows are sorted by
+     *                  their rank before the sort order of the level.
+     * @return The cursor or null if the query failed
+     */
+    public Cursor buildQuery(String fromTable, String[] fromArgs, boolean ranked) {
+        // Only the navigation is cached, not the results of a search
+        boolean navigation = fromTable.equals(getTable());
+        boolean cacheable = isCacheable() && navigation;
+        String cacheKey = cacheable ? getCacheKey() : null;
+        QueryResultCache cache = QueryResultCache.getInstance();
+        long generation = cache.getGeneration();
+
+        // A prebuilt index answers the navigation without sql
+        if (navigation) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor indexed = queryBrowseIndex(mSelectedFields, mLevel, mSelection,
+                    "DESC".equalsIgnoreCase(mSort.trim()));
+            if (indexed != null) {
+                QueryStatementCache.getInstance().recordQuery("index",
+                        SystemClock.elapsedRealtime() - start);
+                return indexed;
+            }
+        }
+
+        if (cacheable) {
+            Cursor cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        // Big levels are loaded in pages. Only those are counted completely, the others
+        // are probed up to the threshold.
+        if (isPageable() && navigation
+                && countRows(fromTable, fromArgs, PAGED_THRESHOLD + 1) > PAGED_THRESHOLD) {
+            return new PagedQueryCursor(new KeysetPageLoader(),
+                    countRows(fromTable, fromArgs, -1), PAGE_SIZE);
+        }
+
+        Cursor c1 = runQuery(fromTable, fromArgs, ranked, KEYSET_NONE, null, -1, 0,
+                navigation ? "browse" : "search");
+
+        if (cacheable && c1 != null) {
+            c1 = cache.put(cacheKey, generation, c1);
+        }
+        return c1;
+    }
+
+    /**
+     * Query the current level, filtered by a search text
+     *
+     * @param match The text the user entered
+     * @return The cursor or null if the query failed
+     */
+    public Cursor buildMatchQuery(String match) {
+        return buildQuery(getMatchesSubQuery(), new String[]{buildMatchExpression(match)});
+    }
+
+    /**
+     * Build a full text search expression. Every word is quoted, so quotes and operators
+     * the user entered are searched for as text. The last word is a prefix.
+     *
+     * @param match The text the user entered
+     * @return The expression to bind to the MATCH of getMatchesSubQuery()
+     */
+    public static String buildMatchExpression(String match) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : match.replace("\"", " ").trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (sb.length() != 0) {
+                sb.append(" ");
+            }
+            sb.append("\"");
+            sb.append(word);
+            sb.append("\"");
+        }
+
+        if (sb.length() != 0) {
+            sb.insert(sb.length() - 1, "*");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Run the query of the current level
+     *
+     * @param fromTable   The table or sub query to select from
+     * @param fromArgs    The arguments of the sub query
+     * @param ranked      true to sort by the RANK_COLUMN of the sub query first
+     * @param keyset      KEYSET_NONE, or KEYSET_AFTER / KEYSET_BEFORE to return only rows
+     *                    after / before keyRow in the sort order. Rows before keyRow are
+     *                    returned in reversed order.
+     * @param keyRow      The row to start at
+     * @param limit       The maximum number of rows or -1 for all rows
+     * @param offset      The number of rows to skip
+     * @param type        The type of the query for the statistics
+     * @return The cursor or null if the query failed
+     */
+    private Cursor runQuery(final String fromTable, String[] fromArgs, final boolean ranked,
+            final int keyset, Object[] keyRow, final int limit, int offset, String type) {
+        // The keyset depends on which key values are null
+        final boolean[] keyNulls = keyset == KEYSET_NONE ? null : getKeyNulls(keyRow);
+        String key = getStatementKey(fromTable) + "|" + ranked + "|" + keyset + "|"
+                + (limit >= 0) + "|" + Arrays.toString(keyNulls);
+        String sql = QueryStatementCache.getInstance().get(key,
+                new QueryStatementCache.StatementBuilder() {
+                    @Override
+                    public String build() {
+                        return buildSql(fromTable, ranked, keyset, keyNulls, limit >= 0);
+                    }
+                });
+
+        LinkedList<String> args = new LinkedList<>();
+        Collections.addAll(args, fromArgs);
+        Collections.addAll(args, mSelection);
+        if (keyset != KEYSET_NONE) {
+            Collections.addAll(args, getKeysetArgs(keyRow));
+        }
+        if (limit >= 0) {
+            args.add(String.valueOf(limit));
+            args.add(String.valueOf(offset));
+        }
+
         Cursor c1 = null;
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = acquireDatabase();
+        try {
+            c1 = db.rawQuery(sql, args.toArray(new String[args.size()]));
+            // Execute the query now, so the time is measured
+            c1.getCount();
+            c1 = new ReleasingCursor(c1, db);
+        } catch (Exception e) {
+            Log.e(TAG, "Query failed: " + e.getMessage());
+            if (c1 != null) {
+                c1.close();
+                c1 = null;
+            }
+            releaseDatabase(db);
+        }
+        QueryStatementCache.getInstance().recordQuery(type,
+                SystemClock.elapsedRealtime() - start);
+
+        return c1;
+    }
+
+    /**
+     * The sql depends on the table, grouping, sorting, level and the number of selected
+     * values, but not on the values themselves
+     */
+    private String getStatementKey(String fromTable) {
+        return fromTable + "|" + TextUtils.join(",", mSelectedFields) + "|" + mSort + "|"
+                + mLevel + "|" + mSelection.length + "|" + getHiddenWhere();
+    }
+
+    private String buildSql(String fromTable, boolean ranked, int keyset, boolean[] keyNulls,
+            boolean limit) {
         StringBuilder query = new StringBuilder();
         query.append("SELECT ");
         query.append("ROWID as _id"); // _id for ListView
@@ -68,89 +291,419 @@ public abstract class DynamicSongQuery {
         query.append(", cast(filename as TEXT) "); // URL
         query.append(", artist, album ");
 
+        if (isTitleLevel()) {
+            // Part of the sort key, needed to continue after a row
+            query.append(", disc, track ");
+        } else {
+            // Number of items in the next level, counted while grouping
+            query.append(", COUNT(DISTINCT(");
+            query.append(mSelectedFields[mLevel + 1]);
+            query.append(")) ");
+        }
+
         query.append(" FROM ");
         query.append(fromTable);
 
-        // Append where clause
+        appendWhere(query,
+                keyset == KEYSET_NONE ? null : getKeyset(keyset == KEYSET_AFTER, keyNulls));
+
+        if (!isTitleLevel()) {
+            query.append(" GROUP BY ");
+            query.append(mSelectedFields[mLevel]);
+        }
+
+        query.append(" ORDER BY ");
+        if (ranked) {
+            // A group ranks like its best row
+            query.append(isTitleLevel() ? RANK_COLUMN : "MIN(" + RANK_COLUMN + ")");
+            query.append(", ");
+        }
+        String[] keyColumns = getKeyColumns();
+        boolean[] keyDescending = getKeyDescending();
+        boolean reverse = keyset == KEYSET_BEFORE;
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) {
+                query.append(", ");
+            }
+            query.append(keyColumns[i]);
+            query.append(keyDescending[i] != reverse ? " DESC" : " ASC");
+        }
+
+        if (limit) {
+            query.append(" LIMIT ? OFFSET ?");
+        }
+
+        return query.toString();
+    }
+
+    private void appendWhere(StringBuilder query, String keyset) {
+        LinkedList<String> conditions = new LinkedList<>();
+        for (int i = 0; i < mSelection.length; i++) {
+            conditions.add(mSelectedFields[i] + " = ? ");
+        }
+
         String hiddenWhere = getHiddenWhere();
-        if (mSelection.length > 0) {
+        if (!hiddenWhere.isEmpty()) {
+            conditions.add(hiddenWhere);
+        }
+        if (keyset != null) {
+            conditions.add(keyset);
+        }
+
+        if (!conditions.isEmpty()) {
             query.append(" WHERE ");
-            for (int i = 0; i < mSelection.length; i++) {
-                query.append(mSelectedFields[i]);
-                query.append(" = ? ");
-                if (i < mSelection.length - 1)
-                    query.append(" and ");
+            query.append(TextUtils.join(" and ", conditions));
+        }
+    }
+
+    /**
+     * Count the rows of the current level that match a search, without reading them
+     *
+     * @param match The text the user entered
+     * @param limit Stop counting after this many rows
+     * @return The number of rows, at most limit
+     */
+    protected int countMatches(String match, int limit) {
+        return countRows(getMatchesSubQuery(), new String[]{buildMatchExpression(match)},
+                limit);
+    }
+
+    /**
+     * Count the rows of the current level
+     *
+     * @param fromTable The table or a sub query to select from
+     * @param fromArgs  The arguments of the sub query
+     * @param limit     Stop counting after this many rows, or -1 to count all rows
+     */
+    private int countRows(final String fromTable, String[] fromArgs, final int limit) {
+        QueryStatementCache.StatementBuilder builder = new QueryStatementCache.StatementBuilder() {
+            @Override
+            public String build() {
+                StringBuilder query = new StringBuilder();
+                if (isTitleLevel() && limit < 0) {
+                    query.append("SELECT COUNT(*) FROM ");
+                    query.append(fromTable);
+                    appendWhere(query, null);
+                } else {
+                    query.append("SELECT COUNT(*) FROM (SELECT 1 FROM ");
+                    query.append(fromTable);
+                    appendWhere(query, null);
+                    if (!isTitleLevel()) {
+                        query.append(" GROUP BY ");
+                        query.append(mSelectedFields[mLevel]);
+                    }
+                    if (limit >= 0) {
+                        query.append(" LIMIT ?");
+                    }
+                    query.append(")");
+                }
+                return query.toString();
             }
+        };
+
+        LinkedList<String> args = new LinkedList<>();
+        Collections.addAll(args, fromArgs);
+        Collections.addAll(args, mSelection);
+        if (limit >= 0) {
+            args.add(String.valueOf(limit));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = acquireDatabase();
+        try {
+            return (int) QueryStatementCache.getInstance().simpleQueryForLong(db,
+                    getStatementKey(fromTable) + "|count|" + (limit >= 0), builder,
+                    args.toArray(new String[args.size()]));
+        } catch (SQLiteException e) {
+            return 0;
+        } finally {
+            releaseDatabase(db);
+            QueryStatementCache.getInstance().recordQuery(limit >= 0 ? "probe" : "count",
+                    SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * Query the urls of all songs below the selection, in the order of the title level.
+     * Only the url column is read, so big selections can be streamed from the cursor.
+     *
+     * @return A cursor with the url as only column or null if the query failed
+     */
+    public Cursor buildUrlQuery() {
+        String sql = QueryStatementCache.getInstance().get(
+                getStatementKey(getTable()) + "|urls",
+                new QueryStatementCache.StatementBuilder() {
+                    @Override
+                    public String build() {
+                        StringBuilder query = new StringBuilder();
+                        query.append("SELECT cast(filename as TEXT) FROM ");
+                        query.append(getTable());
+                        appendWhere(query, null);
+                        query.append(" ORDER BY album, disc, track");
+                        query.append("DESC".equalsIgnoreCase(mSort.trim()) ? " DESC" : " ASC");
+                        query.append(", ROWID");
+                        return query.toString();
+                    }
+                });
+
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = acquireDatabase();
+        try {
+            return new ReleasingCursor(db.rawQuery(sql, mSelection), db);
+        } catch (SQLiteException e) {
+            releaseDatabase(db);
+            return null;
+        } finally {
+            QueryStatementCache.getInstance().recordQuery("urls",
+                    SystemClock.elapsedRealtime() - start);
+        }
+    }
+
+    /**
+     * Divide the current level into sections for fast scrolling. The sections are found
+     * in the browse index or counted with one aggregate query, the rows are not read.
+     *
+     * @return The sections, empty if the query failed
+     */
+    public QuerySections buildSections() {
+        final String keyColumn = getKeyColumns()[0];
+        final boolean descending = getKeyDescending()[0];
+        boolean decade = keyColumn.equals("year");
+        QuerySections sections = new QuerySections();
+
+        long start = SystemClock.elapsedRealtime();
+        QuerySections indexed = queryBrowseIndexSections(mSelectedFields, mLevel, mSelection,
+                "DESC".equalsIgnoreCase(mSort.trim()), decade);
+        if (indexed != null) {
+            QueryStatementCache.getInstance().recordQuery("sections",
+                    SystemClock.elapsedRealtime() - start);
+            return indexed;
+        }
 
-            if (!hiddenWhere.isEmpty()) {
-                query.append(" and ");
-                query.append(hiddenWhere);
+        String sql = QueryStatementCache.getInstance().get(
+                getStatementKey(getTable()) + "|sections",
+                new QueryStatementCache.StatementBuilder() {
+                    @Override
+                    public String build() {
+                        StringBuilder query = new StringBuilder();
+                        query.append("SELECT ");
+                        if (keyColumn.equals("year")) {
+                            query.append(keyColumn);
+                            query.append(" / 10 * 10");
+                        } else {
+                            // The first letter keeps the order of the values
+                            query.append("substr(");
+                            query.append(keyColumn);
+                            query.append(", 1, 1)");
+                        }
+                        if (isTitleLevel()) {
+                            query.append(", COUNT(*)");
+                        } else {
+                            // One row per value, null is a row too
+                            query.append(", COUNT(DISTINCT ");
+                            query.append(keyColumn);
+                            query.append(") + MAX(");
+                            query.append(keyColumn);
+                            query.append(" IS NULL)");
+                        }
+                        query.append(" FROM ");
+                        query.append(getTable());
+                        appendWhere(query, null);
+                        query.append(" GROUP BY 1 ORDER BY 1");
+                        query.append(descending ? " DESC" : " ASC");
+                        return query.toString();
+                    }
+                });
+
+        Cursor c = null;
+        SQLiteDatabase db = acquireDatabase();
+        try {
+            c = db.rawQuery(sql, mSelection);
+            while (c.moveToNext()) {
+                sections.add(QuerySections.getLabel(c.getString(0), decade), c.getInt(1));
             }
-        } else if (!hiddenWhere.isEmpty()) {
-            query.append(" WHERE ");
-            query.append(hiddenWhere);
+        } catch (SQLiteException e) {
+            return new QuerySections();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            releaseDatabase(db);
+            QueryStatementCache.getInstance().recordQuery("sections",
+                    SystemClock.elapsedRealtime() - start);
         }
+        return sections;
+    }
 
+    /**
+     * The columns the level is sorted by. They identify a row, so a page can start after it.
+     */
+    private String[] getKeyColumns() {
         if (isTitleLevel()) {
-            query.append(" ORDER BY ");
-            query.append(" album, disc, track ");
-            query.append(mSort);
+            return new String[]{"album", "disc", "track", "ROWID"};
         } else {
-            query.append(" GROUP BY ");
-            query.append(mSelectedFields[mLevel]);
-            query.append(" ORDER BY ");
-            query.append(mSelectedFields[mLevel]);
-            query.append(" ");
-            query.append(mSort);
+            return new String[]{mSelectedFields[mLevel]};
         }
+    }
 
-        try {
-            c1 = mDatabase.rawQuery(query.toString(), mSelection);
-        } catch (Exception e) {
-            System.out.println("DATABASE ERROR " + e);
+    private boolean[] getKeyDescending() {
+        boolean descending = "DESC".equalsIgnoreCase(mSort.trim());
+        if (isTitleLevel()) {
+            return new boolean[]{false, false, descending, false};
+        } else {
+            return new boolean[]{descending};
+        }
+    }
+
+    /**
+     * The cursor columns holding the key columns
+     */
+    private int[] getKeyIndices() {
+        int fields = mSelectedFields.length;
+        if (isTitleLevel()) {
+            return new int[]{fields + 3, fields + 4, fields + 5, 0};
+        } else {
+            return new int[]{mLevel + 1};
+        }
+    }
 
+    /**
+     * Which key values of a row are null
+     */
+    private boolean[] getKeyNulls(Object[] row) {
+        int[] keyIndices = getKeyIndices();
+        boolean[] nulls = new boolean[keyIndices.length];
+        for (int i = 0; i < keyIndices.length; i++) {
+            nulls[i] = row[keyIndices[i]] == null;
         }
-        return c1;
+        return nulls;
     }
 
-    private int countItems(String[] selection) {
-        int items = 0;
+    /**
+     * Build the where clause for the rows after (or before) a row in the sort order.
+     * <p/>
+     * SQLite sorts null before all values, but null never matches a comparison, so null
+     * key values are compared with IS NULL / IS NOT NULL and get no argument.
+     *
+     * @param after    true for the rows after the key, false for the rows before
+     * @param keyNulls Which key values of the row are null
+     * @return The clause. The arguments are created by getKeysetArgs()
+     */
+    private String getKeyset(boolean after, boolean[] keyNulls) {
+        String[] keyColumns = getKeyColumns();
+        boolean[] keyDescending = getKeyDescending();
+
+        String keyset = "";
+        for (int i = keyColumns.length - 1; i >= 0; i--) {
+            String column = keyColumns[i];
+            boolean greater = after != keyDescending[i];
+
+            String compare;
+            String equal;
+            if (keyNulls[i]) {
+                compare = greater ? column + " IS NOT NULL" : "0";
+                equal = column + " IS NULL";
+            } else {
+                compare = greater ? column + " > ?" : "(" + column + " < ? OR " + column
+                        + " IS NULL)";
+                equal = column + " = ?";
+            }
 
-        StringBuilder query = new StringBuilder();
-        query.append("SELECT ");
-        query.append(" COUNT(DISTINCT(");
-        query.append(mSelectedFields[selection.length]);
-        query.append("))");
+            if (i == keyColumns.length - 1) {
+                keyset = compare;
+            } else {
+                keyset = "(" + compare + " OR (" + equal + " AND " + keyset + "))";
+            }
+        }
+        return keyset;
+    }
 
-        query.append(" FROM ");
-        query.append(getTable());
+    /**
+     * The arguments of getKeyset(), the non null key values in the order of the clause
+     */
+    private String[] getKeysetArgs(Object[] row) {
+        int[] keyIndices = getKeyIndices();
+        LinkedList<String> args = new LinkedList<>();
+        for (int i = 0; i < keyIndices.length; i++) {
+            Object value = row[keyIndices[i]];
+            if (value == null) {
+                continue;
+            }
+            // Once for the comparison and once for the equality, the last key has none
+            args.add(value.toString());
+            if (i < keyIndices.length - 1) {
+                args.add(value.toString());
+            }
+        }
+        return args.toArray(new String[args.size()]);
+    }
 
-        String hiddenWhere = getHiddenWhere();
-        if (selection.length > 0) {
-            query.append(" WHERE ");
-            for (int i = 0; i < selection.length; i++) {
-                query.append(mSelectedFields[i]);
-                query.append(" = ? ");
-                if (i < selection.length - 1)
-                    query.append(" and ");
+    /**
+     * Releases the database of the query when the cursor is closed
+     */
+    private class ReleasingCursor extends CursorWrapper {
+
+        private SQLiteDatabase mReleaseDatabase;
+
+        ReleasingCursor(Cursor cursor, SQLiteDatabase db) {
+            super(cursor);
+            mReleaseDatabase = db;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            SQLiteDatabase db;
+            synchronized (this) {
+                db = mReleaseDatabase;
+                mReleaseDatabase = null;
             }
-            if (!hiddenWhere.isEmpty()) {
-                query.append(" and ");
-                query.append(hiddenWhere);
+            // Only once, a cursor can be closed several times
+            if (db != null) {
+                releaseDatabase(db);
             }
-        } else if (!hiddenWhere.isEmpty()) {
-            query.append(" WHERE ");
-            query.append(hiddenWhere);
         }
+    }
 
-        Cursor c = mDatabase.rawQuery(query.toString(), selection);
+    private class KeysetPageLoader implements PagedQueryCursor.PageLoader {
 
-        if (c != null && c.moveToFirst()) {
-            items = c.getInt(0);
-            c.close();
+        private String[] mNoArgs = new String[]{};
+
+        @Override
+        public Cursor loadAfter(Object[] lastRow, int limit) {
+            return runQuery(getTable(), mNoArgs, false, KEYSET_AFTER, lastRow, limit, 0, "page");
         }
 
-        return items;
+        @Override
+        public Cursor loadBefore(Object[] firstRow, int limit) {
+            return runQuery(getTable(), mNoArgs, false, KEYSET_BEFORE, firstRow, limit, 0, "page");
+        }
+
+        @Override
+        public Cursor loadAt(int offset, int limit) {
+            return runQuery(getTable(), mNoArgs, false, KEYSET_NONE, null, limit, offset, "page");
+        }
+    }
+
+    /**
+     * The key identifies the result by table, grouping, sorting, level and selection
+     */
+    private String getCacheKey() {
+        StringBuilder key = new StringBuilder();
+        key.append(getTable());
+        key.append('\u0000');
+        key.append(TextUtils.join(",", mSelectedFields));
+        key.append('\u0000');
+        key.append(mSort);
+        key.append('\u0000');
+        key.append(mLevel);
+        key.append('\u0000');
+        key.append(getHiddenWhere());
+        for (String s : mSelection) {
+            key.append('\u0000');
+            key.append(s);
+        }
+        return key.toString();
     }
 
     public SongSelectItem fillSongSelectItem(Cursor c) {
@@ -189,7 +742,7 @@ public abstract class DynamicSongQuery {
             item.setListSubtitle((artist.isEmpty() ? unknownItem : artist)
                     + " / " + (album.isEmpty() ? unknownItem : album));
         } else {
-            int count = countItems(item.getSelection());
+            int count = c.getInt(mSelectedFields.length + 4);
             item.setListSubtitle(
                     mContext.getResources().getQuantityString(R.plurals.number_items,
                             count, count));
@@ -227,6 +780,11 @@ public abstract class DynamicSongQuery {
         LinkedList<SongSelectItem> itemList = new LinkedList<>();
 
         Cursor c = buildQuery();
+        if (c instanceof PagedQueryCursor) {
+            // All rows are needed, a paged cursor returns placeholders for unloaded pages
+            c.close();
+            c = runQuery(getTable(), new String[]{}, false, KEYSET_NONE, null, -1, 0, "browse");
+        }
 
         if (c != null && c.getCount() != 0) {
             c.moveToFirst();
@@ -0,0 +1,366 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.database;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A cursor over a big query result that only keeps a few pages of rows in memory.
+ * <p/>
+ * Pages next to a loaded page are fetched with keyset pagination, i.e. the query continues
+ * after the last row (or before the first row) of the neighbour page. Only if the list
+ * jumps to a page without a loaded neighbour, the page is fetched with an offset.
+ * When the position gets close to the end of a page, the next page is prefetched in the
+ * background.
+ * <p/>
+ * Pages are never loaded on the calling thread. If the position is on a page that is not
+ * loaded yet, the cursor returns a placeholder row (see isPlaceholder()) and notifies its
+ * DataSetObservers on the main thread once the page is loaded.
+ */
+public class PagedQueryCursor extends AbstractCursor {
+
+    private final static String TAG = "PagedQueryCursor";
+
+    private final static int MAX_PAGES = 8;
+
+    private final static ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    private final static Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public interface PageLoader {
+
+        /**
+         * Load the rows following a row in the sort order
+         */
+        Cursor loadAfter(Object[] lastRow, int limit);
+
+        /**
+         * Load the rows before a row. The rows are returned in reversed sort order.
+         */
+        Cursor loadBefore(Object[] firstRow, int limit);
+
+        /**
+         * Load the rows at an offset
+         */
+        Cursor loadAt(int offset, int limit);
+    }
+
+    private PageLoader mLoader;
+
+    private int mCount;
+
+    private int mPageSize;
+
+    private int mPrefetchDistance;
+
+    private String[] mColumnNames;
+
+    private final LinkedHashMap<Integer, Object[][]> mPages
+            = new LinkedHashMap<Integer, Object[][]>(MAX_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Object[][]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    // Pages that are loaded in the background
+    private final HashMap<Integer, Future<?>> mPrefetching = new HashMap<>();
+
+    // Pages the cursor returned placeholders for
+    private final HashSet<Integer> mWaiting = new HashSet<>();
+
+    private Object[] mPlaceholder;
+
+    private Object[] mRow;
+
+    /**
+     * Create a new paged cursor. The first page is loaded right away.
+     *
+     * @param loader   Loads the pages
+     * @param count    The number of rows of the result
+     * @param pageSize The number of rows per page
+     */
+    public PagedQueryCursor(PageLoader loader, int count, int pageSize) {
+        mLoader = loader;
+        mCount = count;
+        mPageSize = pageSize;
+        mPrefetchDistance = pageSize / 4;
+
+        Cursor c = loader.loadAt(0, pageSize);
+        mColumnNames = c.getColumnNames();
+        mPages.put(0, readRows(c, false));
+
+        mPlaceholder = new Object[mColumnNames.length];
+        Arrays.fill(mPlaceholder, "");
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int page = newPosition / mPageSize;
+        int index = newPosition % mPageSize;
+        Object[][] rows;
+        synchronized (mPages) {
+            rows = mPages.get(page);
+        }
+
+        if (rows == null) {
+            // The observers are notified when the page is loaded
+            prefetch(page, true);
+            mRow = mPlaceholder;
+            return true;
+        }
+
+        if (index >= rows.length) {
+            mRow = null;
+            return false;
+        }
+        mRow = rows[index];
+
+        if (index >= mPageSize - mPrefetchDistance) {
+            prefetch(page + 1, false);
+        } else if (index < mPrefetchDistance) {
+            prefetch(page - 1, false);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if the row at the current position is not loaded yet. All its values
+     * are empty strings.
+     */
+    public boolean isPlaceholder() {
+        return mRow == mPlaceholder;
+    }
+
+    private Object[][] loadPage(int page) {
+        Object[][] previous;
+        Object[][] next;
+        synchronized (mPages) {
+            previous = mPages.get(page - 1);
+            next = mPages.get(page + 1);
+        }
+
+        Object[][] rows;
+        if (previous != null && previous.length > 0) {
+            rows = readRows(mLoader.loadAfter(previous[previous.length - 1], mPageSize), false);
+        } else if (next != null && next.length > 0) {
+            rows = readRows(mLoader.loadBefore(next[0], mPageSize), true);
+        } else {
+            rows = readRows(mLoader.loadAt(page * mPageSize, mPageSize), false);
+        }
+
+        synchronized (mPages) {
+            mPages.put(page, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Load a page in the background
+     *
+     * @param page   The page
+     * @param notify true to notify the observers when the page is loaded
+     */
+    private void prefetch(final int page, boolean notify) {
+        if (page < 0 || page * mPageSize >= mCount) {
+            return;
+        }
+
+        synchronized (mPages) {
+            if (isClosed() || mPages.containsKey(page)) {
+                return;
+            }
+            if (notify) {
+                mWaiting.add(page);
+            }
+            if (mPrefetching.containsKey(page)) {
+                return;
+            }
+
+            mPrefetching.put(page, mPrefetchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean loaded = false;
+                    try {
+                        if (!isClosed()) {
+                            loadPage(page);
+                            loaded = true;
+                        }
+                    } catch (RuntimeException e) {
+                        Log.d(TAG, "Cannot prefetch page " + page + ": " + e.getMessage());
+                    } finally {
+                        boolean waiting;
+                        synchronized (mPages) {
+                            mPrefetching.remove(page);
+                            waiting = mWaiting.remove(page);
+                        }
+                        // After an error the placeholders stay until the list moves again
+                        if (waiting && loaded) {
+                            notifyPageLoaded();
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Let the list bind the rows of a loaded page instead of the placeholders
+     */
+    private void notifyPageLoaded() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isClosed()) {
+                    mDataSetObservable.notifyChanged();
+                }
+            }
+        });
+    }
+
+    private Object[][] readRows(Cursor c, boolean reversed) {
+        Object[][] rows = new Object[c.getCount()][];
+        int i = reversed ? rows.length - 1 : 0;
+        while (c.moveToNext()) {
+            rows[i] = QueryResultCache.readRow(c);
+            i += reversed ? -1 : 1;
+        }
+        c.close();
+        return rows;
+    }
+
+    private Object get(int column) {
+        checkPosition();
+        return mRow[column];
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return Cursor.FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return Cursor.FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return Cursor.FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+        return Cursor.FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = get(column);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mPages) {
+            // Pages that did not start loading yet are not loaded at all
+            for (Future<?> future : mPrefetching.values()) {
+                future.cancel(false);
+            }
+            mPrefetching.clear();
+            mWaiting.clear();
+            mPages.clear();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.database;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the results of recent queries in memory, so navigating back and forth in the
+ * library does not run the same queries again. The results are copied out of the
+ * database cursor, every get() returns a new cursor over the copy.
+ * <p/>
+ * The cache is limited by the estimated memory of the results. The least recently used
+ * results are removed first. It has to be invalidated whenever the database changes.
+ */
+public class QueryResultCache {
+
+    private final static long MAX_SIZE = 4 * 1024 * 1024; // Estimated bytes
+
+    // Results bigger than this are not cached, so a single result cannot flush the cache
+    private final static long MAX_ENTRY_SIZE = MAX_SIZE / 4;
+
+    private static QueryResultCache mInstance;
+
+    private LinkedHashMap<String, Result> mResults = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mSize;
+
+    // Incremented on every invalidation, so results of queries that ran on the old
+    // database are not stored
+    private long mGeneration;
+
+    public static synchronized QueryResultCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new QueryResultCache();
+        }
+        return mInstance;
+    }
+
+    private QueryResultCache() {
+    }
+
+    /**
+     * Get a cached result
+     *
+     * @param key The key the result was stored with
+     * @return A new cursor over the result or null if it is not cached
+     */
+    public synchronized Cursor get(String key) {
+        Result result = mResults.get(key);
+        return result == null ? null : toCursor(result);
+    }
+
+    /**
+     * @return The current generation. Get it before running the query that is put later.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Copy a query result into the cache. The given cursor is closed.
+     *
+     * @param key        The key of the query
+     * @param generation The generation before the query was run
+     * @param c          The cursor of the query
+     * @return A cursor over the result, to be used instead of the given cursor
+     */
+    public Cursor put(String key, long generation, Cursor c) {
+        String[] columns = c.getColumnNames();
+        Object[][] rows = new Object[c.getCount()][];
+        long size = 0;
+
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            Object[] row = readRow(c);
+            for (Object value : row) {
+                if (value instanceof String) {
+                    size += 2 * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    size += ((byte[]) value).length;
+                }
+                size += 16;
+            }
+            rows[c.getPosition()] = row;
+        }
+        c.close();
+
+        Result result = new Result();
+        result.columns = columns;
+        result.rows = rows;
+        result.size = size;
+
+        synchronized (this) {
+            if (generation == mGeneration && size <= MAX_ENTRY_SIZE) {
+                Result old = mResults.put(key, result);
+                if (old != null) {
+                    mSize -= old.size;
+                }
+                mSize += size;
+                evict();
+            }
+        }
+
+        return toCursor(result);
+    }
+
+    /**
+     * Remove all results. Call this when the database changed.
+     */
+    public synchronized void invalidate() {
+        mResults.clear();
+        mSize = 0;
+        mGeneration++;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Result>> it = mResults.entrySet().iterator();
+        while (mSize > MAX_SIZE && it.hasNext()) {
+            mSize -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Copy the values of the current row of a cursor
+     *
+     * @param c The cursor
+     * @return The values, with the type of the column
+     */
+    static Object[] readRow(Cursor c) {
+        Object[] row = new Object[c.getColumnCount()];
+        for (int i = 0; i < row.length; i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = c.getLong(i);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    row[i] = c.getDouble(i);
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    row[i] = c.getBlob(i);
+                    break;
+                default:
+                    row[i] = c.getString(i);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    private static Cursor toCursor(Result result) {
+        MatrixCursor c = new MatrixCursor(result.columns, result.rows.length);
+        for (Object[] row : result.rows) {
+            c.addRow(row);
+        }
+        return c;
+    }
+
+    private static class Result {
+
+        String[] columns;
+
+        Object[][] rows;
+
+        long size;
+    }
+}
@@ -0,0 +1,109 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * The sections of a level for fast scrolling. Text is divided by its first letter, years
+ * by decade. Sections are added in list order with the number of rows in them, so the
+ * list does not have to be read.
+ */
+public class QuerySections {
+
+    // Section of values not starting with a letter
+    private final static String OTHER = "#";
+
+    private ArrayList<String> mSections = new ArrayList<>();
+
+    private HashSet<String> mLabels = new HashSet<>();
+
+    // First row of each section
+    private ArrayList<Integer> mPositions = new ArrayList<>();
+
+    private int mRows;
+
+    /**
+     * Add rows to the end of the list. Rows with the label of an existing section are added
+     * to the last section. The list is sorted case sensitive, e.g. "abba" follows "Zappa"
+     * but has the label "A", so a label can come again after other labels. Each label is
+     * shown once and the positions stay in list order.
+     *
+     * @param label The section label, see getLabel()
+     * @param rows  The number of rows
+     */
+    public void add(String label, int rows) {
+        if (rows <= 0) {
+            return;
+        }
+        if (!mLabels.contains(label)) {
+            mLabels.add(label);
+            mSections.add(label);
+            mPositions.add(mRows);
+        }
+        mRows += rows;
+    }
+
+    /**
+     * Get the section label of a value
+     *
+     * @param value  The value or null
+     * @param decade true if the value is a year
+     * @return The label
+     */
+    public static String getLabel(String value, boolean decade) {
+        if (value == null || value.isEmpty()) {
+            return OTHER;
+        }
+
+        if (decade) {
+            try {
+                int year = Integer.parseInt(value.trim());
+                return year > 0 ? String.valueOf(year / 10 * 10) : OTHER;
+            } catch (NumberFormatException e) {
+                return OTHER;
+            }
+        }
+
+        int first = value.codePointAt(0);
+        if (!Character.isLetter(first)) {
+            return OTHER;
+        }
+        return new String(Character.toChars(first)).toUpperCase(Locale.getDefault());
+    }
+
+    public Object[] getSections() {
+        return mSections.toArray(new String[mSections.size()]);
+    }
+
+    public int getPositionForSection(int section) {
+        if (mSections.isEmpty()) {
+            return 0;
+        }
+        return mPositions.get(Math.max(0, Math.min(section, mSections.size() - 1)));
+    }
+
+    public int getSectionForPosition(int position) {
+        int index = Collections.binarySearch(mPositions, position);
+        // Not a first row: the section before the insertion point
+        return Math.max(0, index >= 0 ? index : -index - 2);
+    }
+}
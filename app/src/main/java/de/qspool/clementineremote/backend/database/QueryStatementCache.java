@@ -0,0 +1,232 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Caches the statements of the song queries, keyed by table, grouping, level and query
+ * type. All user input is bound as parameter, so the same statement is used for every
+ * selection and search.
+ * <p/>
+ * Queries that return a single number, like the counts, are kept as compiled
+ * SQLiteStatement. Queries that return a cursor can only be run from sql, so only their
+ * sql is cached.
+ * <p/>
+ * The cache also collects the hit rate and the time the queries took, see getStatistics().
+ */
+public class QueryStatementCache {
+
+    private final static String TAG = "QueryStatementCache";
+
+    private final static int MAX_STATEMENTS = 64;
+
+    private final static int MAX_COMPILED_STATEMENTS = 16;
+
+    // Log the statistics after this many queries
+    private final static int LOG_INTERVAL = 100;
+
+    private static QueryStatementCache mInstance;
+
+    public interface StatementBuilder {
+        String build();
+    }
+
+    private LruCache<String, String> mStatements = new LruCache<>(MAX_STATEMENTS);
+
+    private LruCache<String, CompiledStatement> mCompiled
+            = new LruCache<String, CompiledStatement>(MAX_COMPILED_STATEMENTS) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, CompiledStatement oldValue,
+                CompiledStatement newValue) {
+            oldValue.close();
+        }
+    };
+
+    private long mHits;
+
+    private long mMisses;
+
+    private TreeMap<String, Timing> mTimings = new TreeMap<>();
+
+    private long mQueries;
+
+    public static synchronized QueryStatementCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new QueryStatementCache();
+        }
+        return mInstance;
+    }
+
+    private QueryStatementCache() {
+    }
+
+    /**
+     * Get the sql of a query
+     *
+     * @param key     Identifies the query
+     * @param builder Builds the sql if it is not cached
+     * @return The sql
+     */
+    public synchronized String get(String key, StatementBuilder builder) {
+        String sql = mStatements.get(key);
+        if (sql == null) {
+            mMisses++;
+            sql = builder.build();
+            mStatements.put(key, sql);
+        } else {
+            mHits++;
+        }
+        return sql;
+    }
+
+    /**
+     * Run a query that returns a single number with a compiled statement. The statement is
+     * compiled once for each database and kept until it is evicted or the database closed.
+     *
+     * @param db      The database
+     * @param key     Identifies the query
+     * @param builder Builds the sql if the statement is not cached
+     * @param args    The arguments, bound as strings
+     * @return The number in the first column of the first row
+     */
+    public long simpleQueryForLong(SQLiteDatabase db, String key, StatementBuilder builder,
+            String[] args) {
+        while (true) {
+            CompiledStatement compiled = getCompiled(db, key, builder);
+            // A statement is not thread safe, its arguments are bound before it is run
+            synchronized (compiled) {
+                if (compiled.mStatement != null) {
+                    compiled.mStatement.clearBindings();
+                    compiled.mStatement.bindAllArgsAsStrings(args);
+                    return compiled.mStatement.simpleQueryForLong();
+                }
+            }
+            // Evicted by another thread meanwhile
+        }
+    }
+
+    private synchronized CompiledStatement getCompiled(SQLiteDatabase db, String key,
+            StatementBuilder builder) {
+        String compiledKey = db.getPath() + "|" + key;
+        CompiledStatement compiled = mCompiled.get(compiledKey);
+        if (compiled != null && compiled.mDatabase == db && db.isOpen()) {
+            mHits++;
+            return compiled;
+        }
+
+        mMisses++;
+        String sql = mStatements.get(key);
+        if (sql == null) {
+            sql = builder.build();
+            mStatements.put(key, sql);
+        }
+        compiled = new CompiledStatement(db, db.compileStatement(sql));
+        // Closes the statement of a closed database
+        mCompiled.put(compiledKey, compiled);
+        return compiled;
+    }
+
+    /**
+     * Record the time a query took
+     *
+     * @param type     The type of the query, e.g. "browse" or "search"
+     * @param duration The time in milliseconds
+     */
+    public synchronized void recordQuery(String type, long duration) {
+        Timing timing = mTimings.get(type);
+        if (timing == null) {
+            timing = new Timing();
+            mTimings.put(type, timing);
+        }
+        timing.count++;
+        timing.total += duration;
+        timing.max = Math.max(timing.max, duration);
+
+        if (++mQueries % LOG_INTERVAL == 0) {
+            Log.d(TAG, getStatistics());
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return The ratio of cache hits, between 0 and 1
+     */
+    public synchronized float getHitRate() {
+        long total = mHits + mMisses;
+        return total == 0 ? 0 : (float) mHits / total;
+    }
+
+    /**
+     * @return The hit rate and the query times by type as readable text
+     */
+    public synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Statements: %d hits, %d misses (%.1f%%)",
+                mHits, mMisses, getHitRate() * 100));
+        for (Map.Entry<String, Timing> entry : mTimings.entrySet()) {
+            Timing timing = entry.getValue();
+            sb.append(String.format(Locale.US, "\n%s: %d queries, avg %.1fms, max %dms",
+                    entry.getKey(), timing.count, (float) timing.total / timing.count,
+                    timing.max));
+        }
+        return sb.toString();
+    }
+
+    private static class CompiledStatement {
+
+        SQLiteDatabase mDatabase;
+
+        SQLiteStatement mStatement;
+
+        CompiledStatement(SQLiteDatabase database, SQLiteStatement statement) {
+            mDatabase = database;
+            mStatement = statement;
+        }
+
+        synchronized void close() {
+            if (mStatement != null) {
+                mStatement.close();
+                mStatement = null;
+            }
+        }
+    }
+
+    private static class Timing {
+
+        long count;
+
+        long total;
+
+        long max;
+    }
+}
@@ -17,7 +17,10 @@
 
 package de.qspool.clementineremote.backend.globalsearch;
 
+import android.util.Log;
+
 import java.util.LinkedList;
+import java.util.Locale;
 
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.backend.listener.OnGlobalSearchResponseListener;
@@ -26,6 +29,8 @@ import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer;
 
 public class GlobalSearchManager {
 
+    private final static String TAG = "GlobalSearchManager";
+
     private int mCurrentId = -1;
 
     private GlobalSearchRequest mRequest;
@@ -33,6 +38,10 @@ public class GlobalSearchManager {
     private GlobalSearchDatabaseHelper mGlobalSearchDatabaseHelper = new GlobalSearchDatabaseHelper(
             App.getApp());
 
+    private GlobalSearchResultStore mGlobalSearchResultStore = new GlobalSearchResultStore();
+
+    private GlobalSearchWriter mGlobalSearchWriter;
+
     private LinkedList<OnGlobalSearchResponseListener> mListeners = new LinkedList<>();
 
     private GlobalSearchProviderIconStore mGlobalSearchProviderIconStore
@@ -48,6 +57,13 @@ public class GlobalSearchManager {
     }
 
     private GlobalSearchManager() {
+        mGlobalSearchWriter = new GlobalSearchWriter(mGlobalSearchDatabaseHelper,
+                mGlobalSearchResultStore, new GlobalSearchWriter.OnResultsWrittenListener() {
+                    @Override
+                    public void OnResultsWritten(int id) {
+                        fireOnResultsReceived(id);
+                    }
+                });
         reset();
     }
 
@@ -55,7 +71,7 @@ public class GlobalSearchManager {
         mRequest = null;
         mCurrentId = -1;
 
-        mGlobalSearchDatabaseHelper.deleteAll();
+        mGlobalSearchWriter.deleteAll();
     }
 
     public void parseClementineMessage(ClementineMessage clementineMessage) {
@@ -85,31 +101,43 @@ public class GlobalSearchManager {
         }
 
         mRequest.addSearchResults(responseGlobalSearch);
+        mGlobalSearchWriter.write(responseGlobalSearch);
 
         // Add the icon to the store
         getGlobalSearchProviderIconStore().insertProvider(responseGlobalSearch.getSearchProvider(),
                 responseGlobalSearch.getSearchProviderIcon());
-
-        fireOnResultsReceived(id);
     }
 
     private void parseGlobalSearchStatus(
             ClementineRemoteProtocolBuffer.ResponseGlobalSearchStatus responseGlobalSearchStatus) {
-        int id = responseGlobalSearchStatus.getId();
+        final int id = responseGlobalSearchStatus.getId();
+        final ClementineRemoteProtocolBuffer.GlobalSearchStatus status
+                = responseGlobalSearchStatus.getStatus();
 
-        switch (responseGlobalSearchStatus.getStatus()) {
+        switch (status) {
             case GlobalSearchStarted:
-                mRequest = new GlobalSearchRequest(id, mGlobalSearchDatabaseHelper);
+                mRequest = new GlobalSearchRequest(id);
                 mCurrentId = id;
                 break;
             case GlobalSearchFinished:
                 if (id == mCurrentId) {
-                    mRequest.setStatus(responseGlobalSearchStatus.getStatus());
+                    mRequest.setStatus(status);
                 }
                 break;
         }
 
-        fireOnStatusChanged(id, responseGlobalSearchStatus.getStatus());
+        // The list reads the results when the search finished, so they have to be written
+        mGlobalSearchWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                if (status
+                        == ClementineRemoteProtocolBuffer.GlobalSearchStatus.GlobalSearchFinished) {
+                    Log.d(TAG, String.format(Locale.US, "Search %d written, %.0f results/s", id,
+                            getIngestRate()));
+                }
+                fireOnStatusChanged(id, status);
+            }
+        });
     }
 
     public void addOnGlobalSearchResponseListerner(OnGlobalSearchResponseListener l) {
@@ -137,6 +165,21 @@ public class GlobalSearchManager {
         return mGlobalSearchProviderIconStore;
     }
 
+    public GlobalSearchDatabaseHelper getDatabaseHelper() {
+        return mGlobalSearchDatabaseHelper;
+    }
+
+    public GlobalSearchResultStore getResultStore() {
+        return mGlobalSearchResultStore;
+    }
+
+    /**
+     * @return The results written per second
+     */
+    public float getIngestRate() {
+        return mGlobalSearchWriter.getIngestRate();
+    }
+
     public GlobalSearchRequest getRequest() {
         return mRequest;
     }
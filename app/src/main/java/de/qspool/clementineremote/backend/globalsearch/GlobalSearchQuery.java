@@ -73,13 +73,26 @@ public class GlobalSearchQuery extends DynamicSongQuery {
         return GlobalSearchDatabaseHelper.TABLE_NAME;
     }
 
+    @Override
+    protected Cursor queryBrowseIndex(String[] fields, int level, String[] selection,
+            boolean descending) {
+        return getResultStore().query(mQueryId, fields, level, selection, descending);
+    }
+
+    /**
+     * @return The results held in memory
+     */
+    protected GlobalSearchResultStore getResultStore() {
+        return GlobalSearchManager.getInstance().getResultStore();
+    }
+
     @Override
     public SQLiteDatabase getReadableDatabase() {
-        return new GlobalSearchDatabaseHelper(mContext).getReadableDatabase();
+        return GlobalSearchManager.getInstance().getDatabaseHelper().getReadableDatabase();
     }
 
     @Override
-    public String getMatchesSubQuery(String match) {
+    public String getMatchesSubQuery() {
         return "";
     }
 
@@ -17,9 +17,6 @@
 
 package de.qspool.clementineremote.backend.globalsearch;
 
-import android.content.ContentValues;
-import android.database.sqlite.SQLiteDatabase;
-
 import java.util.HashMap;
 
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer;
@@ -27,15 +24,12 @@ import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer;
 public class GlobalSearchRequest {
     private int mId;
 
-    private GlobalSearchDatabaseHelper mGlobalSearchDatabaseHelper;
-
     private ClementineRemoteProtocolBuffer.GlobalSearchStatus mStatus;
 
     private HashMap<String, ClementineRemoteProtocolBuffer.SongMetadata> mUrlMetadata = new HashMap<>();
 
-    public GlobalSearchRequest(int id, GlobalSearchDatabaseHelper db) {
+    public GlobalSearchRequest(int id) {
         mId = id;
-        mGlobalSearchDatabaseHelper = db;
         mStatus = ClementineRemoteProtocolBuffer.GlobalSearchStatus.GlobalSearchStarted;
     }
 
@@ -52,46 +46,15 @@ public class GlobalSearchRequest {
         mStatus = status;
     }
 
+    /**
+     * Remember the songs of a result message. The songs are written to the database by the
+     * GlobalSearchWriter.
+     */
     public void addSearchResults(
             ClementineRemoteProtocolBuffer.ResponseGlobalSearch searchResult) {
-
-        SQLiteDatabase db = mGlobalSearchDatabaseHelper.getWritableDatabase();
-        db.beginTransaction();
-
         for (ClementineRemoteProtocolBuffer.SongMetadata song : searchResult.getSongMetadataList()) {
-            ContentValues contentValues = new ContentValues();
-
-            contentValues.put("global_search_id", getId());
-            contentValues.put("search_query", searchResult.getQuery());
-            contentValues.put("search_provider", searchResult.getSearchProvider());
-
-            contentValues.put("title", song.getTitle());
-            contentValues.put("album", song.getAlbum());
-            contentValues.put("artist", song.getArtist());
-            contentValues.put("albumartist", song.getAlbumartist());
-            contentValues.put("track", song.getTrack());
-            contentValues.put("disc", song.getDisc());
-            contentValues.put("pretty_year", song.getPrettyYear());
-            contentValues.put("genre", song.getGenre());
-            contentValues.put("pretty_length", song.getPrettyLength());
-            try {
-                contentValues.put("year", Integer.parseInt(song.getPrettyYear()));
-            } catch (NumberFormatException e) {
-                contentValues.put("year", -1);
-            }
-            contentValues.put("filename", song.getUrl()); // filename is url
-            contentValues.put("is_local", song.getIsLocal() ? 1 : 0);
-            contentValues.put("filesize", song.getFileSize());
-            contentValues.put("rating", song.getRating());
-
-            db.insert(GlobalSearchDatabaseHelper.TABLE_NAME, null, contentValues);
-
             mUrlMetadata.put(song.getUrl(), song);
         }
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
-        db.close();
     }
 
     public ClementineRemoteProtocolBuffer.SongMetadata getSongFromUrl(String url) {
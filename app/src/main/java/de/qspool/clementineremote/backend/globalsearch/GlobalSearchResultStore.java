@@ -0,0 +1,543 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.globalsearch;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseGlobalSearch;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.SongMetadata;
+
+/**
+ * Holds the results of the current global search in memory, one array per column. It
+ * answers the same levels as the sql of DynamicSongQuery, grouped by the fields of the
+ * GlobalSearchQuery.
+ * <p/>
+ * Only one search is held. If a search has more than MAX_ROWS results, it is written to
+ * the database instead and query() returns null, so the sql is used.
+ */
+public class GlobalSearchResultStore {
+
+    private final static int MAX_ROWS = 20000;
+
+    private final static int INITIAL_ROWS = 256;
+
+    private final static String[] STRING_FIELDS = new String[]{"search_provider", "title",
+            "album", "artist", "albumartist", "genre", "filename"};
+
+    private final static String[] INT_FIELDS = new String[]{"year", "track", "disc"};
+
+    private int mSearchId = -1;
+
+    private boolean mOverflow;
+
+    private Columns mColumns = new Columns(INITIAL_ROWS);
+
+    // The messages of the search, written to the database on overflow
+    private ArrayList<ResponseGlobalSearch> mMessages = new ArrayList<>();
+
+    // Equal values share one string
+    private HashMap<String, String> mStrings = new HashMap<>();
+
+    // Rows by value for each field, built on the first query
+    private HashMap<String, HashMap<String, int[]>> mGroupIndexes = new HashMap<>();
+
+    /**
+     * The values of the rows. Rows are only appended and a full array is copied, so a
+     * cursor can keep reading the arrays it got while rows are added.
+     */
+    private static class Columns {
+
+        int rows;
+
+        String[][] strings;
+
+        int[][] ints;
+
+        Columns(int capacity) {
+            strings = new String[STRING_FIELDS.length][capacity];
+            ints = new int[INT_FIELDS.length][capacity];
+        }
+
+        Columns grow() {
+            Columns columns = new Columns(0);
+            columns.rows = rows;
+            for (int i = 0; i < strings.length; i++) {
+                columns.strings[i] = Arrays.copyOf(strings[i], strings[i].length * 2);
+            }
+            for (int i = 0; i < ints.length; i++) {
+                columns.ints[i] = Arrays.copyOf(ints[i], ints[i].length * 2);
+            }
+            return columns;
+        }
+
+        String getValue(int field, int row) {
+            if (field < STRING_FIELDS.length) {
+                return strings[field][row];
+            }
+            return String.valueOf(ints[field - STRING_FIELDS.length][row]);
+        }
+
+        int getInt(int field, int row) {
+            return ints[field - STRING_FIELDS.length][row];
+        }
+    }
+
+    /**
+     * Add the songs of a result message
+     *
+     * @return false if the search has too many results and has to be written to the
+     * database
+     */
+    public synchronized boolean add(ResponseGlobalSearch result) {
+        if (result.getId() != mSearchId) {
+            clear();
+            mSearchId = result.getId();
+        }
+
+        if (mOverflow || mColumns.rows + result.getSongMetadataCount() > MAX_ROWS) {
+            return false;
+        }
+
+        mMessages.add(result);
+        for (SongMetadata song : result.getSongMetadataList()) {
+            if (mColumns.rows == mColumns.strings[0].length) {
+                mColumns = mColumns.grow();
+            }
+
+            int row = mColumns.rows;
+            String[] values = new String[]{result.getSearchProvider(), song.getTitle(),
+                    song.getAlbum(), song.getArtist(), song.getAlbumartist(), song.getGenre(),
+                    song.getUrl()};
+            for (int i = 0; i < values.length; i++) {
+                mColumns.strings[i][row] = intern(values[i]);
+            }
+
+            int year;
+            try {
+                year = Integer.parseInt(song.getPrettyYear());
+            } catch (NumberFormatException e) {
+                year = -1;
+            }
+            mColumns.ints[0][row] = year;
+            mColumns.ints[1][row] = song.getTrack();
+            mColumns.ints[2][row] = song.getDisc();
+            mColumns.rows++;
+        }
+        mGroupIndexes.clear();
+
+        return true;
+    }
+
+    /**
+     * Get the messages of the current search, to write them to the database after add()
+     * returned false. They are kept until overflow() is called.
+     *
+     * @return The messages added so far
+     */
+    public synchronized List<ResponseGlobalSearch> getMessages() {
+        return new ArrayList<>(mMessages);
+    }
+
+    /**
+     * Give up the results of a search, because it has too many. Later results of the
+     * search are not added. Call it after the messages of getMessages() were committed.
+     *
+     * @param searchId The id of the search. Nothing happens if it is not the current one.
+     */
+    public synchronized void overflow(int searchId) {
+        if (searchId != mSearchId) {
+            return;
+        }
+        clear();
+        mSearchId = searchId;
+        mOverflow = true;
+    }
+
+    public synchronized void clear() {
+        mSearchId = -1;
+        mOverflow = false;
+        mColumns = new Columns(INITIAL_ROWS);
+        mMessages = new ArrayList<>();
+        mStrings.clear();
+        mGroupIndexes.clear();
+    }
+
+    private String intern(String value) {
+        String s = mStrings.get(value);
+        if (s == null) {
+            mStrings.put(value, value);
+            s = value;
+        }
+        return s;
+    }
+
+    /**
+     * Get a level of the results
+     *
+     * @param searchId   The id of the search
+     * @param fields     The fields of the grouping
+     * @param level      The level
+     * @param selection  The values of the levels above
+     * @param descending true if the list is sorted descending
+     * @return A cursor with the columns of DynamicSongQuery or null if the results are not
+     * in memory
+     */
+    public synchronized Cursor query(int searchId, String[] fields, int level,
+            String[] selection, boolean descending) {
+        if (searchId != mSearchId || mOverflow || selection.length != level
+                || level >= fields.length) {
+            return null;
+        }
+
+        int[] fieldIndexes = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fieldIndexes[i] = getFieldIndex(fields[i]);
+            if (fieldIndexes[i] < 0) {
+                return null;
+            }
+        }
+
+        final Columns columns = mColumns;
+        int[] rows = selectRows(columns, fields, fieldIndexes, selection);
+
+        if (level == fields.length - 1) {
+            return new ResultCursor(columns, fields, fieldIndexes, true,
+                    sortSongs(columns, rows, descending), null);
+        }
+
+        // Group by the value of the level, the first row of a group represents it
+        final int field = fieldIndexes[level];
+        int nextField = fieldIndexes[level + 1];
+        HashMap<String, Integer> groups = new HashMap<>();
+        ArrayList<Integer> firstRows = new ArrayList<>();
+        ArrayList<HashSet<String>> children = new ArrayList<>();
+        for (int row : rows) {
+            String value = columns.getValue(field, row);
+            Integer group = groups.get(value);
+            if (group == null) {
+                group = firstRows.size();
+                groups.put(value, group);
+                firstRows.add(row);
+                children.add(new HashSet<String>());
+            }
+            children.get(group).add(columns.getValue(nextField, row));
+        }
+
+        Integer[] order = new Integer[firstRows.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final ArrayList<Integer> groupRows = firstRows;
+        final boolean numeric = field >= STRING_FIELDS.length;
+        final int direction = descending ? -1 : 1;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int l = groupRows.get(lhs);
+                int r = groupRows.get(rhs);
+                if (numeric) {
+                    return direction * compareInts(columns.getInt(field, l),
+                            columns.getInt(field, r));
+                }
+                return direction * columns.getValue(field, l)
+                        .compareTo(columns.getValue(field, r));
+            }
+        });
+
+        int[] groupedRows = new int[order.length];
+        int[] counts = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            groupedRows[i] = firstRows.get(order[i]);
+            counts[i] = children.get(order[i]).size();
+        }
+        return new ResultCursor(columns, fields, fieldIndexes, false, groupedRows, counts);
+    }
+
+    /**
+     * Find the rows matching the selection. The first selected field is looked up in its
+     * group index, the others are compared.
+     */
+    private int[] selectRows(Columns columns, String[] fields, int[] fieldIndexes,
+            String[] selection) {
+        if (selection.length == 0) {
+            int[] rows = new int[columns.rows];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+            return rows;
+        }
+
+        int[] candidates = getGroupIndex(columns, fields[0], fieldIndexes[0])
+                .get(selection[0]);
+        if (candidates == null) {
+            return new int[0];
+        }
+
+        int[] rows = new int[candidates.length];
+        int count = 0;
+        for (int row : candidates) {
+            boolean matches = true;
+            for (int i = 1; i < selection.length && matches; i++) {
+                matches = columns.getValue(fieldIndexes[i], row).equals(selection[i]);
+            }
+            if (matches) {
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    private HashMap<String, int[]> getGroupIndex(Columns columns, String name, int field) {
+        HashMap<String, int[]> index = mGroupIndexes.get(name);
+        if (index != null) {
+            return index;
+        }
+
+        HashMap<String, ArrayList<Integer>> lists = new HashMap<>();
+        for (int row = 0; row < columns.rows; row++) {
+            String value = columns.getValue(field, row);
+            ArrayList<Integer> list = lists.get(value);
+            if (list == null) {
+                list = new ArrayList<>();
+                lists.put(value, list);
+            }
+            list.add(row);
+        }
+
+        index = new HashMap<>();
+        for (String value : lists.keySet()) {
+            List<Integer> list = lists.get(value);
+            int[] rows = new int[list.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = list.get(i);
+            }
+            index.put(value, rows);
+        }
+        mGroupIndexes.put(name, index);
+        return index;
+    }
+
+    /**
+     * Sort the songs by album, disc and track, like the title level. Only the track is
+     * reversed.
+     */
+    private int[] sortSongs(final Columns columns, int[] rows, final boolean descending) {
+        final int album = getFieldIndex("album");
+        final int disc = getFieldIndex("disc");
+        final int track = getFieldIndex("track");
+
+        List<Integer> sorted = new ArrayList<>();
+        for (int row : rows) {
+            sorted.add(row);
+        }
+        Collections.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int cmp = columns.getValue(album, lhs).compareTo(columns.getValue(album, rhs));
+                if (cmp == 0) {
+                    cmp = compareInts(columns.getInt(disc, lhs), columns.getInt(disc, rhs));
+                }
+                if (cmp == 0) {
+                    cmp = compareInts(columns.getInt(track, lhs), columns.getInt(track, rhs));
+                    cmp = descending ? -cmp : cmp;
+                }
+                if (cmp == 0) {
+                    cmp = compareInts(lhs, rhs);
+                }
+                return cmp;
+            }
+        });
+
+        int[] result = new int[sorted.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sorted.get(i);
+        }
+        return result;
+    }
+
+    private static int compareInts(int lhs, int rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    /**
+     * @return The column of a field or -1 if it is not stored
+     */
+    private static int getFieldIndex(String field) {
+        int index = Arrays.asList(STRING_FIELDS).indexOf(field);
+        if (index >= 0) {
+            return index;
+        }
+        index = Arrays.asList(INT_FIELDS).indexOf(field);
+        return index < 0 ? -1 : STRING_FIELDS.length + index;
+    }
+
+    /**
+     * A level read from the columns. Rows of a group level are the first row of each
+     * group.
+     */
+    private static class ResultCursor extends AbstractCursor {
+
+        private final static int FILENAME = getFieldIndex("filename");
+
+        private final static int ARTIST = getFieldIndex("artist");
+
+        private final static int ALBUM = getFieldIndex("album");
+
+        private final static int DISC = getFieldIndex("disc");
+
+        private final static int TRACK = getFieldIndex("track");
+
+        private Columns mColumns;
+
+        private String[] mFields;
+
+        private int[] mFieldIndexes;
+
+        private boolean mTitleLevel;
+
+        private int[] mRows;
+
+        private int[] mCounts;
+
+        ResultCursor(Columns columns, String[] fields, int[] fieldIndexes, boolean titleLevel,
+                int[] rows, int[] counts) {
+            mColumns = columns;
+            mFields = fields;
+            mFieldIndexes = fieldIndexes;
+            mTitleLevel = titleLevel;
+            mRows = rows;
+            mCounts = counts;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            String[] columns = new String[mFields.length + (mTitleLevel ? 6 : 5)];
+            columns[0] = "_id";
+            System.arraycopy(mFields, 0, columns, 1, mFields.length);
+            columns[mFields.length + 1] = "url";
+            columns[mFields.length + 2] = "artist";
+            columns[mFields.length + 3] = "album";
+            if (mTitleLevel) {
+                columns[mFields.length + 4] = "disc";
+                columns[mFields.length + 5] = "track";
+            } else {
+                columns[mFields.length + 4] = "count";
+            }
+            return columns;
+        }
+
+        /**
+         * @return The stored field of a column or -1 for the id and the count
+         */
+        private int getField(int column) {
+            int fields = mFields.length;
+            if (column >= 1 && column <= fields) {
+                return mFieldIndexes[column - 1];
+            } else if (column == fields + 1) {
+                return FILENAME;
+            } else if (column == fields + 2) {
+                return ARTIST;
+            } else if (column == fields + 3) {
+                return ALBUM;
+            } else if (column == fields + 4 && mTitleLevel) {
+                return DISC;
+            } else if (column == fields + 5) {
+                return TRACK;
+            }
+            return -1;
+        }
+
+        @Override
+        public String getString(int column) {
+            int field = getField(column);
+            if (field < 0) {
+                return String.valueOf(getLong(column));
+            }
+            return mColumns.getValue(field, mRows[getPosition()]);
+        }
+
+        @Override
+        public long getLong(int column) {
+            int row = mRows[getPosition()];
+            if (column == 0) {
+                // Like the ROWID, starting at 1
+                return row + 1;
+            }
+
+            int field = getField(column);
+            if (field < 0) {
+                return mCounts[getPosition()];
+            } else if (field >= STRING_FIELDS.length) {
+                return mColumns.getInt(field, row);
+            }
+            try {
+                return Long.parseLong(mColumns.getValue(field, row));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public int getType(int column) {
+            int field = getField(column);
+            if (field < 0 || field >= STRING_FIELDS.length) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return false;
+        }
+    }
+}
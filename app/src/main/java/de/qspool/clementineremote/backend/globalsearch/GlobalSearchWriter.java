@@ -0,0 +1,280 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.globalsearch;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseGlobalSearch;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.SongMetadata;
+
+/**
+ * Writes the global search results on its own thread, so the connection does not wait
+ * for the database. Results are kept in the GlobalSearchResultStore, only searches with
+ * too many results are written to the database.
+ * <p/>
+ * The database stays open and the insert is compiled once. Result messages that arrive
+ * while a transaction is written are committed together.
+ * <p/>
+ * Other work is posted with post() and runs after all results before it are committed,
+ * e.g. telling the list that a search finished.
+ */
+public class GlobalSearchWriter implements Runnable {
+
+    private final static String TAG = "GlobalSearchWriter";
+
+    // Commit after this many rows, even if more results are waiting
+    private final static int MAX_TRANSACTION_ROWS = 2000;
+
+    // Log the ingest rate after this many commits
+    private final static int LOG_INTERVAL = 20;
+
+    public final static String INSERT = "INSERT INTO " + GlobalSearchDatabaseHelper.TABLE_NAME
+            + " (global_search_id, search_query, search_provider, title, album, artist,"
+            + " albumartist, track, disc, pretty_year, year, genre, pretty_length, filename,"
+            + " is_local, filesize, rating) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
+            + " ?, ?, ?)";
+
+    public interface OnResultsWrittenListener {
+        void OnResultsWritten(int id);
+    }
+
+    private GlobalSearchDatabaseHelper mGlobalSearchDatabaseHelper;
+
+    private GlobalSearchResultStore mResultStore;
+
+    private OnResultsWrittenListener mListener;
+
+    // Results to insert and runnables to run, in the order they arrived
+    private LinkedBlockingQueue<Object> mQueue = new LinkedBlockingQueue<>();
+
+    private SQLiteDatabase mDatabase;
+
+    private SQLiteStatement mInsert;
+
+    private long mRows;
+
+    private long mCommits;
+
+    private long mWriteTime;
+
+    public GlobalSearchWriter(GlobalSearchDatabaseHelper helper,
+            GlobalSearchResultStore resultStore, OnResultsWrittenListener listener) {
+        mGlobalSearchDatabaseHelper = helper;
+        mResultStore = resultStore;
+        mListener = listener;
+
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Insert the songs of a result message
+     */
+    public void write(ResponseGlobalSearch result) {
+        mQueue.add(result);
+    }
+
+    /**
+     * Run a task after the results written before are committed
+     */
+    public void post(Runnable runnable) {
+        mQueue.add(runnable);
+    }
+
+    /**
+     * Delete all results, after the results written before
+     */
+    public void deleteAll() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mResultStore.clear();
+                try {
+                    getDatabase().execSQL("DELETE FROM " + GlobalSearchDatabaseHelper.TABLE_NAME);
+                } catch (SQLiteException e) {
+                    Log.w(TAG, "Cannot delete results: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (true) {
+            Object item;
+            try {
+                item = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (item instanceof Runnable) {
+                ((Runnable) item).run();
+            } else {
+                writeResults((ResponseGlobalSearch) item);
+            }
+        }
+    }
+
+    /**
+     * Add the result and the results waiting behind it to the store. Results that do not
+     * fit are inserted into the database in one transaction.
+     */
+    private void writeResults(ResponseGlobalSearch first) {
+        long start = SystemClock.elapsedRealtime();
+        TreeSet<Integer> ids = new TreeSet<>();
+        ids.add(first.getId());
+        int rows = first.getSongMetadataCount();
+
+        if (!mResultStore.add(first)) {
+            // The search whose held results are inserted in this transaction
+            int overflowId = first.getId();
+            try {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    rows = insertOverflow(first, true);
+
+                    while (rows < MAX_TRANSACTION_ROWS
+                            && mQueue.peek() instanceof ResponseGlobalSearch) {
+                        ResponseGlobalSearch result = (ResponseGlobalSearch) mQueue.poll();
+                        ids.add(result.getId());
+                        if (mResultStore.add(result)) {
+                            rows += result.getSongMetadataCount();
+                        } else {
+                            rows += insertOverflow(result, result.getId() != overflowId);
+                            overflowId = result.getId();
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (SQLiteException e) {
+                // The store keeps the held results, the next result of the search
+                // inserts them again
+                Log.w(TAG, "Cannot write results: " + e.getMessage());
+                return;
+            }
+
+            // Only drop the held results once they are committed
+            mResultStore.overflow(overflowId);
+        }
+
+        recordCommit(rows, SystemClock.elapsedRealtime() - start);
+
+        for (int id : ids) {
+            mListener.OnResultsWritten(id);
+        }
+    }
+
+    /**
+     * Insert a result of a search with too many results for the store
+     *
+     * @param withHeld true to insert the results the store held so far before it. They
+     *                 stay in the store until the transaction is committed.
+     * @return The number of inserted rows
+     */
+    private int insertOverflow(ResponseGlobalSearch result, boolean withHeld) {
+        int rows = 0;
+        if (withHeld) {
+            for (ResponseGlobalSearch held : mResultStore.getMessages()) {
+                rows += insert(held);
+            }
+        }
+        return rows + insert(result);
+    }
+
+    private int insert(ResponseGlobalSearch result) {
+        return insert(mInsert, result);
+    }
+
+    /**
+     * Insert the songs of a result message
+     *
+     * @param insert The compiled INSERT
+     * @param result The result message
+     * @return The number of inserted rows
+     */
+    public static int insert(SQLiteStatement insert, ResponseGlobalSearch result) {
+        for (SongMetadata song : result.getSongMetadataList()) {
+            insert.clearBindings();
+            insert.bindLong(1, result.getId());
+            insert.bindString(2, result.getQuery());
+            insert.bindString(3, result.getSearchProvider());
+            insert.bindString(4, song.getTitle());
+            insert.bindString(5, song.getAlbum());
+            insert.bindString(6, song.getArtist());
+            insert.bindString(7, song.getAlbumartist());
+            insert.bindLong(8, song.getTrack());
+            insert.bindLong(9, song.getDisc());
+            insert.bindString(10, song.getPrettyYear());
+            try {
+                insert.bindLong(11, Integer.parseInt(song.getPrettyYear()));
+            } catch (NumberFormatException e) {
+                insert.bindLong(11, -1);
+            }
+            insert.bindString(12, song.getGenre());
+            insert.bindString(13, song.getPrettyLength());
+            insert.bindString(14, song.getUrl()); // filename is url
+            insert.bindLong(15, song.getIsLocal() ? 1 : 0);
+            insert.bindLong(16, song.getFileSize());
+            insert.bindDouble(17, song.getRating());
+            insert.executeInsert();
+        }
+        return result.getSongMetadataCount();
+    }
+
+    private SQLiteDatabase getDatabase() {
+        if (mDatabase == null || !mDatabase.isOpen()) {
+            mDatabase = mGlobalSearchDatabaseHelper.getWritableDatabase();
+            mInsert = mDatabase.compileStatement(INSERT);
+        }
+        return mDatabase;
+    }
+
+    private synchronized void recordCommit(int rows, long duration) {
+        mRows += rows;
+        mCommits++;
+        mWriteTime += duration;
+
+        if (mCommits % LOG_INTERVAL == 0) {
+            Log.d(TAG, String.format(Locale.US, "Wrote %d results in %d commits, %.0f rows/s",
+                    mRows, mCommits, getIngestRate()));
+        }
+    }
+
+    /**
+     * @return The rows written per second of writing
+     */
+    public synchronized float getIngestRate() {
+        return mWriteTime == 0 ? 0 : mRows * 1000f / mWriteTime;
+    }
+}
@@ -0,0 +1,890 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import de.qspool.clementineremote.backend.database.QuerySections;
+
+/**
+ * A prebuilt index of the library levels of every grouping, so browsing the library needs
+ * no sql queries. The file is memory mapped and read in place.
+ * <p/>
+ * The file has a string table sorted like sqlite sorts text (by utf-8 bytes), so a string
+ * id compares like the string. Songs refer to their values by string id. For each grouping
+ * the nodes of every level are stored in sort order; a node holds its value, the range of
+ * its children in the next level and the number of items shown in the list. The nodes of
+ * the last level point to a range of the songs of the grouping.
+ * <p/>
+ * The index is written after the library changed and deleted when it gets stale.
+ */
+public class BrowseIndex {
+
+    private final static String TAG = "BrowseIndex";
+
+    private final static int MAGIC = 0x43524249; // CRBI
+
+    private final static int VERSION = 1;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    // Columns of a song record
+    private final static int SONG_ROWID = 0;
+
+    private final static int SONG_URL = 7;
+
+    private final static int SONG_DISC = 8;
+
+    private final static int SONG_TRACK = 9;
+
+    private final static int SONG_INTS = 10;
+
+    // Fields that can be grouped by, at their column in the song record
+    private final static String[] SONG_FIELDS = new String[]{null, "artist", "album",
+            "albumartist", "year", "genre", "title"};
+
+    private final static int SONG_ALBUM = 2;
+
+    // Sort order of the songs of a node, the track is descending in descending order
+    private final static int[] SONG_ORDER = new int[]{SONG_ALBUM, SONG_DISC, SONG_TRACK,
+            SONG_ROWID};
+
+    // Columns of a node record
+    private final static int NODE_VALUE = 0;
+
+    private final static int NODE_FIRST_CHILD = 1;
+
+    private final static int NODE_CHILD_COUNT = 2;
+
+    private final static int NODE_ITEM_COUNT = 3;
+
+    private final static int NODE_SONG = 4;
+
+    private final static int NODE_INTS = 5;
+
+    private MappedByteBuffer mBuffer;
+
+    private int mStringCount;
+
+    private int mStringOffsets;
+
+    private int mStrings;
+
+    private int mSongs;
+
+    private HashMap<String, Grouping> mGroupings = new HashMap<>();
+
+    private BrowseIndex(MappedByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a browse index");
+        }
+        mStringCount = buffer.getInt(8);
+        int stringBytes = buffer.getInt(12);
+        int songCount = buffer.getInt(16);
+        int groupingCount = buffer.getInt(20);
+
+        mStringOffsets = 24;
+        mStrings = mStringOffsets + 4 * (mStringCount + 1);
+        mSongs = mStrings + align(stringBytes);
+
+        int pos = mSongs + 4 * SONG_INTS * songCount;
+        for (int i = 0; i < groupingCount; i++) {
+            byte[] key = new byte[buffer.getInt(pos)];
+            pos += 4;
+            for (int j = 0; j < key.length; j++) {
+                key[j] = buffer.get(pos + j);
+            }
+            pos += align(key.length);
+
+            Grouping grouping = new Grouping();
+            int levels = buffer.getInt(pos);
+            pos += 4;
+            grouping.levelOffsets = new int[levels];
+            grouping.levelCounts = new int[levels];
+            for (int level = 0; level < levels; level++) {
+                grouping.levelCounts[level] = buffer.getInt(pos);
+                grouping.levelOffsets[level] = pos + 4;
+                int ints = level < levels - 1 ? NODE_INTS : 1;
+                pos += 4 + 4 * ints * grouping.levelCounts[level];
+            }
+            mGroupings.put(new String(key, UTF8), grouping);
+        }
+    }
+
+    /**
+     * Map an index file
+     *
+     * @param file The file written by build()
+     * @return The index
+     * @throws IOException if the file cannot be read or is no browse index
+     */
+    public static BrowseIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the file is closed
+            return new BrowseIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    raf.length()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get a level of the library
+     *
+     * @param fields     The fields of the grouping
+     * @param level      The level
+     * @param selection  The values of the levels above
+     * @param descending true if the list is sorted descending
+     * @return A cursor with the columns of DynamicSongQuery or null if the grouping is not
+     * in the index
+     */
+    public Cursor query(String[] fields, int level, String[] selection, boolean descending) {
+        Grouping grouping = mGroupings.get(TextUtils.join(",", fields));
+        int[] range = findRange(grouping, fields, level, selection);
+        if (range == null) {
+            return null;
+        }
+        int start = range[0];
+        int count = range[1];
+
+        int[] rows = new int[count];
+        if (level == fields.length - 1) {
+            // Songs of the node, by album, disc and track. Only the track is reversed.
+            for (int i = 0; i < count; i++) {
+                rows[i] = mBuffer.getInt(grouping.levelOffsets[level] + 4 * (start + i));
+            }
+            if (descending) {
+                rows = sortDescending(rows);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                rows[i] = descending ? start + count - 1 - i : start + i;
+            }
+        }
+
+        return new BrowseCursor(fields, level, grouping.levelOffsets[level], rows);
+    }
+
+    /**
+     * Divide a level into sections for fast scrolling, like DynamicSongQuery does. Rows
+     * starting with the same letter are next to each other, so the end of each run is
+     * found by binary search and only a few rows per section are read.
+     *
+     * @param fields     The fields of the grouping
+     * @param level      The level
+     * @param selection  The values of the levels above
+     * @param descending true if the list is sorted descending
+     * @param decade     true if the level is divided by decade
+     * @return The sections or null if the grouping is not in the index
+     */
+    public QuerySections querySections(String[] fields, int level, String[] selection,
+            boolean descending, boolean decade) {
+        Grouping grouping = mGroupings.get(TextUtils.join(",", fields));
+        int[] range = findRange(grouping, fields, level, selection);
+        if (range == null) {
+            return null;
+        }
+
+        SectionKeys keys = new SectionKeys(grouping.levelOffsets[level], range[0], range[1],
+                level == fields.length - 1 ? SONG_ALBUM
+                        : Arrays.asList(SONG_FIELDS).indexOf(fields[level]),
+                level == fields.length - 1, descending, decade);
+
+        QuerySections sections = new QuerySections();
+        int count = range[1];
+        int row = 0;
+        while (row < count) {
+            int key = keys.get(row);
+
+            // Double the step until the run ends, then search the end between the steps
+            int last = row;
+            int end = row + 1;
+            while (end < count && keys.get(end) == key) {
+                last = end;
+                end = row + 2 * (end - row);
+            }
+            end = Math.min(end, count);
+            while (end - last > 1) {
+                int mid = (last + end) >>> 1;
+                if (keys.get(mid) == key) {
+                    last = mid;
+                } else {
+                    end = mid;
+                }
+            }
+
+            sections.add(QuerySections.getLabel(keys.getValue(row), decade), end - row);
+            row = end;
+        }
+        return sections;
+    }
+
+    /**
+     * Find the nodes (or songs) of a level below the selection
+     *
+     * @return The first node and the number of nodes. null if the grouping is not in the
+     * index, an empty range if the selection is not.
+     */
+    private int[] findRange(Grouping grouping, String[] fields, int level, String[] selection) {
+        if (grouping == null || selection.length != level || level >= fields.length) {
+            return null;
+        }
+
+        int start = 0;
+        int count = grouping.levelCounts[0];
+        for (int i = 0; i < level; i++) {
+            // Years are sorted as numbers, not by their string id
+            int node = findNode(grouping.levelOffsets[i], start, count,
+                    findString(selection[i]), !fields[i].equals("year"));
+            if (node < 0) {
+                return new int[]{0, 0};
+            }
+            start = getNodeInt(grouping.levelOffsets[i], node, NODE_FIRST_CHILD);
+            count = getNodeInt(grouping.levelOffsets[i], node, NODE_CHILD_COUNT);
+        }
+        return new int[]{start, count};
+    }
+
+    /**
+     * Find the node with a value among the children of a node
+     *
+     * @param sorted true if the nodes are sorted by their string id. The string ids are in
+     *               the order of the strings, so this is binary searched like findString().
+     * @return The node or -1 if there is none with the value
+     */
+    private int findNode(int levelOffset, int start, int count, int value, boolean sorted) {
+        if (value < 0) {
+            return -1;
+        }
+
+        if (!sorted) {
+            for (int node = start; node < start + count; node++) {
+                if (getNodeInt(levelOffset, node, NODE_VALUE) == value) {
+                    return node;
+                }
+            }
+            return -1;
+        }
+
+        int low = start;
+        int high = start + count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int nodeValue = getNodeInt(levelOffset, mid, NODE_VALUE);
+            if (nodeValue < value) {
+                low = mid + 1;
+            } else if (nodeValue > value) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int[] sortDescending(int[] songs) {
+        Integer[] sorted = new Integer[songs.length];
+        for (int i = 0; i < songs.length; i++) {
+            sorted[i] = songs[i];
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                for (int column : SONG_ORDER) {
+                    int l = getSongInt(lhs, column);
+                    int r = getSongInt(rhs, column);
+                    if (l != r) {
+                        boolean less = l < r;
+                        return (column == SONG_TRACK) == less ? 1 : -1;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        int[] result = new int[songs.length];
+        for (int i = 0; i < songs.length; i++) {
+            result[i] = sorted[i];
+        }
+        return result;
+    }
+
+    /**
+     * Find the id of a string by binary search over the utf-8 bytes
+     *
+     * @return The id or -1 if the string is not in the table
+     */
+    private int findString(String value) {
+        byte[] bytes = value.getBytes(UTF8);
+        int low = 0;
+        int high = mStringCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareString(mid, bytes);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareString(int id, byte[] bytes) {
+        int start = mStrings + mBuffer.getInt(mStringOffsets + 4 * id);
+        int length = mStrings + mBuffer.getInt(mStringOffsets + 4 * (id + 1)) - start;
+        for (int i = 0; i < Math.min(length, bytes.length); i++) {
+            int diff = (mBuffer.get(start + i) & 0xff) - (bytes[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    private String getString(int id) {
+        if (id < 0) {
+            return null;
+        }
+        int start = mStrings + mBuffer.getInt(mStringOffsets + 4 * id);
+        byte[] bytes = new byte[mStrings + mBuffer.getInt(mStringOffsets + 4 * (id + 1)) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(start + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    private int getSongInt(int song, int column) {
+        return mBuffer.getInt(mSongs + 4 * (SONG_INTS * song + column));
+    }
+
+    private int getNodeInt(int levelOffset, int node, int column) {
+        return mBuffer.getInt(levelOffset + 4 * (NODE_INTS * node + column));
+    }
+
+    private static String[] getColumnNames(String[] fields, int level) {
+        boolean titleLevel = level == fields.length - 1;
+        String[] columns = new String[fields.length + (titleLevel ? 6 : 5)];
+        columns[0] = "_id";
+        System.arraycopy(fields, 0, columns, 1, fields.length);
+        columns[fields.length + 1] = "url";
+        columns[fields.length + 2] = "artist";
+        columns[fields.length + 3] = "album";
+        if (titleLevel) {
+            columns[fields.length + 4] = "disc";
+            columns[fields.length + 5] = "track";
+        } else {
+            columns[fields.length + 4] = "count";
+        }
+        return columns;
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    /**
+     * Write the index of a library. The file is replaced when the index is complete.
+     *
+     * @param db        The library
+     * @param file      The index file
+     * @param groupings The fields of each grouping
+     */
+    public static void build(SQLiteDatabase db, File file, String[][] groupings)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+
+        // Temp tables belong to one connection, the transaction keeps all statements on it
+        db.beginTransaction();
+        try {
+            writeIndex(db, file, groupings);
+        } finally {
+            db.endTransaction();
+        }
+
+        Log.i(TAG, "Built browse index in " + (SystemClock.elapsedRealtime() - start) + "ms, "
+                + file.length() + " bytes");
+    }
+
+    private static void writeIndex(SQLiteDatabase db, File file, String[][] groupings)
+            throws IOException {
+        // Text columns are compared as text, like in the library queries
+        db.execSQL("CREATE TEMP TABLE browse_strings (id INTEGER PRIMARY KEY,"
+                + " value TEXT NOT NULL)");
+        db.execSQL("INSERT INTO browse_strings (value) SELECT DISTINCT CAST(value AS TEXT) AS v"
+                + " FROM (SELECT artist AS value FROM songs UNION ALL SELECT album FROM songs"
+                + " UNION ALL SELECT albumartist FROM songs UNION ALL SELECT year FROM songs"
+                + " UNION ALL SELECT genre FROM songs UNION ALL SELECT title FROM songs"
+                + " UNION ALL SELECT filename FROM songs) WHERE value IS NOT NULL ORDER BY v");
+        db.execSQL("CREATE UNIQUE INDEX temp.browse_strings_value ON browse_strings (value)");
+
+        StringBuilder songColumns = new StringBuilder();
+        StringBuilder songValues = new StringBuilder();
+        for (int i = 1; i < SONG_FIELDS.length; i++) {
+            songColumns.append(", ").append(SONG_FIELDS[i]);
+            songValues.append(", ").append(stringId(SONG_FIELDS[i]));
+        }
+        db.execSQL("CREATE TEMP TABLE browse_songs (idx INTEGER PRIMARY KEY, id INTEGER"
+                + songColumns + ", url, disc, track, year_value)");
+        db.execSQL("INSERT INTO browse_songs (id" + songColumns + ", url, disc, track,"
+                + " year_value) SELECT ROWID" + songValues + ", " + stringId("filename")
+                + ", disc, track, year FROM songs ORDER BY ROWID");
+
+        // Groupings by other fields are browsed with sql
+        List<String[]> indexed = new ArrayList<>();
+        for (String[] fields : groupings) {
+            if (fields.length >= 2 && Arrays.asList(SONG_FIELDS).containsAll(
+                    Arrays.asList(fields))) {
+                indexed.add(fields);
+            }
+        }
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        File stringsTmp = new File(file.getAbsolutePath() + ".strings");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            writeStrings(db, out, stringsTmp, indexed.size());
+            writeSongs(db, out);
+            for (String[] fields : indexed) {
+                writeGrouping(db, out, fields);
+            }
+        } finally {
+            out.close();
+            stringsTmp.delete();
+            db.execSQL("DROP TABLE temp.browse_strings");
+            db.execSQL("DROP TABLE temp.browse_songs");
+        }
+
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    private static String stringId(String column) {
+        return "IFNULL((SELECT id - 1 FROM browse_strings WHERE value = CAST(" + column
+                + " AS TEXT)), -1)";
+    }
+
+    /**
+     * Write the header and the string table. The offsets are written before the strings,
+     * so the strings are collected in a temporary file first.
+     */
+    private static void writeStrings(SQLiteDatabase db, DataOutputStream out, File stringsTmp,
+            int groupings) throws IOException {
+        IntList offsets = new IntList();
+        int size = 0;
+
+        OutputStream strings = new BufferedOutputStream(new FileOutputStream(stringsTmp),
+                BUFFER_SIZE);
+        Cursor c = db.rawQuery("SELECT value FROM browse_strings ORDER BY id", null);
+        try {
+            while (c.moveToNext()) {
+                offsets.add(size);
+                byte[] value = c.getString(0).getBytes(UTF8);
+                strings.write(value);
+                size += value.length;
+            }
+        } finally {
+            c.close();
+            strings.close();
+        }
+        offsets.add(size);
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(offsets.size() - 1);
+        out.writeInt(size);
+        out.writeInt((int) DatabaseUtils.queryNumEntries(db, "browse_songs"));
+        out.writeInt(groupings);
+        offsets.writeTo(out);
+
+        InputStream in = new FileInputStream(stringsTmp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        out.write(new byte[align(size) - size]);
+    }
+
+    private static void writeSongs(SQLiteDatabase db, DataOutputStream out) throws IOException {
+        StringBuilder sql = new StringBuilder("SELECT id");
+        for (int i = 1; i < SONG_FIELDS.length; i++) {
+            sql.append(", ").append(SONG_FIELDS[i]);
+        }
+        sql.append(", url, disc, track FROM browse_songs ORDER BY idx");
+
+        Cursor c = db.rawQuery(sql.toString(), null);
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < SONG_INTS; i++) {
+                    out.writeInt(c.getInt(i));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Write the levels of a grouping. The songs are read in the order of the grouping, a
+     * new node starts whenever the value of its level or a level above changes.
+     */
+    private static void writeGrouping(SQLiteDatabase db, DataOutputStream out, String[] fields)
+            throws IOException {
+        int groupLevels = fields.length - 1;
+
+        StringBuilder sql = new StringBuilder("SELECT idx - 1, title");
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < groupLevels; i++) {
+            sql.append(", ").append(fields[i]);
+            // Years are sorted as numbers
+            order.append(fields[i].equals("year") ? "year_value" : fields[i]).append(", ");
+        }
+        sql.append(" FROM browse_songs ORDER BY ").append(order).append("album, disc, track, id");
+
+        IntList[] nodes = new IntList[groupLevels];
+        for (int i = 0; i < groupLevels; i++) {
+            nodes[i] = new IntList();
+        }
+        IntList songs = new IntList();
+        int[] current = new int[groupLevels];
+        HashSet<Integer> titles = new HashSet<>();
+        boolean first = true;
+
+        Cursor c = db.rawQuery(sql.toString(), null);
+        try {
+            while (c.moveToNext()) {
+                int song = c.getInt(0);
+
+                int changed = first ? 0 : groupLevels;
+                for (int i = 0; i < groupLevels && changed == groupLevels; i++) {
+                    if (c.getInt(i + 2) != current[i]) {
+                        changed = i;
+                    }
+                }
+                first = false;
+
+                for (int level = changed; level < groupLevels; level++) {
+                    if (level == groupLevels - 1) {
+                        closeSongNode(nodes[level], titles);
+                    }
+
+                    current[level] = c.getInt(level + 2);
+                    nodes[level].add(current[level]);
+                    nodes[level].add(level < groupLevels - 1
+                            ? nodes[level + 1].size() / NODE_INTS : songs.size());
+                    nodes[level].add(0);
+                    nodes[level].add(0);
+                    nodes[level].add(song);
+
+                    if (level > 0) {
+                        // One more item in the parent
+                        nodes[level - 1].increment(nodes[level - 1].size() - NODE_INTS
+                                + NODE_CHILD_COUNT);
+                        nodes[level - 1].increment(nodes[level - 1].size() - NODE_INTS
+                                + NODE_ITEM_COUNT);
+                    }
+                }
+
+                songs.add(song);
+                nodes[groupLevels - 1].increment(nodes[groupLevels - 1].size() - NODE_INTS
+                        + NODE_CHILD_COUNT);
+                titles.add(c.getInt(1));
+            }
+        } finally {
+            c.close();
+        }
+        closeSongNode(nodes[groupLevels - 1], titles);
+
+        byte[] key = TextUtils.join(",", fields).getBytes(UTF8);
+        out.writeInt(key.length);
+        out.write(key);
+        out.write(new byte[align(key.length) - key.length]);
+
+        out.writeInt(fields.length);
+        for (IntList level : nodes) {
+            out.writeInt(level.size() / NODE_INTS);
+            level.writeTo(out);
+        }
+        out.writeInt(songs.size());
+        songs.writeTo(out);
+    }
+
+    /**
+     * The songs of a node of the last level are shown by distinct title
+     */
+    private static void closeSongNode(IntList nodes, HashSet<Integer> titles) {
+        if (nodes.size() > 0) {
+            nodes.set(nodes.size() - NODE_INTS + NODE_ITEM_COUNT, titles.size());
+        }
+        titles.clear();
+    }
+
+    /**
+     * The section key of the rows of a level in list order: the first character of the key
+     * column, or its decade. Equal keys are next to each other.
+     */
+    private class SectionKeys {
+
+        private int mLevelOffset;
+
+        private int mStart;
+
+        private int mCount;
+
+        private int mSongColumn;
+
+        private boolean mTitleLevel;
+
+        private boolean mDescending;
+
+        private boolean mDecade;
+
+        SectionKeys(int levelOffset, int start, int count, int songColumn, boolean titleLevel,
+                boolean descending, boolean decade) {
+            mLevelOffset = levelOffset;
+            mStart = start;
+            mCount = count;
+            mSongColumn = songColumn;
+            mTitleLevel = titleLevel;
+            mDescending = descending;
+            mDecade = decade;
+        }
+
+        String getValue(int row) {
+            int song;
+            if (mTitleLevel) {
+                // Songs stay grouped by album in both orders, only their tracks are reversed
+                song = mBuffer.getInt(mLevelOffset + 4 * (mStart + row));
+            } else {
+                int node = mDescending ? mStart + mCount - 1 - row : mStart + row;
+                song = getNodeInt(mLevelOffset, node, NODE_SONG);
+            }
+            return getString(getSongInt(song, mSongColumn));
+        }
+
+        int get(int row) {
+            String value = getValue(row);
+            if (value == null || value.isEmpty()) {
+                return -1;
+            }
+            if (!mDecade) {
+                return value.codePointAt(0);
+            }
+            try {
+                int year = Integer.parseInt(value.trim());
+                return year > 0 ? year / 10 : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static class Grouping {
+
+        int[] levelOffsets;
+
+        int[] levelCounts;
+    }
+
+    private static class IntList {
+
+        private int[] mValues = new int[1024];
+
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        void set(int index, int value) {
+            mValues[index] = value;
+        }
+
+        void increment(int index) {
+            mValues[index]++;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < mSize; i++) {
+                out.writeInt(mValues[i]);
+            }
+        }
+    }
+
+    /**
+     * A level read from the index. Rows of a group level are nodes, the values are taken
+     * from the first song of the node. Rows of the title level are songs.
+     */
+    private class BrowseCursor extends AbstractCursor {
+
+        private String[] mFields;
+
+        private boolean mTitleLevel;
+
+        private int mLevelOffset;
+
+        private int[] mRows;
+
+        BrowseCursor(String[] fields, int level, int levelOffset, int[] rows) {
+            mFields = fields;
+            mTitleLevel = level == fields.length - 1;
+            mLevelOffset = levelOffset;
+            mRows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return BrowseIndex.getColumnNames(mFields, mTitleLevel ? mFields.length - 1 : 0);
+        }
+
+        private int getSong() {
+            int row = mRows[getPosition()];
+            return mTitleLevel ? row : getNodeInt(mLevelOffset, row, NODE_SONG);
+        }
+
+        /**
+         * @return The song column of a string column, or -1 for a number column
+         */
+        private int getStringColumn(int column) {
+            int fields = mFields.length;
+            if (column >= 1 && column <= fields) {
+                return Arrays.asList(SONG_FIELDS).indexOf(mFields[column - 1]);
+            } else if (column == fields + 1) {
+                return SONG_URL;
+            } else if (column == fields + 2) {
+                return 1;
+            } else if (column == fields + 3) {
+                return SONG_ALBUM;
+            }
+            return -1;
+        }
+
+        @Override
+        public String getString(int column) {
+            int songColumn = getStringColumn(column);
+            if (songColumn < 0) {
+                return String.valueOf(getLong(column));
+            }
+            return BrowseIndex.this.getString(getSongInt(getSong(), songColumn));
+        }
+
+        @Override
+        public long getLong(int column) {
+            int fields = mFields.length;
+            if (column == 0) {
+                return getSongInt(getSong(), SONG_ROWID);
+            } else if (column == fields + 4) {
+                return mTitleLevel ? getSongInt(getSong(), SONG_DISC)
+                        : getNodeInt(mLevelOffset, mRows[getPosition()], NODE_ITEM_COUNT);
+            } else if (column == fields + 5) {
+                return getSongInt(getSong(), SONG_TRACK);
+            }
+            try {
+                return Long.parseLong(getString(column));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public int getType(int column) {
+            if (getStringColumn(column) < 0) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            }
+            return isNull(column) ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return getLong(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            int songColumn = getStringColumn(column);
+            return songColumn >= 0 && getSongInt(getSong(), songColumn) < 0;
+        }
+    }
+}
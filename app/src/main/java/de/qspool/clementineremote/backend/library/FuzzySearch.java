@@ -0,0 +1,381 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Typo tolerant search over artist, album and title.
+ * <p/>
+ * The words of these columns are stored in a vocabulary table, together with their
+ * trigrams. A word of the query is compared with the vocabulary by the number of shared
+ * trigrams (jaccard similarity), so "beatels" still finds "beatles". The songs containing
+ * the most similar words are looked up in the fts index and ranked by the sum of the
+ * similarities of all query words.
+ */
+public class FuzzySearch {
+
+    private final static String TAG = "FuzzySearch";
+
+    public final static String SONGS_WORDS = "songs_words";
+
+    public final static String SONGS_TRIGRAMS = "songs_trigrams";
+
+    private final static String[] INDEXED_COLUMNS = new String[]{"artist", "album", "title"};
+
+    // Words of the vocabulary that are less similar to a query word are ignored
+    private final static float MIN_SIMILARITY = 0.3f;
+
+    // Most similar words of the vocabulary used per query word
+    private final static int MAX_CANDIDATES = 5;
+
+    // Log the latency percentiles after this many searches
+    private final static int LOG_INTERVAL = 20;
+
+    private final static long[] mLatencies = new long[256];
+
+    private static int mSearches;
+
+    /**
+     * Create the vocabulary and trigram tables for all songs. Runs in the transaction of
+     * optimizeTable().
+     *
+     * @param db The library to index
+     */
+    public static void buildIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SONGS_WORDS
+                + " (id INTEGER PRIMARY KEY, word TEXT NOT NULL UNIQUE, trigrams INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + SONGS_TRIGRAMS
+                + " (trigram TEXT NOT NULL, word_id INTEGER NOT NULL)");
+
+        addSongs(db, "1");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SONGS_TRIGRAMS + "_trigram ON "
+                + SONGS_TRIGRAMS + " (trigram)");
+    }
+
+    /**
+     * Add the words of songs to the vocabulary. Words of removed songs are removed with
+     * removeUnusedWords().
+     *
+     * @param db    The library
+     * @param where Selects the songs from the songs table
+     */
+    public static void addSongs(SQLiteDatabase db, String where) {
+        Set<String> words = getWords(db, where);
+
+        SQLiteStatement insertWord = db.compileStatement("INSERT OR IGNORE INTO " + SONGS_WORDS
+                + " (word, trigrams) VALUES (?, ?)");
+        SQLiteStatement insertTrigram = db.compileStatement("INSERT INTO " + SONGS_TRIGRAMS
+                + " (trigram, word_id) VALUES (?, ?)");
+        try {
+            for (String word : words) {
+                Set<String> trigrams = getTrigrams(word);
+                insertWord.bindString(1, word);
+                insertWord.bindLong(2, trigrams.size());
+                long id = insertWord.executeInsert();
+                if (id == -1) {
+                    // Already in the vocabulary
+                    continue;
+                }
+
+                for (String trigram : trigrams) {
+                    insertTrigram.bindString(1, trigram);
+                    insertTrigram.bindLong(2, id);
+                    insertTrigram.executeInsert();
+                }
+            }
+        } finally {
+            insertWord.close();
+            insertTrigram.close();
+        }
+    }
+
+    /**
+     * Get the words of songs
+     *
+     * @param db    The library
+     * @param where Selects the songs from the songs table
+     * @return The words of the indexed columns
+     */
+    public static Set<String> getWords(SQLiteDatabase db, String where) {
+        HashSet<String> words = new HashSet<>();
+        Cursor c = db.rawQuery("SELECT " + TextUtils.join(", ", INDEXED_COLUMNS)
+                + " FROM main." + LibraryDatabaseHelper.SONGS + " WHERE " + where, null);
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < INDEXED_COLUMNS.length; i++) {
+                    words.addAll(tokenize(c.getString(i)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return words;
+    }
+
+    /**
+     * Remove words from the vocabulary that no song in the fts index contains anymore.
+     * Call it after the fts index was updated.
+     *
+     * @param db    The library
+     * @param words The words of removed or changed songs, see getWords()
+     */
+    public static void removeUnusedWords(SQLiteDatabase db, Set<String> words) {
+        if (words.isEmpty()) {
+            return;
+        }
+
+        db.execSQL("CREATE TEMP TABLE sync_unused_words (id INTEGER PRIMARY KEY)");
+
+        SQLiteStatement insertUnused = db.compileStatement("INSERT INTO sync_unused_words (id)"
+                + " SELECT id FROM " + SONGS_WORDS + " WHERE word = ?");
+        try {
+            for (String word : words) {
+                Cursor c = db.rawQuery("SELECT docid FROM " + LibraryDatabaseHelper.SONGS_FTS
+                                + " WHERE " + LibraryDatabaseHelper.SONGS_FTS + " MATCH ? LIMIT 1",
+                        new String[]{"\"" + word + "\""});
+                try {
+                    if (c.moveToFirst()) {
+                        continue;
+                    }
+                } finally {
+                    c.close();
+                }
+
+                insertUnused.bindString(1, word);
+                insertUnused.executeInsert();
+            }
+        } finally {
+            insertUnused.close();
+        }
+
+        // One scan of the trigrams for all words
+        db.execSQL("DELETE FROM " + SONGS_TRIGRAMS
+                + " WHERE word_id IN (SELECT id FROM sync_unused_words)");
+        db.execSQL("DELETE FROM " + SONGS_WORDS + " WHERE id IN (SELECT id FROM sync_unused_words)");
+        db.execSQL("DROP TABLE sync_unused_words");
+    }
+
+    /**
+     * Search songs similar to the query
+     *
+     * @param db    The library
+     * @param query The text the user entered
+     * @param k     The maximum number of results
+     * @return The rowids of the best matching songs, best match first
+     */
+    public static List<Long> search(SQLiteDatabase db, String query, int k) {
+        long start = SystemClock.elapsedRealtime();
+        List<Long> result = new ArrayList<>();
+
+        try {
+            HashMap<Long, Float> scores = new HashMap<>();
+            for (String word : new LinkedHashSet<>(tokenize(query))) {
+                for (Map.Entry<Long, Float> e : scoreSongs(db, word).entrySet()) {
+                    Float score = scores.get(e.getKey());
+                    scores.put(e.getKey(), score == null ? e.getValue() : score + e.getValue());
+                }
+            }
+
+            for (Map.Entry<Long, Float> e : topK(scores, k)) {
+                result.add(e.getKey());
+            }
+        } catch (SQLiteException e) {
+            // Library was optimized without the trigram index
+            Log.d(TAG, "Fuzzy search not available: " + e.getMessage());
+        }
+
+        recordLatency(SystemClock.elapsedRealtime() - start);
+
+        return result;
+    }
+
+    /**
+     * Find the songs containing words similar to a query word
+     *
+     * @return The similarity of the best matching word for each song
+     */
+    private static Map<Long, Float> scoreSongs(SQLiteDatabase db, String word) {
+        Set<String> trigrams = getTrigrams(word);
+        HashMap<Long, Float> songs = new HashMap<>();
+        if (trigrams.isEmpty()) {
+            return songs;
+        }
+
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT w.word, w.trigrams, COUNT(*) FROM ");
+        sql.append(SONGS_TRIGRAMS);
+        sql.append(" t JOIN ");
+        sql.append(SONGS_WORDS);
+        sql.append(" w ON w.id = t.word_id WHERE t.trigram IN (");
+        for (int i = 0; i < trigrams.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") GROUP BY t.word_id");
+
+        // Keep the most similar words in a bounded heap
+        HashMap<String, Float> similarity = new HashMap<>();
+        Cursor c = db.rawQuery(sql.toString(), trigrams.toArray(new String[trigrams.size()]));
+        try {
+            while (c.moveToNext()) {
+                int shared = c.getInt(2);
+                float jaccard = (float) shared / (trigrams.size() + c.getInt(1) - shared);
+                if (jaccard >= MIN_SIMILARITY) {
+                    similarity.put(c.getString(0), jaccard);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        for (Map.Entry<String, Float> candidate : topK(similarity, MAX_CANDIDATES)) {
+            Cursor docs = db.rawQuery("SELECT docid FROM " + LibraryDatabaseHelper.SONGS_FTS
+                            + " WHERE " + LibraryDatabaseHelper.SONGS_FTS + " MATCH ?",
+                    new String[]{"\"" + candidate.getKey() + "\""});
+            try {
+                while (docs.moveToNext()) {
+                    Float best = songs.get(docs.getLong(0));
+                    if (best == null || best < candidate.getValue()) {
+                        songs.put(docs.getLong(0), candidate.getValue());
+                    }
+                }
+            } finally {
+                docs.close();
+            }
+        }
+
+        return songs;
+    }
+
+    /**
+     * Select the k entries with the highest value with a min heap of size k
+     *
+     * @return The entries, highest value first
+     */
+    private static <K> List<Map.Entry<K, Float>> topK(Map<K, Float> values, int k) {
+        Comparator<Map.Entry<K, Float>> byValue = new Comparator<Map.Entry<K, Float>>() {
+            @Override
+            public int compare(Map.Entry<K, Float> lhs, Map.Entry<K, Float> rhs) {
+                return Float.compare(lhs.getValue(), rhs.getValue());
+            }
+        };
+
+        PriorityQueue<Map.Entry<K, Float>> heap = new PriorityQueue<>(k + 1, byValue);
+        for (Map.Entry<K, Float> e : values.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(e);
+            } else if (e.getValue() > heap.peek().getValue()) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+
+        List<Map.Entry<K, Float>> result = new ArrayList<>(heap);
+        Collections.sort(result, Collections.reverseOrder(byValue));
+        return result;
+    }
+
+    /**
+     * Split a text into words like the "simple" fts tokenizer does. ASCII letters and
+     * digits are word characters and all other ASCII characters separate words. All
+     * other characters belong to words and are kept as they are, only ASCII letters are
+     * lower cased.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c >= 128 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')) {
+                word.append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                word.append((char) (c - 'A' + 'a'));
+            } else {
+                if (word.length() >= 2) {
+                    words.add(word.toString());
+                }
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * The trigrams of a word. The word is padded, so the first and last letters get
+     * their own trigrams and short words have trigrams at all.
+     */
+    static Set<String> getTrigrams(String word) {
+        Set<String> trigrams = new HashSet<>();
+        String padded = "$" + word + "$";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private static synchronized void recordLatency(long duration) {
+        mLatencies[mSearches % mLatencies.length] = duration;
+        mSearches++;
+
+        if (mSearches % LOG_INTERVAL == 0) {
+            Log.d(TAG, "Search latency p50 " + getLatencyPercentile(50) + "ms, p99 "
+                    + getLatencyPercentile(99) + "ms");
+        }
+    }
+
+    /**
+     * Get a percentile of the latency of the recent searches
+     *
+     * @param percentile The percentile, e.g. 50 or 99
+     * @return The latency in milliseconds
+     */
+    public static synchronized long getLatencyPercentile(int percentile) {
+        int count = Math.min(mSearches, mLatencies.length);
+        if (count == 0) {
+            return 0;
+        }
+
+        long[] sorted = Arrays.copyOf(mLatencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,308 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseLibraryChunk;
+
+/**
+ * Writes the chunks of a library download into the part file of a
+ * LibraryDownloadJournal. The chunks are written directly from the protocol buffer into
+ * a buffered stream and hashed on the way, so the file is verified without reading it
+ * again.
+ * <p/>
+ * If the journal of an interrupted download matches the library Clementine sends, the
+ * chunks already in the part file are skipped and only the missing ones are written.
+ */
+public class LibraryChunkWriter {
+
+    public enum Result {COMPLETE, INTERRUPTED, RESTART, HASH_MISMATCH}
+
+    /**
+     * Delivers the chunks of a library download to receive()
+     */
+    public interface ChunkSource {
+
+        /**
+         * Get the next chunk
+         *
+         * @return The chunk, or null if the connection was lost or the download cancelled
+         */
+        ResponseLibraryChunk nextChunk();
+
+        /**
+         * Called after a chunk was written or skipped
+         *
+         * @param chunk  The chunk
+         * @param length The number of bytes in the part file
+         */
+        void onChunkWritten(ResponseLibraryChunk chunk, long length);
+    }
+
+    private final static int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private LibraryDownloadJournal mJournal;
+
+    // Flush the part file and update the journal after this many bytes
+    private int mSyncSize;
+
+    private OutputStream mOut;
+
+    private MessageDigest mDigest;
+
+    private ByteString mFileHash = ByteString.EMPTY;
+
+    private long mUnsyncedBytes;
+
+    private boolean mResumed;
+
+    /**
+     * @param journal  The journal of the library file
+     * @param syncSize The number of bytes after which the journal is updated
+     */
+    public LibraryChunkWriter(LibraryDownloadJournal journal, int syncSize) {
+        mJournal = journal;
+        mSyncSize = syncSize;
+    }
+
+    /**
+     * Receive a library download. The first chunk opens the part file, the last one
+     * verifies it. If the source stops early, the written chunks are kept for the next
+     * attempt.
+     *
+     * @param source The source of the chunks
+     * @return COMPLETE if the library was received and verified. RESTART and
+     * HASH_MISMATCH delete the part file.
+     */
+    public Result receive(ChunkSource source) throws IOException {
+        boolean opened = false;
+        try {
+            ResponseLibraryChunk chunk;
+            while ((chunk = source.nextChunk()) != null) {
+                if (!opened) {
+                    open(chunk);
+                    opened = true;
+                }
+
+                if (!write(chunk)) {
+                    // The part file does not fit, it was deleted
+                    opened = false;
+                    return Result.RESTART;
+                }
+                source.onChunkWritten(chunk, getLength());
+
+                // Have we received all chunks?
+                if (chunk.getChunkNumber() == chunk.getChunkCount()) {
+                    opened = false;
+                    return finish() ? Result.COMPLETE : Result.HASH_MISMATCH;
+                }
+            }
+            return Result.INTERRUPTED;
+        } finally {
+            // Keep what we have for the next attempt
+            if (opened) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Open the part file for the library Clementine sends. A matching interrupted download
+     * is resumed, otherwise a new one is started.
+     *
+     * @param first The first chunk received
+     */
+    public void open(ResponseLibraryChunk first) throws IOException {
+        try {
+            mDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            mDigest = null;
+        }
+
+        mResumed = mJournal.load() && mJournal.matches(first);
+        if (mResumed) {
+            if (mDigest != null) {
+                digestFile(mJournal.getPartFile(), mDigest);
+            }
+        } else {
+            // Clementine sends another library or there is nothing to resume
+            mJournal.start(first);
+        }
+
+        OutputStream out = new FileOutputStream(mJournal.getPartFile(), true);
+        if (mDigest != null) {
+            out = new DigestOutputStream(out, mDigest);
+        }
+        mOut = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+        mUnsyncedBytes = 0;
+    }
+
+    /**
+     * Write a chunk, unless it is already in the part file
+     *
+     * @param chunk The chunk
+     * @return false if a chunk in the part file has another size. The download has to
+     * start again, the part file is deleted.
+     */
+    public boolean write(ResponseLibraryChunk chunk) throws IOException {
+        ByteString data = chunk.getData();
+
+        if (!chunk.getFileHash().isEmpty()) {
+            mFileHash = chunk.getFileHash();
+        }
+
+        if (chunk.getChunkNumber() <= mJournal.getLastChunk()) {
+            // Chunk is already in the part file
+            if (mJournal.getChunkSize(chunk.getChunkNumber()) != data.size()) {
+                abort();
+                return false;
+            }
+            return true;
+        }
+
+        // writeTo() does not copy the data
+        data.writeTo(mOut);
+        mUnsyncedBytes += data.size();
+        mJournal.addChunk(chunk.getChunkNumber(), data.size());
+
+        if (mUnsyncedBytes >= mSyncSize) {
+            sync();
+        }
+        return true;
+    }
+
+    /**
+     * The last chunk was written. Close the part file and verify its hash.
+     *
+     * @return true if the hash matches the one Clementine sent, or if there is none.
+     * If not, the part file is deleted.
+     */
+    public boolean finish() throws IOException {
+        mOut.flush();
+        mOut.close();
+        mOut = null;
+
+        if (mDigest != null && !hashMatches(mDigest.digest(), mFileHash)) {
+            mJournal.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The download was interrupted. Keep the written chunks for the next attempt, only
+     * flushed chunks are recorded in the journal.
+     */
+    public void close() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            sync();
+            mOut.close();
+        } catch (IOException e) {
+        }
+        mOut = null;
+    }
+
+    /**
+     * Close the part file and delete it with the journal
+     */
+    public void abort() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+            }
+            mOut = null;
+        }
+        mJournal.delete();
+    }
+
+    /**
+     * @return true if an interrupted download was resumed by open()
+     */
+    public boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * @return The number of bytes in the part file, including the skipped chunks
+     */
+    public long getLength() {
+        return mJournal.getLength();
+    }
+
+    private void sync() throws IOException {
+        mOut.flush();
+        mJournal.sync();
+        mUnsyncedBytes = 0;
+    }
+
+    /**
+     * Feed the part file of an interrupted download into the digest
+     */
+    private void digestFile(File f, MessageDigest digest) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compare the calculated hash with the hash Clementine sent. Clementine sends the hash
+     * as hex string, the raw bytes are accepted as well.
+     *
+     * @param calculated The calculated SHA-1 hash
+     * @param expected   The hash Clementine sent. If empty, the file is not verified
+     * @return true if the hashes match or no hash was sent
+     */
+    private boolean hashMatches(byte[] calculated, ByteString expected) {
+        if (expected.isEmpty()) {
+            return true;
+        }
+
+        if (expected.size() == calculated.length) {
+            return expected.equals(ByteString.copyFrom(calculated));
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : calculated) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString().equalsIgnoreCase(expected.toStringUtf8().trim());
+    }
+}
@@ -0,0 +1,125 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.qspool.clementineremote.backend.listener.OnLibraryCheckedListener;
+
+/**
+ * Checks the library of each host once after the app started. The fast check runs on a
+ * worker thread before the library is used, the full integrity check is scheduled in the
+ * background afterwards.
+ */
+public class LibraryConsistencyChecker {
+
+    // Let the first queries run before reading the whole library
+    private final static long INTEGRITY_CHECK_DELAY = 30; // Seconds
+
+    private static LibraryConsistencyChecker mInstance;
+
+    private ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // The list waits for this check, so it does not queue behind the integrity check
+    private ExecutorService mStartupExecutor = Executors.newSingleThreadExecutor();
+
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Libraries checked since the app started
+    private HashSet<String> mChecked = new HashSet<>();
+
+    public static synchronized LibraryConsistencyChecker getInstance() {
+        if (mInstance == null) {
+            mInstance = new LibraryConsistencyChecker();
+        }
+        return mInstance;
+    }
+
+    private LibraryConsistencyChecker() {
+    }
+
+    /**
+     * Select the library of the current host on a worker thread and check it, if it was
+     * not checked since the app started. A damaged library is repaired or deleted.
+     *
+     * @param listener Called on the main thread when the library can be used
+     */
+    public void checkOnStartup(final OnLibraryCheckedListener listener) {
+        mStartupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Moves the legacy library and evicts the libraries of other hosts
+                new LibraryDatabaseHelper().selectHostLibrary();
+                checkOnStartup();
+                final boolean exists = new LibraryDatabaseHelper().databaseExists();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.OnLibraryChecked(exists);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Check the library of the current host if it was not checked since the app started
+     *
+     * @return false if the library was corrupt and deleted
+     */
+    private synchronized boolean checkOnStartup() {
+        LibraryDatabaseHelper libraryDatabaseHelper = new LibraryDatabaseHelper();
+        if (!mChecked.add(libraryDatabaseHelper.getLibraryDb().getName())) {
+            return true;
+        }
+
+        boolean consistent = libraryDatabaseHelper.checkConsistency();
+        if (!consistent) {
+            return false;
+        }
+
+        if (libraryDatabaseHelper.getLibraryDb().exists()
+                && !libraryDatabaseHelper.getBrowseIndexFile().exists()) {
+            // Libraries downloaded before the browse index existed
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    new LibraryDatabaseHelper().buildBrowseIndex();
+                }
+            });
+        }
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                new LibraryDatabaseHelper().checkIntegrity();
+            }
+        }, INTEGRITY_CHECK_DELAY, TimeUnit.SECONDS);
+        return true;
+    }
+}
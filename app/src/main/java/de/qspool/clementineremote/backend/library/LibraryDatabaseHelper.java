@@ -19,19 +19,69 @@ package de.qspool.clementineremote.backend.library;
 
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.R;
 import de.qspool.clementineremote.SharedPreferencesKeys;
+import de.qspool.clementineremote.backend.database.QueryResultCache;
+import de.qspool.clementineremote.backend.listener.OnOptimizeProgressListener;
+import de.qspool.clementineremote.utils.Utilities;
 
 public class LibraryDatabaseHelper {
 
+    private final static String TAG = "LibraryDatabaseHelper";
+
+    // Single library of older versions
     private final static String LIBRARY_DB_FILE_NAME = "library.db";
 
+    private final static String LIBRARY_DIR = "libraries";
+
+    private final static String LIBRARY_DB_EXTENSION = ".db";
+
+    private final static String BROWSE_INDEX_EXTENSION = ".browse";
+
+    private final static String NEW_LIBRARY_EXTENSION = ".new";
+
+    // Disk budget of the libraries of all hosts
+    private final static String DEFAULT_CACHE_SIZE_MB = "250";
+
+    private final static String SQLITE_HEADER = "SQLite format 3\u0000";
+
+    // user_version of a library optimized by optimizeTable()
+    private final static int OPTIMIZED_VERSION = 3;
+
+    // Columns of the songs table that are indexed for the search
+    private final static String[] SEARCH_COLUMNS = new String[]{
+            "title", "album", "artist", "albumartist", "composer", "performer", "genre"};
+
+    // Prefix lengths indexed by the fts table
+    private final static String FTS_PREFIX_INDEXES = "2,3";
+
+    // Page cache while optimizing, in kilobytes
+    private final static int BULK_LOAD_CACHE_SIZE_KB = 16 * 1024;
+
+    private final static int BULK_LOAD_PAGE_SIZE = 4096;
+
+    // Above this share of changed songs the library is replaced instead of updated
+    private final static float MAX_SYNC_CHANGES = 0.2f;
+
     // Table names
     public final static String SONGS = "songs";
     
@@ -45,6 +95,22 @@ public class LibraryDatabaseHelper {
 
     private SQLiteDatabase db;
 
+    // A fixed library file, or null for the library of the current host
+    private File mLibraryDb;
+
+    public LibraryDatabaseHelper() {
+    }
+
+    /**
+     * Use a fixed library file instead of the library of the current host, e.g. for a
+     * download, which must stay with its library if the host changes meanwhile.
+     *
+     * @param libraryDb The library file
+     */
+    public LibraryDatabaseHelper(File libraryDb) {
+        mLibraryDb = libraryDb;
+    }
+
     public SQLiteDatabase openDatabase(int flags) {
         db = SQLiteDatabase.openDatabase(getLibraryDb().getAbsolutePath(),
                 null, flags);
@@ -58,63 +124,434 @@ public class LibraryDatabaseHelper {
         }
     }
 
+    /**
+     * Fast check of the library before it is used. Only the file header and the pages
+     * (PRAGMA quick_check) are checked. If the check fails, the background check found
+     * a problem or the library was optimized by an older version, the indexes are rebuilt.
+     * A library that cannot be repaired is deleted.
+     *
+     * @return true if the library is consistent or does not exist
+     */
     public boolean checkConsistency() {
-        boolean dbConsistent = true;
+        if (!databaseExists()) {
+            return true;
+        }
 
-        // Check the consistency of the database
-        if (databaseExists()) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getApp());
+        boolean needsRepair = getLibraryDb().getName().equals(
+                prefs.getString(SharedPreferencesKeys.SP_LIBRARY_NEEDS_REPAIR, ""));
 
-            try {
-                openDatabase(SQLiteDatabase.OPEN_READWRITE);
+        if (!headerOk()) {
+            Log.w(TAG, "Library has an invalid header");
+            deleteLibraryDb();
+            return false;
+        }
+
+        // Older fts tables do not use the rowid of the song as docid
+        boolean outdated = readVersion() != OPTIMIZED_VERSION;
+        if (outdated) {
+            Log.i(TAG, "Library was optimized by an older version, rebuilding the indexes");
+        }
+
+        if (!needsRepair && !outdated && runCheck("quick_check")) {
+            return true;
+        }
+
+        boolean repaired = repair() && runCheck("quick_check");
+        prefs.edit().remove(SharedPreferencesKeys.SP_LIBRARY_NEEDS_REPAIR).apply();
+        if (!repaired) {
+            Log.w(TAG, "Library cannot be repaired");
+            deleteLibraryDb();
+        }
 
-                dbConsistent = databaseIntegrityOk();
+        return repaired;
+    }
+
+    /**
+     * Full check of the library (PRAGMA integrity_check), which reads every page and
+     * compares the indexes with the table. It only reads, so it can run in the background
+     * while the library is used. A problem is repaired by the next checkConsistency().
+     *
+     * @return true if the library is consistent or does not exist
+     */
+    public boolean checkIntegrity() {
+        if (!databaseExists()) {
+            return true;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        boolean ok = runCheck("integrity_check");
+        Log.d(TAG, "Integrity check took " + (SystemClock.elapsedRealtime() - start) + "ms");
+
+        if (!ok) {
+            Log.w(TAG, "Library integrity check failed, repairing on next start");
+            PreferenceManager.getDefaultSharedPreferences(App.getApp()).edit()
+                    .putString(SharedPreferencesKeys.SP_LIBRARY_NEEDS_REPAIR,
+                            getLibraryDb().getName()).apply();
+        }
+        return ok;
+    }
 
+    /**
+     * Check the header of the library file: the magic string, a valid page size and a file
+     * that consists of whole pages. This does not need to open the database.
+     */
+    private boolean headerOk() {
+        File file = getLibraryDb();
+        byte[] header = new byte[100];
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if (in.read(header) != header.length) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (!new String(header, 0, SQLITE_HEADER.length()).equals(SQLITE_HEADER)) {
+            return false;
+        }
+
+        // Big endian, 1 means 65536
+        int pageSize = ((header[16] & 0xff) << 8) | (header[17] & 0xff);
+        if (pageSize == 1) {
+            pageSize = 65536;
+        }
+        if (pageSize < 512 || (pageSize & (pageSize - 1)) != 0) {
+            return false;
+        }
+
+        return file.length() % pageSize == 0;
+    }
+
+    /**
+     * Read the user_version of the library on a separate read only connection
+     *
+     * @return The version, or -1 if it cannot be read
+     */
+    private int readVersion() {
+        try {
+            openDatabase(SQLiteDatabase.OPEN_READONLY);
+            try {
+                return db.getVersion();
+            } finally {
                 closeDatabase();
-            } catch (SQLiteException e) {
-                dbConsistent = false;
             }
+        } catch (SQLiteException e) {
+            return -1;
+        }
+    }
 
-            if (!dbConsistent) {
-                getLibraryDb().delete();
+    /**
+     * Run a check pragma on a separate read only connection
+     *
+     * @param pragma quick_check or integrity_check
+     * @return true if the check returned ok
+     */
+    private boolean runCheck(String pragma) {
+        try {
+            openDatabase(SQLiteDatabase.OPEN_READONLY);
+            try {
+                return DatabaseUtils.stringForQuery(db, "PRAGMA main." + pragma + "(1)", null)
+                        .equalsIgnoreCase("ok");
+            } finally {
+                closeDatabase();
             }
+        } catch (SQLiteException e) {
+            Log.d(TAG, pragma + " failed: " + e.getMessage());
+            return false;
         }
+    }
 
-        return dbConsistent;
+    /**
+     * Rebuild everything that is derived from the songs table: the fts table, the indexes
+     * and the trigram index. This repairs a corrupt index without downloading the library
+     * again, but not a corrupt songs table. Afterwards the library has the current
+     * OPTIMIZED_VERSION, so libraries of older versions are upgraded by a repair.
+     *
+     * @return true if the rebuild succeeded
+     */
+    private boolean repair() {
+        long start = SystemClock.elapsedRealtime();
+        // Waits until the running queries and their cursors released the library
+        LibraryDatabaseManager.getInstance().close();
+        QueryResultCache.getInstance().invalidate();
+
+        try {
+            openDatabase(SQLiteDatabase.OPEN_READWRITE);
+            try {
+                List<String> steps = new ArrayList<>(Arrays.asList(
+                        "DROP TABLE IF EXISTS " + SONGS_FTS,
+                        "DROP TABLE IF EXISTS " + FuzzySearch.SONGS_WORDS,
+                        "DROP TABLE IF EXISTS " + FuzzySearch.SONGS_TRIGRAMS,
+                        "DROP INDEX IF EXISTS " + SONGS_ARTIST,
+                        "DROP INDEX IF EXISTS " + SONGS_ALBUM,
+                        "DROP INDEX IF EXISTS " + SONGS_TITLE,
+                        // Indexes of the songs table Clementine created
+                        "REINDEX " + SONGS));
+                steps.addAll(getIndexSteps());
+
+                // Sets the version in the same transaction
+                runSteps(steps, null);
+            } finally {
+                closeDatabase();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot repair library: " + e.getMessage());
+            return false;
+        }
+
+        Log.i(TAG, "Repaired library in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return true;
     }
 
     /**
-     * Get the file path to the library database file. The file is stored on the
-     * external storage in die android dir. Filename is library.db
+     * Get the file path to the library database file of the currently configured Clementine.
+     * Each host has its own library in the libraries dir on the external storage, so
+     * switching between Clementine instances does not need a new download.
      *
      * @return The path incl. filename to the database file
      */
     public File getLibraryDb() {
-        return new File(App.getApp().getExternalFilesDir(null),
-                LIBRARY_DB_FILE_NAME);
+        if (mLibraryDb != null) {
+            return mLibraryDb;
+        }
+
+        File dir = getLibraryDir();
+        dir.mkdirs();
+        return new File(dir, Utilities.getCurrentHostId() + LIBRARY_DB_EXTENSION);
+    }
+
+    /**
+     * Delete the library file together with its write ahead log. The shared library
+     * database is closed first.
+     *
+     * @return true if the library file was deleted
+     */
+    public boolean deleteLibraryDb() {
+        releaseLibraryDb();
+        new File(getLibraryDb().getAbsolutePath() + NEW_LIBRARY_EXTENSION).delete();
+        return getLibraryDb().delete();
+    }
+
+    /**
+     * Replace the library file with a new one. The new file is renamed over the library,
+     * so the old library stays in place until the new one is complete. The shared library
+     * database is closed first.
+     *
+     * @param newLibrary The new library, in the same directory
+     * @return true if the library was replaced
+     */
+    public boolean replaceLibraryDb(File newLibrary) {
+        releaseLibraryDb();
+        return newLibrary.renameTo(getLibraryDb());
+    }
+
+    /**
+     * @return The file a new library is prepared in before it replaces the library
+     */
+    public File getNewLibraryDb() {
+        return new File(getLibraryDb().getAbsolutePath() + NEW_LIBRARY_EXTENSION);
+    }
+
+    /**
+     * Close the library and remove the files that belong to its content: the write ahead
+     * log, which must not be applied to another library file, and the browse index.
+     */
+    private void releaseLibraryDb() {
+        LibraryDatabaseManager.getInstance().close();
+        QueryResultCache.getInstance().invalidate();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getApp());
+        if (getLibraryDb().getName().equals(
+                prefs.getString(SharedPreferencesKeys.SP_LIBRARY_NEEDS_REPAIR, ""))) {
+            prefs.edit().remove(SharedPreferencesKeys.SP_LIBRARY_NEEDS_REPAIR).apply();
+        }
+
+        deleteBrowseIndex();
+
+        String path = getLibraryDb().getAbsolutePath();
+        new File(path + "-wal").delete();
+        new File(path + "-shm").delete();
+        new File(path + "-journal").delete();
+    }
+
+    /**
+     * @return The browse index file of the library
+     */
+    public File getBrowseIndexFile() {
+        return new File(getLibraryDb().getAbsolutePath() + BROWSE_INDEX_EXTENSION);
+    }
+
+    /**
+     * Write the browse index of the library for all groupings. Call it after the library
+     * changed, it reads the whole library.
+     *
+     * @return true if the index was written
+     */
+    public boolean buildBrowseIndex() {
+        String[] groupingNames = App.getApp().getResources()
+                .getStringArray(R.array.pref_library_grouping_values);
+        String[][] groupings = new String[groupingNames.length][];
+        for (int i = 0; i < groupingNames.length; i++) {
+            groupings[i] = LibraryQuery.getGroupingFields(groupingNames[i]);
+        }
+
+        File file = getBrowseIndexFile();
+        boolean built = false;
+        try {
+            openDatabase(SQLiteDatabase.OPEN_READWRITE);
+            try {
+                BrowseIndex.build(db, file, groupings);
+                built = true;
+            } finally {
+                closeDatabase();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Cannot build browse index: " + e.getMessage());
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write browse index: " + e.getMessage());
+        }
+
+        if (!built) {
+            file.delete();
+        }
+        LibraryDatabaseManager.getInstance().closeBrowseIndex();
+        return built;
+    }
+
+    /**
+     * Delete the browse index, because it does not match the library anymore
+     */
+    public void deleteBrowseIndex() {
+        getBrowseIndexFile().delete();
+        LibraryDatabaseManager.getInstance().closeBrowseIndex();
     }
 
     /**
-     * Check if the library file is from the currenly connected system. If not, we obviously cannot
-     * add songs from this db to Clementine. So here we delete the wrong library file.
+     * Use the library of the currently configured Clementine. It is marked as recently used
+     * and the libraries of other hosts are evicted if they exceed the disk budget.
      *
-     * @return true if a database file existed and the current Clementine connection has a different
-     * ip that the ip from the library. False otherwise
+     * @return true if the current host has a library
      */
-    public boolean removeDatabaseIfFromOtherClementine() {
+    public boolean selectHostLibrary() {
+        migrateLegacyLibrary();
+
+        File library = getLibraryDb();
+        if (library.exists()) {
+            library.setLastModified(System.currentTimeMillis());
+        }
+
+        evictLibraries();
+        return library.exists();
+    }
+
+    /**
+     * Remove the least recently used libraries of other hosts until all libraries fit into
+     * the disk budget set in the preferences. The library of the current host is kept,
+     * even if it alone exceeds the budget.
+     */
+    public void evictLibraries() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getApp());
+        long budget;
+        try {
+            budget = Long.parseLong(prefs.getString(SharedPreferencesKeys.SP_LIBRARY_CACHE_SIZE,
+                    DEFAULT_CACHE_SIZE_MB).trim());
+        } catch (NumberFormatException e) {
+            budget = Long.parseLong(DEFAULT_CACHE_SIZE_MB);
+        }
+        budget *= 1024 * 1024;
+
+        File[] files = getLibraryDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // All files of a host (wal, download journal...) start with the name of its library
+        HashMap<String, List<File>> hosts = new HashMap<>();
+        final HashMap<String, Long> lastUsed = new HashMap<>();
+        long size = 0;
+        for (File f : files) {
+            String name = f.getName();
+            int end = name.lastIndexOf(LIBRARY_DB_EXTENSION);
+            String host = end < 0 ? name : name.substring(0, end);
+
+            if (!hosts.containsKey(host)) {
+                hosts.put(host, new ArrayList<File>());
+                lastUsed.put(host, 0L);
+            }
+            hosts.get(host).add(f);
+            lastUsed.put(host, Math.max(lastUsed.get(host), f.lastModified()));
+            size += f.length();
+        }
+
+        List<String> order = new ArrayList<>(hosts.keySet());
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                return lastUsed.get(lhs).compareTo(lastUsed.get(rhs));
+            }
+        });
+
+        // The library of this helper might not be the one of the current host
+        String current = Utilities.getCurrentHostId();
+        String own = getLibraryDb().getName();
+        own = own.substring(0, own.lastIndexOf(LIBRARY_DB_EXTENSION));
+        for (String host : order) {
+            if (size <= budget) {
+                break;
+            }
+            if (host.equals(current) || host.equals(own)) {
+                continue;
+            }
+
+            Log.d(TAG, "Evicting library of " + host);
+            for (File f : hosts.get(host)) {
+                long length = f.length();
+                if (f.delete()) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Older versions stored a single library.db for the last connected ip. It is moved to
+     * the current host if it belongs to it, otherwise it is deleted.
+     */
+    private void migrateLegacyLibrary() {
+        File legacy = new File(App.getApp().getExternalFilesDir(null), LIBRARY_DB_FILE_NAME);
+        if (!legacy.exists()) {
+            return;
+        }
+
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getApp());
         String libraryClementine = prefs.getString(SharedPreferencesKeys.SP_LIBRARY_IP, "");
         String currentClementine = prefs.getString(SharedPreferencesKeys.SP_KEY_IP, "");
 
-        if (libraryClementine.equals(currentClementine)) {
-            return false;
-        } else {
-            // Save the current library ip
-            SharedPreferences.Editor edit = prefs.edit();
-            edit.putString(SharedPreferencesKeys.SP_LIBRARY_IP, currentClementine);
-            edit.apply();
-            // Delete the file if exists
-            return getLibraryDb().delete();
+        File library = getLibraryDb();
+        if (!libraryClementine.equals(currentClementine) || library.exists()
+                || !legacy.renameTo(library)) {
+            legacy.delete();
         }
+
+        for (String suffix : new String[]{"-wal", "-shm", "-journal", ".part", ".journal"}) {
+            new File(legacy.getAbsolutePath() + suffix).delete();
+        }
+        prefs.edit().remove(SharedPreferencesKeys.SP_LIBRARY_IP).apply();
+    }
+
+    private File getLibraryDir() {
+        return new File(App.getApp().getExternalFilesDir(null), LIBRARY_DIR);
     }
 
     /**
@@ -122,57 +559,344 @@ public class LibraryDatabaseHelper {
      * songs_fts for full text search. The following indices will be created:
      * songs_artist (artist) songs_album (artist, album) songs_title (artist,
      * album, title)
+     * <p/>
+     * The file must not be the library in use. It is written without journal and sync
+     * in a single transaction, which is only safe as long as nobody else reads it.
+     *
+     * @param dbFile   The database to optimize, e.g. the downloaded library
+     * @param listener Is notified before each step. Can be null
      */
-    public void optimizeTable() {
-        openDatabase(SQLiteDatabase.OPEN_READWRITE);
+    public void optimizeTable(File dbFile, OnOptimizeProgressListener listener) {
+        long start = SystemClock.elapsedRealtime();
+        db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            setBulkLoadPragmas();
 
-        // Remove unavailable songs
-        db.execSQL("DELETE from SONGS where unavailable <> 0");
+            List<String> steps = new ArrayList<>();
+            // Remove unavailable songs
+            steps.add("DELETE from SONGS where unavailable <> 0");
+            steps.addAll(getIndexSteps());
 
-        StringBuilder sb = new StringBuilder();
-        Cursor c = db.rawQuery("PRAGMA table_info(songs);", new String[]{});
+            runSteps(steps, listener);
+        } finally {
+            closeDatabase();
+        }
 
-        if (c != null && c.moveToFirst()) {
-            do {
+        Log.i(TAG, "Optimized library in " + (SystemClock.elapsedRealtime() - start) + "ms, size "
+                + Utilities.humanReadableBytes(dbFile.length(), true));
+    }
+
+    /**
+     * The statements that create the fts table and the indexes of the songs table. The
+     * docid of the fts table is the rowid of the song, so single songs can be updated later.
+     */
+    private List<String> getIndexSteps() {
+        String columns = getColumns("main", SONGS);
+        String searchColumns = getSearchColumns(columns);
+
+        // If supported, the fts table reads the text from the songs table instead of
+        // storing a copy. Prefix indexes speed up the "match*" queries of the search.
+        String ftsOptions = "";
+        if (supportsExternalContent()) {
+            ftsOptions = "content=\"" + SONGS + "\", prefix=\"" + FTS_PREFIX_INDEXES + "\", ";
+        }
+
+        return Arrays.asList(
+                // FTS Table for search
+                "CREATE VIRTUAL TABLE " + SONGS_FTS + " USING fts4(" + ftsOptions
+                        + searchColumns + ");",
+                "INSERT INTO " + SONGS_FTS + " (docid, " + searchColumns + ") SELECT ROWID, "
+                        + searchColumns + " FROM songs",
+                // Indices for fragment
+                "CREATE INDEX " + SONGS_ARTIST + " ON songs (artist);",
+                "CREATE INDEX " + SONGS_ALBUM + " ON songs (artist, album);",
+                "CREATE INDEX " + SONGS_TITLE + " ON songs (artist, album, title);");
+    }
+
+    /**
+     * Run the statements in one transaction. The last step builds the trigram index of the
+     * fuzzy search.
+     */
+    private void runSteps(List<String> steps, OnOptimizeProgressListener listener) {
+        int stepCount = steps.size() + 1;
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < stepCount; i++) {
+                if (listener != null) {
+                    listener.OnOptimizeProgress(i + 1, stepCount);
+                }
+                long stepStart = SystemClock.elapsedRealtime();
+                if (i < steps.size()) {
+                    db.execSQL(steps.get(i));
+                } else {
+                    FuzzySearch.buildIndex(db);
+                }
+                Log.d(TAG, "Optimize step " + (i + 1) + "/" + stepCount + " took "
+                        + (SystemClock.elapsedRealtime() - stepStart) + "ms");
+            }
+
+            db.setVersion(OPTIMIZED_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Get the columns of the songs table that are indexed for the search
+     *
+     * @param columns The comma separated columns of the songs table
+     * @return The comma separated columns to index
+     */
+    private String getSearchColumns(String columns) {
+        List<String> available = Arrays.asList(columns.split(", "));
+        StringBuilder sb = new StringBuilder();
+        for (String column : SEARCH_COLUMNS) {
+            if (available.contains(column)) {
                 if (sb.length() != 0) {
                     sb.append(", ");
                 }
-                sb.append(c.getString(1));
-            } while (c.moveToNext());
-            c.close();
+                sb.append(column);
+            }
         }
+        return sb.toString();
+    }
 
-        // FTS Table for search
-        db.execSQL("CREATE VIRTUAL TABLE " + SONGS_FTS
-                + " USING fts3(" + sb.toString() + ");");
-        db.execSQL("INSERT INTO " + SONGS_FTS + " SELECT * FROM songs");
+    /**
+     * External content fts4 tables and prefix indexes need SQLite 3.7.9 (Android 4.1)
+     */
+    private boolean supportsExternalContent() {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        try {
+            int major = Integer.parseInt(version[0]);
+            int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+            int patch = version.length > 2 ? Integer.parseInt(version[2]) : 0;
+            return major > 3 || (major == 3 && (minor > 7 || (minor == 7 && patch >= 9)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Settings for writing a file nobody else uses. There is no rollback journal and no
+     * fsync, the caller swaps the file in after it is closed.
+     */
+    private void setBulkLoadPragmas() {
+        // The page size of an existing file can only be changed by rebuilding it
+        if (DatabaseUtils.longForQuery(db, "PRAGMA page_size", null) < BULK_LOAD_PAGE_SIZE) {
+            db.execSQL("PRAGMA page_size = " + BULK_LOAD_PAGE_SIZE);
+            db.execSQL("VACUUM");
+        }
 
-        // Indices for fragment
-        db.execSQL("CREATE INDEX " + SONGS_ARTIST + " ON songs (artist);");
-        db.execSQL("CREATE INDEX " + SONGS_ALBUM + " ON songs (artist, album);");
-        db.execSQL("CREATE INDEX " + SONGS_TITLE
-                + " ON songs (artist, album, title);");
+        // journal_mode returns the new mode, so it has to be run as a query
+        Cursor c = db.rawQuery("PRAGMA journal_mode = OFF", null);
+        c.moveToFirst();
+        c.close();
 
-        closeDatabase();
+        db.execSQL("PRAGMA synchronous = OFF");
+        db.execSQL("PRAGMA temp_store = MEMORY");
+        db.execSQL("PRAGMA cache_size = -" + BULK_LOAD_CACHE_SIZE_KB);
     }
 
-    public boolean databaseExists() {
-        return getLibraryDb().exists();
+    /**
+     * Apply a downloaded library to the local library. Songs are matched by their filename
+     * and compared column by column, only added, changed and removed songs are written to
+     * the songs table and the fts index.
+     * <p/>
+     * Clementine exports the songs with CREATE TABLE AS SELECT, so the rowids are numbered
+     * again on every export and cannot be used to match the songs. If many songs changed,
+     * replacing the library is faster than updating it.
+     *
+     * @param snapshot The library file Clementine sent
+     * @return The number of changed songs or -1 if the library cannot be updated
+     * incrementally and has to be replaced
+     */
+    public int syncFrom(File snapshot) {
+        if (!databaseExists()) {
+            return -1;
+        }
+
+        openDatabase(SQLiteDatabase.OPEN_READWRITE);
+        try {
+            // Only libraries with a fts index created by optimizeTable() can be updated
+            if (db.getVersion() != OPTIMIZED_VERSION) {
+                return -1;
+            }
+
+            db.execSQL("ATTACH DATABASE ? AS snapshot", new Object[]{snapshot.getAbsolutePath()});
+            try {
+                String columns = getColumns("main", SONGS);
+                if (!columns.equals(getColumns("snapshot", SONGS))
+                        || !columns.matches("(.*, )?mtime(, .*)?")
+                        || !columns.matches("(.*, )?filename(, .*)?")) {
+                    return -1;
+                }
+
+                int changes = applyChanges(columns, getColumns("main", SONGS_FTS));
+                if (changes > 0) {
+                    QueryResultCache.getInstance().invalidate();
+                    deleteBrowseIndex();
+                }
+                return changes;
+            } finally {
+                db.execSQL("DETACH DATABASE snapshot");
+            }
+        } catch (SQLiteException e) {
+            return -1;
+        } finally {
+            closeDatabase();
+        }
     }
 
-    private boolean databaseIntegrityOk() {
-        boolean result;
+    private int applyChanges(String columns, String searchColumns) {
+        db.beginTransaction();
+        try {
+            // Filenames of the songs in both libraries. The filename identifies a song
+            db.execSQL("CREATE TEMP TABLE sync_main (filename TEXT PRIMARY KEY, id INTEGER)");
+            db.execSQL("INSERT OR IGNORE INTO sync_main SELECT filename, ROWID FROM main.songs"
+                    + " WHERE filename IS NOT NULL");
+            db.execSQL("CREATE TEMP TABLE sync_snapshot (filename TEXT PRIMARY KEY, id INTEGER)");
+            db.execSQL("INSERT OR IGNORE INTO sync_snapshot SELECT filename, ROWID"
+                    + " FROM snapshot.songs WHERE filename IS NOT NULL AND unavailable = 0");
+
+            // Songs without a filename or with the same filename cannot be matched
+            int mainSongs = count("main.songs");
+            int snapshotSongs = count("sync_snapshot");
+            if (count("sync_main") != mainSongs
+                    || DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM snapshot.songs"
+                    + " WHERE unavailable = 0", null) != snapshotSongs) {
+                return -1;
+            }
+
+            // Songs in both libraries that changed
+            db.execSQL("CREATE TEMP TABLE sync_changed (main_id INTEGER PRIMARY KEY,"
+                    + " snapshot_id INTEGER)");
+            db.execSQL("INSERT INTO sync_changed SELECT m.id, s.id FROM sync_main m"
+                    + " JOIN sync_snapshot s ON s.filename = m.filename"
+                    + " JOIN main.songs a ON a.ROWID = m.id"
+                    + " JOIN snapshot.songs b ON b.ROWID = s.id"
+                    + " WHERE " + getChangedCondition(columns, "a", "b"));
+
+            // Songs that are removed or changed
+            db.execSQL("CREATE TEMP TABLE sync_removed (id INTEGER PRIMARY KEY)");
+            db.execSQL("INSERT INTO sync_removed SELECT id FROM sync_main"
+                    + " WHERE filename NOT IN (SELECT filename FROM sync_snapshot)"
+                    + " UNION SELECT main_id FROM sync_changed");
+
+            // Songs that are new or changed
+            db.execSQL("CREATE TEMP TABLE sync_added (id INTEGER PRIMARY KEY)");
+            db.execSQL("INSERT INTO sync_added SELECT id FROM sync_snapshot"
+                    + " WHERE filename NOT IN (SELECT filename FROM sync_main)"
+                    + " UNION SELECT snapshot_id FROM sync_changed");
+
+            int removed = count("sync_removed");
+            int added = count("sync_added");
+
+            // Changed songs are in both tables
+            int changes = Math.max(removed, added);
+            if (changes > Math.max(mainSongs, snapshotSongs) * MAX_SYNC_CHANGES) {
+                Log.i(TAG, changes + " songs changed, replacing the library");
+                return -1;
+            }
+
+            if (changes > 0) {
+                // Words of the removed songs, some might not be used by any song after this
+                Set<String> removedWords = FuzzySearch.getWords(db,
+                        "ROWID IN (SELECT id FROM sync_removed)");
+
+                // An external content fts table reads the old text from the songs table,
+                // so the fts entries have to be removed first
+                db.execSQL("DELETE FROM " + SONGS_FTS
+                        + " WHERE docid IN (SELECT id FROM sync_removed)");
+                db.execSQL("DELETE FROM main.songs WHERE ROWID IN (SELECT id FROM sync_removed)");
+
+                // The added songs get new rowids after the remaining ones
+                long lastRowId = DatabaseUtils.longForQuery(db,
+                        "SELECT IFNULL(MAX(ROWID), 0) FROM main.songs", null);
+                db.execSQL("INSERT INTO main.songs (" + columns + ") SELECT " + columns
+                        + " FROM snapshot.songs WHERE ROWID IN (SELECT id FROM sync_added)");
+                db.execSQL("INSERT INTO " + SONGS_FTS + " (docid, " + searchColumns
+                        + ") SELECT ROWID, " + searchColumns
+                        + " FROM main.songs WHERE ROWID > " + lastRowId);
+                FuzzySearch.addSongs(db, "ROWID > " + lastRowId);
+                FuzzySearch.removeUnusedWords(db, removedWords);
+            }
+
+            db.execSQL("DROP TABLE sync_main");
+            db.execSQL("DROP TABLE sync_snapshot");
+            db.execSQL("DROP TABLE sync_changed");
+            db.execSQL("DROP TABLE sync_removed");
+            db.execSQL("DROP TABLE sync_added");
+
+            db.setTransactionSuccessful();
+
+            return changes;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Build the condition that is true if a song differs in any column
+     *
+     * @param columns The comma separated column names
+     * @param a       The alias of the first table
+     * @param b       The alias of the second table
+     * @return The condition
+     */
+    private String getChangedCondition(String columns, String a, String b) {
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns.split(", ")) {
+            if (sb.length() != 0) {
+                sb.append(" OR ");
+            }
+            sb.append(a).append('.').append(column).append(" IS NOT ")
+                    .append(b).append('.').append(column);
+        }
+        return sb.toString();
+    }
+
+    private int count(String table) {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
         try {
-            Cursor c = db.rawQuery("PRAGMA main.integrity_check(1)", null);
             c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
 
-            result = c.getString(0).equalsIgnoreCase("ok");
+    /**
+     * Get the columns of a table
+     *
+     * @param schema The attached database
+     * @param table  The table
+     * @return The comma separated column names
+     */
+    private String getColumns(String schema, String table) {
+        StringBuilder sb = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA " + schema + ".table_info(" + table + ");", new String[]{});
 
+        if (c != null && c.moveToFirst()) {
+            do {
+                if (sb.length() != 0) {
+                    sb.append(", ");
+                }
+                sb.append(c.getString(1));
+            } while (c.moveToNext());
+        }
+        if (c != null) {
             c.close();
-        } catch (SQLiteException e) {
-            result = false;
         }
-        return result;
+
+        return sb.toString();
+    }
+
+    public boolean databaseExists() {
+        return getLibraryDb().exists();
     }
 
 }
@@ -0,0 +1,197 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.qspool.clementineremote.backend.database.QueryResultCache;
+
+/**
+ * Holds the one library database all queries read from. The database is opened in write
+ * ahead logging mode, so SQLiteDatabase keeps a small pool of connections and several
+ * queries can read at the same time while the library is updated in the background.
+ * <p/>
+ * The database is opened on first use. It has to be closed before the library file is
+ * replaced or deleted, the next query opens the new file. When the configured Clementine
+ * changes, the library of the new host is opened.
+ * <p/>
+ * Queries hold a reference to the database while they run and while their cursor is open,
+ * see acquireReadableDatabase(). close() waits until all references are released, so it
+ * does not close the database under a cursor. Writers, like the repair and the incremental
+ * update, use their own connection and are not counted.
+ * <p/>
+ * The browse index of the library is mapped next to the database, see {@link BrowseIndex}.
+ */
+public class LibraryDatabaseManager {
+
+    private final static String TAG = "LibraryDatabaseManager";
+
+    // Longest wait for the readers in close(), e.g. for a cursor that is never closed
+    private final static long CLOSE_TIMEOUT = 10000;
+
+    private static LibraryDatabaseManager mInstance;
+
+    private SQLiteDatabase mDatabase;
+
+    // References to mDatabase held by queries and cursors
+    private int mReaders;
+
+    // New readers wait until close() is done
+    private boolean mClosing;
+
+    private BrowseIndex mBrowseIndex;
+
+    private File mBrowseIndexFile;
+
+    public static synchronized LibraryDatabaseManager getInstance() {
+        if (mInstance == null) {
+            mInstance = new LibraryDatabaseManager();
+        }
+        return mInstance;
+    }
+
+    private LibraryDatabaseManager() {
+    }
+
+    /**
+     * Get the shared library database for a query. Use it only for reading. Every call has
+     * to be paired with releaseReadableDatabase() once the query and its cursor are done.
+     *
+     * @return The database
+     */
+    public synchronized SQLiteDatabase acquireReadableDatabase() {
+        while (mClosing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+        mReaders++;
+        return db;
+    }
+
+    /**
+     * Release a reference taken by acquireReadableDatabase()
+     *
+     * @param db The database acquireReadableDatabase() returned
+     */
+    public synchronized void releaseReadableDatabase(SQLiteDatabase db) {
+        // The reference of a database closed after the timeout is gone already
+        if (db == mDatabase && mReaders > 0) {
+            mReaders--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the shared library database without a reference. Queries use
+     * acquireReadableDatabase() instead.
+     *
+     * @return The database
+     */
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        String path = new LibraryDatabaseHelper().getLibraryDb().getAbsolutePath();
+        if (mDatabase != null && mDatabase.isOpen() && !path.equals(mDatabase.getPath())) {
+            // Connected to another Clementine, which has its own library
+            close();
+            QueryResultCache.getInstance().invalidate();
+        }
+
+        if (mDatabase == null || !mDatabase.isOpen()) {
+            // Write access is needed to switch to and use the write ahead log
+            mDatabase = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READWRITE);
+            if (!mDatabase.enableWriteAheadLogging()) {
+                Log.d(TAG, "Write ahead logging not available");
+            }
+        }
+        return mDatabase;
+    }
+
+    /**
+     * Get the browse index of the library. It is mapped on first use.
+     *
+     * @return The index or null if the library has no index
+     */
+    public synchronized BrowseIndex getBrowseIndex() {
+        File file = new LibraryDatabaseHelper().getBrowseIndexFile();
+        if (mBrowseIndex != null && file.equals(mBrowseIndexFile)) {
+            return mBrowseIndex;
+        }
+
+        mBrowseIndex = null;
+        mBrowseIndexFile = file;
+        if (file.exists()) {
+            try {
+                mBrowseIndex = BrowseIndex.open(file);
+            } catch (IOException e) {
+                Log.d(TAG, "Cannot open browse index: " + e.getMessage());
+                file.delete();
+            }
+        }
+        return mBrowseIndex;
+    }
+
+    /**
+     * Drop the mapped browse index, e.g. because it was rebuilt or deleted. Cursors of the
+     * old index stay valid.
+     */
+    public synchronized void closeBrowseIndex() {
+        mBrowseIndex = null;
+        mBrowseIndexFile = null;
+    }
+
+    /**
+     * Close the database. Waits until the running queries released the database, new
+     * queries wait until it is closed and then open the library file again.
+     */
+    public synchronized void close() {
+        mClosing = true;
+        try {
+            long deadline = SystemClock.elapsedRealtime() + CLOSE_TIMEOUT;
+            while (mReaders > 0) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, mReaders + " readers did not release the library, closing it");
+                    break;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mClosing = false;
+            notifyAll();
+        }
+
+        if (mDatabase != null && mDatabase.isOpen()) {
+            mDatabase.close();
+        }
+        mDatabase = null;
+        mReaders = 0;
+        closeBrowseIndex();
+    }
+}
@@ -0,0 +1,275 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseLibraryChunk;
+
+/**
+ * Keeps track of a partially downloaded library. The chunks are written into a part file
+ * next to the library. For every chunk that is completely written to the part file, the
+ * chunk number and size is appended to a journal file.
+ * <p/>
+ * Clementine cannot start the library download at an offset, it always sends all chunks.
+ * When a download is resumed, chunks that are already in the journal are skipped and
+ * only the missing ones are written.
+ */
+public class LibraryDownloadJournal {
+
+    private final static int MAGIC = 0x43524c4a; // "CRLJ"
+
+    private File mPartFile;
+
+    private File mJournalFile;
+
+    private int mTotalSize;
+
+    private int mChunkCount;
+
+    private ByteString mFileHash = ByteString.EMPTY;
+
+    // Index i holds the size of chunk i + 1
+    private ArrayList<Integer> mChunkSizes = new ArrayList<>();
+
+    private long mLength;
+
+    private LinkedList<int[]> mPendingChunks = new LinkedList<>();
+
+    public LibraryDownloadJournal(File libraryDb) {
+        mPartFile = new File(libraryDb.getAbsolutePath() + ".part");
+        mJournalFile = new File(libraryDb.getAbsolutePath() + ".journal");
+    }
+
+    /**
+     * Load the journal of an interrupted download. The part file is truncated to the
+     * chunks in the journal, as data after the last journaled chunk might be incomplete.
+     *
+     * @return true if a download can be resumed
+     */
+    public boolean load() {
+        mChunkSizes.clear();
+        mPendingChunks.clear();
+        mLength = 0;
+
+        if (!mJournalFile.exists() || !mPartFile.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            mTotalSize = in.readInt();
+            mChunkCount = in.readInt();
+            byte[] hash = new byte[in.readInt()];
+            in.readFully(hash);
+            mFileHash = ByteString.copyFrom(hash);
+
+            try {
+                while (true) {
+                    int number = in.readInt();
+                    int size = in.readInt();
+                    // Chunks are written in order, stop at the first gap
+                    if (number != mChunkSizes.size() + 1) {
+                        break;
+                    }
+                    mChunkSizes.add(size);
+                    mLength += size;
+                }
+            } catch (EOFException e) {
+                // End of journal. A partly written entry is ignored
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (mChunkSizes.isEmpty() || mPartFile.length() < mLength) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mPartFile, "rw");
+            raf.setLength(mLength);
+            raf.close();
+        } catch (IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check if the loaded journal belongs to the library Clementine is sending now
+     *
+     * @param chunk The first chunk received
+     * @return true if the download can be resumed with the loaded journal
+     */
+    public boolean matches(ResponseLibraryChunk chunk) {
+        if (chunk.getSize() != mTotalSize || chunk.getChunkCount() != mChunkCount) {
+            return false;
+        }
+
+        // If we know both hashes, the library must not have changed
+        return chunk.getFileHash().isEmpty() || mFileHash.isEmpty()
+                || chunk.getFileHash().equals(mFileHash);
+    }
+
+    /**
+     * Start a new download. Removes an old part file and journal.
+     *
+     * @param chunk The first chunk received
+     */
+    public void start(ResponseLibraryChunk chunk) throws IOException {
+        delete();
+
+        mTotalSize = chunk.getSize();
+        mChunkCount = chunk.getChunkCount();
+        mFileHash = chunk.getFileHash();
+        mChunkSizes.clear();
+        mPendingChunks.clear();
+        mLength = 0;
+
+        mPartFile.createNewFile();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mJournalFile));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(mTotalSize);
+            out.writeInt(mChunkCount);
+            out.writeInt(mFileHash.size());
+            mFileHash.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add a chunk that was written to the part file. It is stored in the journal
+     * on the next call to {@link #sync()}.
+     *
+     * @param number The chunk number
+     * @param size   The size of the chunk data
+     */
+    public void addChunk(int number, int size) {
+        mPendingChunks.add(new int[]{number, size});
+        mChunkSizes.add(size);
+        mLength += size;
+    }
+
+    /**
+     * Write the added chunks to the journal. Call this only after the part file was
+     * flushed, so the journal never lists data that is not on disk.
+     */
+    public void sync() throws IOException {
+        if (mPendingChunks.isEmpty()) {
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mJournalFile, true));
+        try {
+            for (int[] chunk : mPendingChunks) {
+                out.writeInt(chunk[0]);
+                out.writeInt(chunk[1]);
+            }
+        } finally {
+            out.close();
+        }
+        mPendingChunks.clear();
+    }
+
+    /**
+     * Remove the part file and the journal
+     */
+    public void delete() {
+        mPartFile.delete();
+        mJournalFile.delete();
+    }
+
+    /**
+     * The download finished. Move the part file to another file and remove the journal, so
+     * a later download does not resume onto the file while it is changed.
+     *
+     * @param file The file the part file is renamed to. An existing file is replaced.
+     * @return true if the file was moved
+     */
+    public boolean complete(File file) {
+        boolean moved = mPartFile.renameTo(file);
+        mJournalFile.delete();
+        if (!moved) {
+            mPartFile.delete();
+        }
+        return moved;
+    }
+
+    /**
+     * @return The number of the last chunk in the part file. 0 if no chunk was written.
+     */
+    public int getLastChunk() {
+        return mChunkSizes.size();
+    }
+
+    /**
+     * Get the size of a chunk in the part file
+     *
+     * @param number The chunk number
+     * @return The size or -1 if the chunk is not in the part file
+     */
+    public int getChunkSize(int number) {
+        if (number < 1 || number > mChunkSizes.size()) {
+            return -1;
+        }
+        return mChunkSizes.get(number - 1);
+    }
+
+    /**
+     * @return The length of the part file, including chunks not yet synced
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public File getPartFile() {
+        return mPartFile;
+    }
+
+    private void closeQuietly(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -4,14 +4,25 @@ package de.qspool.clementineremote.backend.library;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.preference.PreferenceManager;
 
+import java.util.Arrays;
+import java.util.List;
+
 import de.qspool.clementineremote.SharedPreferencesKeys;
 import de.qspool.clementineremote.backend.database.DynamicSongQuery;
+import de.qspool.clementineremote.backend.database.QuerySections;
 
 public class LibraryQuery extends DynamicSongQuery {
 
+    // Number of songs the fuzzy search returns
+    private final static int FUZZY_RESULTS = 100;
+
+    // With fewer matches the songs of the fuzzy search are listed as well
+    private final static int FUZZY_MIN_MATCHES = 10;
+
     public LibraryQuery(Context context) {
         super(context);
     }
@@ -23,6 +34,16 @@ public class LibraryQuery extends DynamicSongQuery {
 
         String grouping = sharedPreferences.getString(SharedPreferencesKeys.SP_LIBRARY_GROUPING,
                 "artist-album");
+        return getGroupingFields(grouping);
+    }
+
+    /**
+     * Get the fields of a grouping
+     *
+     * @param grouping The grouping as stored in the preferences, e.g. "artist-album"
+     * @return The fields of the levels
+     */
+    public static String[] getGroupingFields(String grouping) {
         String[] selectedFields = new String[] {"artist", "title"};
 
         switch (grouping) {
@@ -64,24 +85,136 @@ public class LibraryQuery extends DynamicSongQuery {
         return LibraryDatabaseHelper.SONGS;
     }
 
+    @Override
+    protected boolean isCacheable() {
+        return true;
+    }
+
+    @Override
+    protected boolean isPageable() {
+        return true;
+    }
+
+    @Override
+    protected Cursor queryBrowseIndex(String[] fields, int level, String[] selection,
+            boolean descending) {
+        BrowseIndex index = getBrowseIndex();
+        return index == null ? null : index.query(fields, level, selection, descending);
+    }
+
+    @Override
+    protected QuerySections queryBrowseIndexSections(String[] fields, int level,
+            String[] selection, boolean descending, boolean decade) {
+        BrowseIndex index = getBrowseIndex();
+        return index == null ? null
+                : index.querySections(fields, level, selection, descending, decade);
+    }
+
+    /**
+     * @return The browse index of the library or null if there is none
+     */
+    protected BrowseIndex getBrowseIndex() {
+        return LibraryDatabaseManager.getInstance().getBrowseIndex();
+    }
+
     @Override
     public SQLiteDatabase getReadableDatabase() {
-        return new LibraryDatabaseHelper().openDatabase(SQLiteDatabase.OPEN_READONLY);
+        return LibraryDatabaseManager.getInstance().getReadableDatabase();
+    }
+
+    @Override
+    protected SQLiteDatabase acquireDatabase() {
+        return LibraryDatabaseManager.getInstance().acquireReadableDatabase();
     }
 
     @Override
-    public String getMatchesSubQuery(String match) {
+    protected void releaseDatabase(SQLiteDatabase db) {
+        LibraryDatabaseManager.getInstance().releaseReadableDatabase(db);
+    }
+
+    @Override
+    public String getMatchesSubQuery() {
         StringBuilder sb = new StringBuilder();
 
-        sb.append("(SELECT * FROM ");
+        // The fts table only holds the searchable columns, the songs are read from the songs
+        // table by the docid. The search expression is bound as parameter.
+        sb.append("(SELECT ROWID AS ROWID, * FROM ");
+        sb.append(LibraryDatabaseHelper.SONGS);
+        sb.append(" WHERE ROWID IN (SELECT docid FROM ");
         sb.append(LibraryDatabaseHelper.SONGS_FTS);
         sb.append(" WHERE ");
         sb.append(LibraryDatabaseHelper.SONGS_FTS);
-        sb.append(" MATCH \"");
-        sb.append(match);
-        sb.append("*");
+        sb.append(" MATCH ?)) ");
+
+        return sb.toString();
+    }
 
-        sb.append("\" ) ");
+    /**
+     * Search the library. If only a few songs match, the songs of the fuzzy search are
+     * listed below them, so a typo still finds the song.
+     */
+    @Override
+    public Cursor buildMatchQuery(String match) {
+        // Only counted up to the threshold, the matches are not read
+        if (countMatches(match, FUZZY_MIN_MATCHES) >= FUZZY_MIN_MATCHES) {
+            return super.buildMatchQuery(match);
+        }
+
+        List<Long> ids;
+        SQLiteDatabase db = acquireDatabase();
+        try {
+            ids = FuzzySearch.search(db, match, FUZZY_RESULTS);
+        } finally {
+            releaseDatabase(db);
+        }
+        if (ids.isEmpty()) {
+            return super.buildMatchQuery(match);
+        }
+
+        // Unused parameters are filled with an invalid rowid, so the statement is the same
+        // for every fuzzy search. The match is bound twice, once for the rank and once for
+        // the filter, and so are the ids.
+        String matchExpression = buildMatchExpression(match);
+        String[] args = new String[FUZZY_RESULTS * 2 + 2];
+        Arrays.fill(args, "-1");
+        args[0] = matchExpression;
+        args[FUZZY_RESULTS + 1] = matchExpression;
+        for (int i = 0; i < ids.size(); i++) {
+            args[1 + i] = String.valueOf(ids.get(i));
+            args[FUZZY_RESULTS + 2 + i] = args[1 + i];
+        }
+
+        return buildQuery(getFuzzySubQuery(), args, true);
+    }
+
+    /**
+     * Select the songs that match the search and the songs of the fuzzy search. The rank
+     * column lists the matches first, then the fuzzy songs by their position in the search
+     * result, so the most similar songs are listed first.
+     */
+    private String getFuzzySubQuery() {
+        String matches = "ROWID IN (SELECT docid FROM " + LibraryDatabaseHelper.SONGS_FTS
+                + " WHERE " + LibraryDatabaseHelper.SONGS_FTS + " MATCH ?)";
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("(SELECT ROWID AS ROWID, *, CASE WHEN ");
+        sb.append(matches);
+        sb.append(" THEN -1");
+        for (int i = 0; i < FUZZY_RESULTS; i++) {
+            sb.append(" WHEN ROWID = ? THEN ");
+            sb.append(i);
+        }
+        sb.append(" END AS ");
+        sb.append(RANK_COLUMN);
+        sb.append(" FROM ");
+        sb.append(LibraryDatabaseHelper.SONGS);
+        sb.append(" WHERE ");
+        sb.append(matches);
+        sb.append(" OR ROWID IN (");
+        for (int i = 0; i < FUZZY_RESULTS; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(")) ");
 
         return sb.toString();
     }
@@ -25,5 +25,7 @@ public interface OnLibraryDownloadListener {
 
     void OnOptimizeLibrary();
 
+    void OnOptimizeProgress(int step, int steps);
+
     void OnLibraryDownloadFinished(DownloaderResult result);
 }
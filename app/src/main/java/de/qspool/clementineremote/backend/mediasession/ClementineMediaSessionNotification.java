@@ -36,6 +36,7 @@ import android.widget.RemoteViews;
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.R;
 import de.qspool.clementineremote.backend.Clementine;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.player.MySong;
 import de.qspool.clementineremote.backend.receivers.ClementineBroadcastReceiver;
 import de.qspool.clementineremote.utils.Utilities;
@@ -115,7 +116,9 @@ public class ClementineMediaSessionNotification extends ClementineMediaSession {
 
     @Override
     public void updateSession() {
-        MySong song = App.Clementine.getCurrentSong();
+        // Read song and play state from the same snapshot
+        PlayerState playerState = App.Clementine.getPlayerState();
+        MySong song = playerState.getCurrentSong();
         if (song != null) {
             Bitmap scaledArt = Bitmap.createScaledBitmap(song.getArt(),
                     mNotificationWidth,
@@ -137,7 +140,7 @@ public class ClementineMediaSessionNotification extends ClementineMediaSession {
         Intent intentNext = new Intent(mContext, ClementineBroadcastReceiver.class);
         intentNext.setAction(ClementineBroadcastReceiver.NEXT);
 
-        if (App.Clementine.getState() == Clementine.State.PLAY) {
+        if (playerState.getState() == Clementine.State.PLAY) {
             mNotificationView.setImageViewResource(R.id.noti_play_pause,
                     mTurnColor ? R.drawable.ic_media_pause : R.drawable.ab_media_pause);
             intentPlayPause.setAction(ClementineBroadcastReceiver.PAUSE);
@@ -28,6 +28,7 @@ import android.media.MediaMetadataRetriever;
 
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.backend.Clementine;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.player.MySong;
 import de.qspool.clementineremote.backend.receivers.ClementineMediaButtonEventReceiver;
 
@@ -88,15 +89,18 @@ public class ClementineMediaSessionV20 extends ClementineMediaSession {
 
     @Override
     public void updateSession() {
+        // Read song and play state from the same snapshot
+        PlayerState playerState = App.Clementine.getPlayerState();
+
         // Update playstate
-        if (App.Clementine.getState() == Clementine.State.PLAY) {
+        if (playerState.getState() == Clementine.State.PLAY) {
             mRcClient.setPlaybackState(android.media.RemoteControlClient.PLAYSTATE_PLAYING);
         } else {
             mRcClient.setPlaybackState(android.media.RemoteControlClient.PLAYSTATE_PAUSED);
         }
 
         // Change the data
-        MySong song = App.Clementine.getCurrentSong();
+        MySong song = playerState.getCurrentSong();
         if (song != null && song.getArt() != null) {
             android.media.RemoteControlClient.MetadataEditor editor = mRcClient.editMetadata(false);
             editor.putBitmap(android.media.RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, song.getArt());
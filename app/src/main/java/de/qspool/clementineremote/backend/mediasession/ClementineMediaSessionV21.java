@@ -27,8 +27,10 @@ import android.media.Rating;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
 import android.os.Message;
+import android.os.SystemClock;
 
 import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
 import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.MsgType;
@@ -124,11 +126,14 @@ public class ClementineMediaSessionV21 extends ClementineMediaSession {
 
     @Override
     public void updateSession() {
+        // Read song and play state from the same snapshot
+        PlayerState playerState = App.Clementine.getPlayerState();
+
         // Update playstate
-        updatePlayState();
+        updatePlayState(playerState);
 
         // Change the data
-        updateMetaData();
+        updateMetaData(playerState);
     }
 
     @Override
@@ -136,16 +141,19 @@ public class ClementineMediaSessionV21 extends ClementineMediaSession {
         return mMediaSession;
     }
 
-    private void updatePlayState() {
+    private void updatePlayState(PlayerState playerState) {
         PlaybackState.Builder builder = new PlaybackState.Builder();
-        switch (App.Clementine.getState()) {
+        switch (playerState.getState()) {
             case PLAY:
-                builder.setState(PlaybackState.STATE_PLAYING, App.Clementine.getSongPosition(),
-                        1.0f);
+                // The system extrapolates the position from the update time
+                builder.setState(PlaybackState.STATE_PLAYING,
+                        App.Clementine.getPlaybackClock().getPositionMs(), 1.0f,
+                        SystemClock.elapsedRealtime());
                 break;
             case PAUSE:
-                builder.setState(PlaybackState.STATE_PAUSED, App.Clementine.getSongPosition(),
-                        1.0f);
+                builder.setState(PlaybackState.STATE_PAUSED,
+                        App.Clementine.getPlaybackClock().getPositionMs(), 1.0f,
+                        SystemClock.elapsedRealtime());
                 break;
             case STOP:
                 builder.setState(PlaybackState.STATE_STOPPED, 0, 1.0f);
@@ -157,8 +165,8 @@ public class ClementineMediaSessionV21 extends ClementineMediaSession {
         mMediaSession.setPlaybackState(builder.build());
     }
 
-    private void updateMetaData() {
-        MySong song = App.Clementine.getCurrentSong();
+    private void updateMetaData(PlayerState playerState) {
+        MySong song = playerState.getCurrentSong();
         if (song != null && song.getArt() != null) {
             MediaMetadata.Builder builder = new MediaMetadata.Builder();
             builder.putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, song.getArt());
@@ -29,6 +29,7 @@ import android.os.Build;
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.backend.Clementine;
 import de.qspool.clementineremote.backend.ClementinePlayerConnection;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.listener.PlayerConnectionListener;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
 import de.qspool.clementineremote.backend.player.MySong;
@@ -54,6 +55,9 @@ public class MediaSessionController {
 
     private BroadcastReceiver mMediaButtonBroadcastReceiver;
 
+    // Version of the player state the session was last updated with
+    private long mSessionStateVersion = -1;
+
     public MediaSessionController(Context context,
             ClementinePlayerConnection clementinePlayerConnection) {
         mContext = context;
@@ -97,6 +101,9 @@ public class MediaSessionController {
                         mMediaSessionNotification.registerSession();
                         mMediaSessionNotification.setMediaSessionCompat(
                                 mClementineMediaSession.getMediaSession());
+
+                        // New session, so update it with the next message
+                        mSessionStateVersion = -1;
                         break;
                     case DISCONNECTED:
                         mAudioManager.abandonAudioFocus(mOnAudioFocusChangeListener);
@@ -120,8 +127,7 @@ public class MediaSessionController {
 
                 switch (clementineMessage.getMessageType()) {
                     case CURRENT_METAINFO:
-                        mClementineMediaSession.updateSession();
-                        mMediaSessionNotification.updateSession();
+                        updateSessionIfChanged();
                         sendMetachangedIntent(META_CHANGED);
                         sendWidgetUpdateIntent(WidgetIntent.ClementineAction.STATE_CHANGE,
                                 ClementinePlayerConnection.ConnectionStatus.CONNECTED);
@@ -129,12 +135,18 @@ public class MediaSessionController {
                     case PLAY:
                     case PAUSE:
                     case STOP:
-                        mClementineMediaSession.updateSession();
-                        mMediaSessionNotification.updateSession();
+                        updateSessionIfChanged();
                         sendMetachangedIntent(PLAYSTATE_CHANGED);
                         sendWidgetUpdateIntent(WidgetIntent.ClementineAction.STATE_CHANGE,
                                 ClementinePlayerConnection.ConnectionStatus.CONNECTED);
                         break;
+                    case UPDATE_TRACK_POSITION:
+                        // The session extrapolates the position. Only update it if the
+                        // position jumped, e.g. because the user seeked in Clementine
+                        if (App.Clementine.getPlaybackClock().wasLastSyncCorrected()) {
+                            mClementineMediaSession.updateSession();
+                        }
+                        break;
                     case FIRST_DATA_SENT_COMPLETE:
                         sendWidgetUpdateIntent(WidgetIntent.ClementineAction.STATE_CHANGE,
                                 ClementinePlayerConnection.ConnectionStatus.CONNECTED);
@@ -146,10 +158,27 @@ public class MediaSessionController {
         });
     }
 
+    /**
+     * Update the media session and the notification, but only if the song or the play
+     * state changed since the last update. Clementine sends play state messages also
+     * when the state did not change.
+     */
+    private void updateSessionIfChanged() {
+        PlayerState playerState = App.Clementine.getPlayerState();
+        int changes = playerState.getChangesSince(mSessionStateVersion);
+        mSessionStateVersion = playerState.getVersion();
+
+        if ((changes & (PlayerState.CHANGED_SONG | PlayerState.CHANGED_STATE)) != 0) {
+            mClementineMediaSession.updateSession();
+            mMediaSessionNotification.updateSession();
+        }
+    }
+
     private void sendMetachangedIntent(String what) {
-        MySong currentSong = App.Clementine.getCurrentSong();
+        PlayerState playerState = App.Clementine.getPlayerState();
+        MySong currentSong = playerState.getCurrentSong();
         Intent i = new Intent(what);
-        i.putExtra("playing", App.Clementine.getState() == Clementine.State.PLAY);
+        i.putExtra("playing", playerState.getState() == Clementine.State.PLAY);
         if (null != currentSong) {
             i.putExtra("id", Long.valueOf(currentSong.getId()));
             i.putExtra("artist", currentSong.getArtist());
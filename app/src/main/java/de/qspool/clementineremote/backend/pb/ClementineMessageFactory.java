@@ -18,6 +18,7 @@
 package de.qspool.clementineremote.backend.pb;
 
 import java.util.LinkedList;
+import java.util.List;
 
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.DownloadItem;
@@ -244,14 +245,12 @@ public class ClementineMessageFactory {
      * @param urls      The urls to the items
      * @return the Clementine Message
      */
-    public static ClementineMessage buildInsertUrl(int playistId, LinkedList<String> urls) {
+    public static ClementineMessage buildInsertUrl(int playistId, List<String> urls) {
         Message.Builder msg = ClementineMessage.getMessageBuilder(MsgType.INSERT_URLS);
 
         RequestInsertUrls.Builder insertUrls = msg.getRequestInsertUrlsBuilder();
         insertUrls.setPlaylistId(playistId);
-        for (String url : urls) {
-            insertUrls.addUrls(url);
-        }
+        insertUrls.addAllUrls(urls);
 
         return new ClementineMessage(msg);
     }
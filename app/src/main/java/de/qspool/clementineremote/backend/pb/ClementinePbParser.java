@@ -17,14 +17,18 @@
 
 package de.qspool.clementineremote.backend.pb;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
 import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.SharedPreferencesKeys;
 import de.qspool.clementineremote.backend.Clementine;
 import de.qspool.clementineremote.backend.Clementine.RepeatMode;
 import de.qspool.clementineremote.backend.Clementine.ShuffleMode;
@@ -32,6 +36,7 @@ import de.qspool.clementineremote.backend.pb.ClementineMessage.ErrorMessage;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.EngineState;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Lyric;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Message;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.MsgType;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Playlist;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Repeat;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseActiveChanged;
@@ -83,6 +88,52 @@ public class ClementinePbParser {
         return parsedElement;
     }
 
+    /**
+     * Read only the message type from the binary data without parsing the whole message.
+     * This is used to decide on which thread a message is parsed.
+     *
+     * @param bs The binary representation of the protocol buffer
+     * @return The message type or UNKNOWN if it cannot be read
+     */
+    public static MsgType peekMessageType(byte[] bs) {
+        try {
+            CodedInputStream in = CodedInputStream.newInstance(bs);
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                // The lower 3 bits are the wire type, 0 is varint (used for enums)
+                if ((tag >>> 3) == Message.TYPE_FIELD_NUMBER && (tag & 7) == 0) {
+                    // The value map works with the generated code of protobuf 2 and 3,
+                    // valueOf(int) is deprecated in 3 in favour of forNumber(int)
+                    MsgType type = MsgType.internalGetValueMap()
+                            .findValueByNumber(in.readEnum());
+                    return type == null ? MsgType.UNKNOWN : type;
+                }
+                in.skipField(tag);
+            }
+        } catch (IOException e) {
+            Log.d("Parser", "Cannot peek message type");
+        }
+
+        return MsgType.UNKNOWN;
+    }
+
+    /**
+     * Convert the songs of a playlist to our structure
+     *
+     * @param response The message with the songs
+     * @return The songs in the representation of this app
+     */
+    public static List<MySong> convertPlaylistSongs(ResponsePlaylistSongs response) {
+        List<SongMetadata> songs = response.getSongsList();
+        List<MySong> mySongs = new LinkedList<MySong>();
+
+        for (SongMetadata s : songs) {
+            mySongs.add(MySong.fromProtocolBuffer(s));
+        }
+
+        return mySongs;
+    }
+
     /**
      * Parse the message itself
      *
@@ -100,6 +151,7 @@ public class ClementinePbParser {
                 MySong s = parseSong(msg.getResponseCurrentMetadata());
                 App.Clementine.setCurrentSong(s);
                 App.Clementine.setSongPosition(0);
+                loadLyrics(s);
                 break;
             case UPDATE_TRACK_POSITION:
                 parseUpdateTrackPosition(msg.getResponseUpdateTrackPosition());
@@ -158,7 +210,15 @@ public class ClementinePbParser {
      * @param responseLyrics The protocolbuffer message with the lyrics
      */
     private void parseLyrics(ResponseLyrics responseLyrics) {
+        MySong currentSong = App.Clementine.getCurrentSong();
+        if (!App.Clementine.getLyricsCache().takeRequest(currentSong)) {
+            // The track changed after the request, the lyrics are of another song
+            Log.d("Parser", "Dropping lyrics of a previous song");
+            return;
+        }
+
         // Read all lyric providers
+        List<LyricsProvider> providers = new LinkedList<LyricsProvider>();
         for (Lyric lyric : responseLyrics.getLyricsList()) {
             // Save them into the structure
             LyricsProvider provider = new LyricsProvider();
@@ -166,8 +226,38 @@ public class ClementinePbParser {
             provider.setTitle(lyric.getTitle());
             provider.setContent(lyric.getContent());
 
-            // And save them into the song
-            App.Clementine.getCurrentSong().getLyricsProvider().add(provider);
+            providers.add(provider);
+        }
+
+        // And save them into the song. A prefetch and a user request can both be answered,
+        // so replace the lyrics instead of adding them twice
+        currentSong.getLyricsProvider().clear();
+        currentSong.getLyricsProvider().addAll(providers);
+
+        App.Clementine.getLyricsCache().put(currentSong, providers);
+    }
+
+    /**
+     * Get the lyrics of a new song from the cache. If they are not cached and the user
+     * wants it, request them from Clementine, so they are available when the user opens
+     * them.
+     *
+     * @param song The new current song
+     */
+    private void loadLyrics(MySong song) {
+        if (song == null) {
+            return;
+        }
+
+        List<LyricsProvider> cachedLyrics = App.Clementine.getLyricsCache().get(song);
+        if (cachedLyrics != null) {
+            song.getLyricsProvider().addAll(cachedLyrics);
+        } else if (App.ClementineConnection != null
+                && PreferenceManager.getDefaultSharedPreferences(App.getApp())
+                .getBoolean(SharedPreferencesKeys.SP_PREFETCH_LYRICS, false)) {
+            android.os.Message msg = android.os.Message.obtain();
+            msg.obj = ClementineMessage.getMessage(MsgType.GET_LYRICS);
+            App.ClementineConnection.mHandler.sendMessage(msg);
         }
     }
 
@@ -231,7 +321,7 @@ public class ClementinePbParser {
      * @param responseUpdateTrackPosition The message
      */
     private void parseUpdateTrackPosition(ResponseUpdateTrackPosition responseUpdateTrackPosition) {
-        App.Clementine.setSongPosition(responseUpdateTrackPosition.getPosition());
+        App.Clementine.syncSongPosition(responseUpdateTrackPosition.getPosition());
     }
 
     /**
@@ -267,14 +357,8 @@ public class ClementinePbParser {
     private void parsePlaylistSongs(ResponsePlaylistSongs response) {
         Playlist playlist = response.getRequestedPlaylist();
 
-        List<SongMetadata> songs = response.getSongsList();
-        List<MySong> mySongs = new LinkedList<MySong>();
-
-        for (SongMetadata s : songs) {
-            mySongs.add(MySong.fromProtocolBuffer(s));
-        }
-
-        mPlaylistManager.playlistSongsDownloaded(playlist.getId(), mySongs);
+        mPlaylistManager.playlistSongsDownloaded(playlist.getId(),
+                convertPlaylistSongs(response));
     }
 
     /**
@@ -0,0 +1,267 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package de.qspool.clementineremote.backend.player;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import de.qspool.clementineremote.App;
+
+/**
+ * Caches the lyrics of songs, so they are still available after a track change and
+ * don't have to be requested from Clementine again.
+ * <p/>
+ * Lyrics are kept in memory and on disk. Both are limited and the least recently used
+ * entries are removed first. Entries are identified by the song id and url.
+ */
+public class LyricsCache {
+
+    private final static String TAG = "LyricsCache";
+
+    private final static String CACHE_DIR = "lyrics";
+
+    private final static int MAX_MEMORY_ENTRIES = 32;
+
+    private final static long MAX_DISK_SIZE = 2 * 1024 * 1024; // 2 MB
+
+    private LinkedHashMap<String, List<LyricsProvider>> mMemoryCache
+            = new LinkedHashMap<String, List<LyricsProvider>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<LyricsProvider>> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    };
+
+    // Keys of the songs lyrics were requested for, in the order the requests were sent
+    private LinkedList<String> mRequests = new LinkedList<>();
+
+    /**
+     * Remember the song lyrics are requested for. Clementine answers with the lyrics of
+     * its current song without naming it, so the answers are matched to the requests in
+     * order.
+     *
+     * @param song The current song when the request is sent, can be null
+     */
+    public synchronized void addRequest(MySong song) {
+        mRequests.add(song == null ? "" : getKey(song));
+    }
+
+    /**
+     * Take the oldest request when its answer arrives
+     *
+     * @param song The current song
+     * @return true if the request was made for this song, so the answer belongs to it
+     */
+    public synchronized boolean takeRequest(MySong song) {
+        String key = mRequests.poll();
+        return key != null && song != null && key.equals(getKey(song));
+    }
+
+    /**
+     * Forget the requests, their answers will not arrive on a new connection
+     */
+    public synchronized void clearRequests() {
+        mRequests.clear();
+    }
+
+    /**
+     * Get the cached lyrics of a song
+     *
+     * @param song The song
+     * @return The lyrics providers or null if the lyrics are not cached
+     */
+    public synchronized List<LyricsProvider> get(MySong song) {
+        String key = getKey(song);
+        List<LyricsProvider> providers = mMemoryCache.get(key);
+        if (providers == null) {
+            providers = readFromDisk(key);
+            if (providers != null) {
+                mMemoryCache.put(key, providers);
+            }
+        }
+
+        return providers;
+    }
+
+    /**
+     * Store the lyrics of a song in the cache
+     *
+     * @param song      The song
+     * @param providers The lyrics providers Clementine sent
+     */
+    public synchronized void put(MySong song, List<LyricsProvider> providers) {
+        if (providers.isEmpty()) {
+            return;
+        }
+
+        String key = getKey(song);
+        mMemoryCache.put(key, new LinkedList<>(providers));
+        writeToDisk(key, providers);
+    }
+
+    private String getKey(MySong song) {
+        return song.getId() + "|" + song.getUrl();
+    }
+
+    private File getCacheDir() {
+        return new File(App.getApp().getCacheDir(), CACHE_DIR);
+    }
+
+    private File getCacheFile(String key) {
+        // The key itself is stored in the file, so hash collisions are detected on read
+        return new File(getCacheDir(), Integer.toHexString(key.hashCode()) + ".lyrics");
+    }
+
+    private List<LyricsProvider> readFromDisk(String key) {
+        File f = getCacheFile(key);
+        if (!f.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (!in.readUTF().equals(key)) {
+                return null;
+            }
+
+            int count = in.readInt();
+            List<LyricsProvider> providers = new LinkedList<>();
+            for (int i = 0; i < count; i++) {
+                LyricsProvider provider = new LyricsProvider();
+                provider.setId(in.readUTF());
+                provider.setTitle(in.readUTF());
+                provider.setContent(readLongString(in));
+                providers.add(provider);
+            }
+
+            // Mark as recently used
+            f.setLastModified(System.currentTimeMillis());
+
+            return providers;
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot read lyrics: " + e.getMessage());
+            f.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void writeToDisk(String key, List<LyricsProvider> providers) {
+        File dir = getCacheDir();
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+
+        File f = getCacheFile(key);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+            out.writeUTF(key);
+            out.writeInt(providers.size());
+            for (LyricsProvider provider : providers) {
+                out.writeUTF(provider.getId() == null ? "" : provider.getId());
+                out.writeUTF(provider.getTitle() == null ? "" : provider.getTitle());
+                writeLongString(out, provider.getContent() == null ? "" : provider.getContent());
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot write lyrics: " + e.getMessage());
+            f.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Lyrics can be longer than the 64k writeUTF() supports
+     */
+    private void writeLongString(DataOutputStream out, String str) throws IOException {
+        byte[] b = str.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private String readLongString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > MAX_DISK_SIZE) {
+            throw new IOException("Invalid lyrics length");
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Remove the least recently used lyrics until the cache is smaller than MAX_DISK_SIZE
+     */
+    private void evict() {
+        File[] files = getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
+            }
+        });
+
+        for (File f : files) {
+            if (size <= MAX_DISK_SIZE) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package de.qspool.clementineremote.backend.player;
+
+import android.os.SystemClock;
+
+/**
+ * Local clock for the track position. Clementine sends the position only once per second
+ * in full seconds. This clock is set by these messages and extrapolates the position
+ * while the track is playing, so the ui can update it at any rate.
+ */
+public class PlaybackClock {
+
+    // Clementine sends full seconds, so the real position can be up to one second later
+    private final static long POSITION_RESOLUTION = 1000;
+
+    private long mBasePosition;
+
+    private long mBaseTime;
+
+    private boolean mRunning;
+
+    private boolean mLastSyncCorrected;
+
+    /**
+     * Set the position, e.g. on a track change or when the user seeks
+     *
+     * @param seconds The new position in seconds
+     */
+    public synchronized void setPosition(int seconds) {
+        mBasePosition = seconds * 1000L;
+        mBaseTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Correct the clock with a position received from Clementine. As the position is
+     * truncated to full seconds, the clock is only corrected if the extrapolated position
+     * is not within this second.
+     *
+     * @param seconds The position Clementine sent in seconds
+     * @return true if the clock drifted and was corrected
+     */
+    public synchronized boolean sync(int seconds) {
+        long serverPosition = seconds * 1000L;
+        long position = getPositionMs();
+
+        mLastSyncCorrected = position < serverPosition
+                || position >= serverPosition + POSITION_RESOLUTION;
+        if (mLastSyncCorrected) {
+            setPosition(seconds);
+        }
+
+        return mLastSyncCorrected;
+    }
+
+    /**
+     * Start or stop extrapolating the position
+     *
+     * @param running true if the track is playing
+     */
+    public synchronized void setRunning(boolean running) {
+        if (running == mRunning) {
+            return;
+        }
+
+        // Freeze or continue from the current position
+        mBasePosition = getPositionMs();
+        mBaseTime = SystemClock.elapsedRealtime();
+        mRunning = running;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Get the extrapolated position
+     *
+     * @return The position in milliseconds
+     */
+    public synchronized long getPositionMs() {
+        if (mRunning) {
+            return mBasePosition + (SystemClock.elapsedRealtime() - mBaseTime);
+        } else {
+            return mBasePosition;
+        }
+    }
+
+    /**
+     * Get the extrapolated position
+     *
+     * @return The position in seconds
+     */
+    public int getPosition() {
+        return (int) (getPositionMs() / 1000);
+    }
+
+    /**
+     * @return true if the last call to sync() corrected the clock
+     */
+    public synchronized boolean wasLastSyncCorrected() {
+        return mLastSyncCorrected;
+    }
+}
@@ -0,0 +1,256 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.player;
+
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.backend.ClementinePlayerConnection;
+import de.qspool.clementineremote.backend.database.DynamicSongQuery;
+import de.qspool.clementineremote.backend.listener.OnBulkInsertListener;
+import de.qspool.clementineremote.backend.pb.ClementineMessage;
+import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
+
+/**
+ * Adds many songs to a playlist. The urls are read from the cursors of the queries and
+ * sent in batches of bounded size, so the selection is never held in memory at once. The
+ * songs are added in the order of the selection.
+ * <p/>
+ * Only one batch is waiting on the connection at a time. Requests of the user, like
+ * play or pause, are sent between the batches instead of after all of them.
+ */
+public class PlaylistBulkInserter extends AsyncTask<Void, Integer, Integer> {
+
+    private final static String TAG = "PlaylistBulkInserter";
+
+    private final static int MAX_BATCH_URLS = 500;
+
+    // Bytes of the urls in a batch
+    private final static int MAX_BATCH_SIZE = 64 * 1024;
+
+    // Give up if the connection does not send a batch
+    private final static long SEND_TIMEOUT = 30; // Seconds
+
+    /**
+     * A selected item: a single song or the songs below a selection
+     */
+    public static class Item {
+
+        private String mUrl;
+
+        private DynamicSongQuery mQuery;
+
+        /**
+         * @param url The url of a single song
+         */
+        public Item(String url) {
+            mUrl = url;
+        }
+
+        /**
+         * @param query The query of the songs below a selection, see
+         *              DynamicSongQuery.buildUrlQuery()
+         */
+        public Item(DynamicSongQuery query) {
+            mQuery = query;
+        }
+    }
+
+    private int mPlaylistId;
+
+    private List<Item> mItems;
+
+    private LinkedList<OnBulkInsertListener> listeners = new LinkedList<>();
+
+    private Semaphore mSent = new Semaphore(0);
+
+    private volatile boolean mSendFailed;
+
+    private ArrayList<String> mBatch = new ArrayList<>();
+
+    private int mBatchSize;
+
+    private int mInserted;
+
+    private int mTotal;
+
+    /**
+     * @param playlistId The playlist the songs are added to
+     * @param items      The selected items, in the order they are added
+     */
+    public PlaylistBulkInserter(int playlistId, List<Item> items) {
+        mPlaylistId = playlistId;
+        mItems = items;
+    }
+
+    public void addOnBulkInsertListener(OnBulkInsertListener l) {
+        listeners.add(l);
+    }
+
+    public void startInsert() {
+        // Runs for a while, the serial executor would block the other tasks
+        this.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @Override
+    protected Integer doInBackground(Void... params) {
+        // The cursor of each item, null for single songs
+        List<Cursor> cursors = new ArrayList<>();
+        for (Item item : mItems) {
+            Cursor c = null;
+            if (item.mQuery != null) {
+                c = item.mQuery.buildUrlQuery();
+                if (c != null) {
+                    // Counts all rows, but keeps only the first window in memory
+                    mTotal += c.getCount();
+                }
+            } else {
+                mTotal++;
+            }
+            cursors.add(c);
+        }
+        publishProgress(0, mTotal);
+
+        try {
+            for (int i = 0; i < mItems.size() && !isCancelled(); i++) {
+                Cursor c = cursors.get(i);
+                if (mItems.get(i).mQuery == null) {
+                    if (!add(mItems.get(i).mUrl)) {
+                        return mInserted;
+                    }
+                    continue;
+                }
+
+                while (c != null && !isCancelled() && c.moveToNext()) {
+                    if (!add(c.getString(0))) {
+                        return mInserted;
+                    }
+                }
+            }
+
+            if (!isCancelled() && !mBatch.isEmpty() && sendBatch(mBatch)) {
+                mInserted += mBatch.size();
+            }
+        } finally {
+            for (Cursor c : cursors) {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        return mInserted;
+    }
+
+    /**
+     * Add a url to the batch and send the batch when it is full
+     *
+     * @return false if the batch could not be sent
+     */
+    private boolean add(String url) {
+        if (url == null) {
+            return true;
+        }
+        mBatch.add(url);
+        mBatchSize += getByteLength(url);
+
+        if (mBatch.size() >= MAX_BATCH_URLS || mBatchSize >= MAX_BATCH_SIZE) {
+            if (!sendBatch(mBatch)) {
+                return false;
+            }
+            mInserted += mBatch.size();
+            publishProgress(mInserted, mTotal);
+            mBatch.clear();
+            mBatchSize = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return The length of the url in the message, which is encoded as utf-8
+     */
+    private int getByteLength(String url) {
+        try {
+            return url.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            return url.length();
+        }
+    }
+
+    /**
+     * Send a batch on the connection thread and wait until it is written
+     *
+     * @return true if the batch was sent
+     */
+    private boolean sendBatch(List<String> urls) {
+        final ClementinePlayerConnection connection = App.ClementineConnection;
+        if (connection == null || mSendFailed) {
+            return false;
+        }
+
+        final ClementineMessage message = ClementineMessageFactory
+                .buildInsertUrl(mPlaylistId, urls);
+        boolean posted = connection.mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSendFailed = !connection.sendRequest(message);
+                mSent.release();
+            }
+        });
+
+        try {
+            if (!posted || !mSent.tryAcquire(SEND_TIMEOUT, TimeUnit.SECONDS)) {
+                Log.d(TAG, "Connection did not send the batch");
+                return false;
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return !mSendFailed;
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+        for (OnBulkInsertListener l : listeners) {
+            l.OnBulkInsertProgress(progress[0], progress[1]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Integer inserted) {
+        for (OnBulkInsertListener l : listeners) {
+            l.OnBulkInsertFinished(inserted, false);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Integer inserted) {
+        for (OnBulkInsertListener l : listeners) {
+            l.OnBulkInsertFinished(inserted == null ? 0 : inserted, true);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package de.qspool.clementineremote.backend.player;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.utils.Utilities;
+
+/**
+ * Stores the songs of all playlists of a Clementine host on disk. Each host gets its own
+ * binary file in the app cache dir. When connecting, cached playlists are shown directly
+ * and only playlists whose item count differs from the cache are requested again.
+ * <p/>
+ * The total size of all cache files is limited. If it is exceeded, the least recently used
+ * hosts are removed.
+ */
+public class PlaylistCache {
+
+    private final static String TAG = "PlaylistCache";
+
+    private final static String CACHE_DIR = "playlists";
+
+    private final static int MAGIC = 0x43525043; // "CRPC"
+
+    // Version 2 writes strings as length prefixed utf-8 instead of writeUTF()
+    private final static int VERSION = 2;
+
+    private final static long MAX_CACHE_SIZE = 10 * 1024 * 1024; // 10 MB
+
+    // A damaged file must not allocate huge strings
+    private final static int MAX_STRING_LENGTH = 1024 * 1024;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private String mHost;
+
+    private SparseArray<List<MySong>> mPlaylistSongs = new SparseArray<>();
+
+    /**
+     * Load the cached playlists of the currently configured Clementine host.
+     * If the host changed since the last call, the cache of the old host is kept on disk.
+     */
+    public synchronized void load() {
+        String host = Utilities.getCurrentHostId();
+        if (host.equals(mHost)) {
+            return;
+        }
+
+        mHost = host;
+        mPlaylistSongs.clear();
+
+        File f = getCacheFile(mHost);
+        if (!f.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid playlist cache file");
+            }
+
+            int playlists = in.readInt();
+            for (int i = 0; i < playlists; i++) {
+                int id = in.readInt();
+                int songs = in.readInt();
+                List<MySong> songList = new LinkedList<>();
+                for (int j = 0; j < songs; j++) {
+                    songList.add(readSong(in));
+                }
+                mPlaylistSongs.put(id, songList);
+            }
+
+            // Mark this host as recently used
+            f.setLastModified(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot read playlist cache: " + e.getMessage());
+            mPlaylistSongs.clear();
+            f.delete();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Get the cached songs of a playlist. The cache entry is only valid if the number of
+     * songs matches the item count Clementine reported for this playlist.
+     *
+     * @param p The playlist
+     * @return The cached songs or null if the cache has no valid entry
+     */
+    public synchronized List<MySong> getSongs(MyPlaylist p) {
+        List<MySong> songs = mPlaylistSongs.get(p.getId());
+        if (songs == null || songs.isEmpty() || songs.size() != p.getItemCount()) {
+            return null;
+        }
+
+        return songs;
+    }
+
+    /**
+     * Update the songs of a playlist in the cache. Call {@link #save(Collection)} to write
+     * the cache to disk.
+     *
+     * @param id    The playlist id
+     * @param songs The songs of the playlist
+     */
+    public synchronized void putSongs(int id, Collection<MySong> songs) {
+        mPlaylistSongs.put(id, new LinkedList<>(songs));
+    }
+
+    /**
+     * Write the cache for the current host to disk. Only the given playlists are saved,
+     * closed or removed playlists are dropped from the cache.
+     * <p/>
+     * The songs are taken under the lock, the file is written without it, so load() and
+     * putSongs() do not wait for the disk.
+     *
+     * @param playlists The playlists Clementine currently has
+     */
+    public void save(Collection<MyPlaylist> playlists) {
+        String host;
+        SparseArray<List<MySong>> cachedPlaylists = new SparseArray<>();
+        synchronized (this) {
+            if (mHost == null) {
+                return;
+            }
+            host = mHost;
+
+            // putSongs() replaces the lists, so they do not change after this
+            for (MyPlaylist p : playlists) {
+                List<MySong> songs = mPlaylistSongs.get(p.getId());
+                if (songs != null) {
+                    cachedPlaylists.put(p.getId(), songs);
+                }
+            }
+        }
+
+        File dir = getCacheDir();
+        if (!dir.exists() && !dir.mkdirs()) {
+            return;
+        }
+
+        File tmp = new File(dir, host + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(cachedPlaylists.size());
+            for (int i = 0; i < cachedPlaylists.size(); i++) {
+                List<MySong> songs = cachedPlaylists.valueAt(i);
+                out.writeInt(cachedPlaylists.keyAt(i));
+                out.writeInt(songs.size());
+                for (MySong s : songs) {
+                    writeSong(out, s);
+                }
+            }
+            out.close();
+            out = null;
+
+            File f = getCacheFile(host);
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot write playlist cache: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+
+        evict(host);
+    }
+
+    /**
+     * Get the size of all cached hosts
+     *
+     * @return The size in bytes
+     */
+    public long getCacheSize() {
+        long size = 0;
+        File[] files = getCacheDir().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Remove the least recently used hosts until the cache is smaller than MAX_CACHE_SIZE.
+     * The cache of the current host is never removed.
+     *
+     * @param host The current host
+     */
+    private void evict(String host) {
+        File[] files = getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
+            }
+        });
+
+        long size = getCacheSize();
+        File current = getCacheFile(host);
+        for (File f : files) {
+            if (size <= MAX_CACHE_SIZE) {
+                break;
+            }
+            if (f.equals(current)) {
+                continue;
+            }
+
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File getCacheDir() {
+        return new File(App.getApp().getCacheDir(), CACHE_DIR);
+    }
+
+    private File getCacheFile(String host) {
+        return new File(getCacheDir(), host + ".cache");
+    }
+
+    private void writeSong(DataOutputStream out, MySong s) throws IOException {
+        out.writeInt(s.getId());
+        out.writeInt(s.getIndex());
+        writeString(out, s.getTitle());
+        writeString(out, s.getArtist());
+        writeString(out, s.getAlbum());
+        writeString(out, s.getAlbumartist());
+        writeString(out, s.getPrettyLength());
+        out.writeInt(s.getLength());
+        writeString(out, s.getGenre());
+        writeString(out, s.getYear());
+        out.writeInt(s.getTrack());
+        out.writeInt(s.getDisc());
+        out.writeInt(s.getPlaycount());
+        writeString(out, s.getFilename());
+        out.writeLong(s.getSize());
+        out.writeBoolean(s.isLocal());
+        out.writeFloat(s.getRating());
+        writeString(out, s.getUrl());
+    }
+
+    private MySong readSong(DataInputStream in) throws IOException {
+        MySong s = new MySong();
+        s.setId(in.readInt());
+        s.setIndex(in.readInt());
+        s.setTitle(readString(in));
+        s.setArtist(readString(in));
+        s.setAlbum(readString(in));
+        s.setAlbumartist(readString(in));
+        s.setPrettyLength(readString(in));
+        s.setLength(in.readInt());
+        s.setGenre(readString(in));
+        s.setYear(readString(in));
+        s.setTrack(in.readInt());
+        s.setDisc(in.readInt());
+        s.setPlaycount(in.readInt());
+        s.setFilename(readString(in));
+        s.setSize(in.readLong());
+        s.setLocal(in.readBoolean());
+        s.setRating(in.readFloat());
+        s.setUrl(readString(in));
+        return s;
+    }
+
+    /**
+     * Write a string as length prefixed utf-8. writeUTF() fails for strings longer than
+     * 64 KB, e.g. a long url.
+     */
+    private void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = (str == null ? "" : str).getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package de.qspool.clementineremote.backend.player;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.backend.pb.ClementineMessage;
+import de.qspool.clementineremote.backend.pb.ClementinePbParser;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.Message;
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponsePlaylistSongs;
+
+/**
+ * Parses PLAYLIST_SONGS messages in a small worker pool, so the connection thread can
+ * process keep alive and track position messages while big playlists are converted.
+ * <p/>
+ * Messages are parsed in parallel, but for each playlist only a result newer than the
+ * last applied one is stored. So the order in which Clementine sent the songs is kept.
+ */
+public class PlaylistIngestor {
+
+    private final static String TAG = "PlaylistIngestor";
+
+    private final static int WORKER_THREADS = 2;
+
+    private ExecutorService mExecutor;
+
+    private Handler mHandler;
+
+    private int mProcessArg;
+
+    private long mNextSequence;
+
+    private final SparseArray<Long> mAppliedSequence = new SparseArray<>();
+
+    /**
+     * Create a new ingestor
+     *
+     * @param handler    The handler the parsed messages are posted to
+     * @param processArg The arg1 the message gets, so the handler knows it is a parsed message
+     */
+    public PlaylistIngestor(Handler handler, int processArg) {
+        mHandler = handler;
+        mProcessArg = processArg;
+        mExecutor = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, TAG);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Parse a raw PLAYLIST_SONGS message in the background. Must always be called from
+     * the same thread (the thread reading from the socket).
+     *
+     * @param data The binary representation of the protocol buffer
+     */
+    public void ingest(final byte[] data) {
+        final long sequence = mNextSequence++;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Message msg;
+                try {
+                    msg = Message.parseFrom(data);
+                } catch (InvalidProtocolBufferException e) {
+                    Log.d(TAG, "InvalidProtocolBufferException");
+                    return;
+                }
+
+                ResponsePlaylistSongs response = msg.getResponsePlaylistSongs();
+                int id = response.getRequestedPlaylist().getId();
+                List<MySong> songs = ClementinePbParser.convertPlaylistSongs(response);
+
+                synchronized (mAppliedSequence) {
+                    Long applied = mAppliedSequence.get(id);
+                    if (applied != null && applied > sequence) {
+                        // A newer version of this playlist was already applied
+                        return;
+                    }
+                    mAppliedSequence.put(id, sequence);
+
+                    App.Clementine.getPlaylistManager().playlistSongsDownloaded(id, songs);
+                }
+
+                android.os.Message m = android.os.Message.obtain();
+                m.obj = new ClementineMessage(msg);
+                m.arg1 = mProcessArg;
+                mHandler.sendMessage(m);
+            }
+        });
+    }
+
+    /**
+     * Stop the workers. Messages that are not yet parsed are dropped.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -17,32 +17,79 @@
 
 package de.qspool.clementineremote.backend.player;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
 import android.util.SparseArray;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import de.qspool.clementineremote.App;
+import de.qspool.clementineremote.backend.ClementinePlayerConnection;
 import de.qspool.clementineremote.backend.listener.OnPlaylistReceivedListener;
 import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
 
 public class PlaylistManager {
 
-    private LinkedList<OnPlaylistReceivedListener> listeners
-            = new LinkedList<OnPlaylistReceivedListener>();
+    private final static String TAG = "PlaylistManager";
+
+    // Fetch priorities. Lower values are fetched first
+    public final static int PRIORITY_ACTIVE = 0;
+
+    public final static int PRIORITY_SELECTED = 1;
+
+    public final static int PRIORITY_BACKGROUND = 2;
+
+    // Clementine answers requests in order, so only a few requests are sent at once.
+    // Otherwise a playlist the user selects would wait for all background requests.
+    private final static int MAX_REQUESTS_IN_FLIGHT = 1;
+
+    // The timeout grows with the size of the playlist
+    private final static long REQUEST_TIMEOUT = 15000;
+
+    private final static long REQUEST_TIMEOUT_PER_SONG = 5;
+
+    private final static int MAX_RETRIES = 3;
+
+    // Listeners are fired from the connection thread and the playlist ingestor workers
+    private List<OnPlaylistReceivedListener> listeners
+            = new CopyOnWriteArrayList<OnPlaylistReceivedListener>();
 
     private SparseArray<MyPlaylist> mPlaylists = new SparseArray<MyPlaylist>();
 
     private int mActivePlaylist;
 
-    private LinkedList<Integer> mPlaylistsToDownload = new LinkedList<Integer>();
+    private PriorityQueue<FetchRequest> mFetchQueue = new PriorityQueue<FetchRequest>();
+
+    private SparseArray<FetchRequest> mFetchInFlight = new SparseArray<FetchRequest>();
+
+    private long mFetchSequence;
 
-    public boolean hasPlaylist(int id) {
+    private long mFetchStartTime;
+
+    private long mTimeToFirstInteractive = -1;
+
+    private Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+
+    private PlaylistCache mPlaylistCache = new PlaylistCache();
+
+    // Reads and writes the playlist cache, so the disk is not used while holding the
+    // manager lock
+    private ExecutorService mCacheExecutor = Executors.newSingleThreadExecutor();
+
+    public synchronized boolean hasPlaylist(int id) {
         return mPlaylists.get(id) != null;
     }
 
-    public void addPlaylist(MyPlaylist p) {
+    public synchronized void addPlaylist(MyPlaylist p) {
         mPlaylists.append(p.getId(), p);
         if (p.isActive()) {
             setActivePlaylist(p.getId());
@@ -51,15 +98,15 @@ public class PlaylistManager {
         fireOnPlaylistReceived(p);
     }
 
-    public void removePlaylist(int id) {
+    public synchronized void removePlaylist(int id) {
         mPlaylists.remove(id);
     }
 
-    public void removeAll() {
+    public synchronized void removeAll() {
         mPlaylists.clear();
     }
 
-    public void setActivePlaylist(int id) {
+    public synchronized void setActivePlaylist(int id) {
         mActivePlaylist = id;
 
         for (int i = 0; i < mPlaylists.size(); ++i) {
@@ -69,41 +116,87 @@ public class PlaylistManager {
         mPlaylists.get(id).setActive(true);
     }
 
-    public boolean playlistSongsDownloaded(int id, Collection<MySong> songs) {
+    public synchronized boolean playlistSongsDownloaded(int id, Collection<MySong> songs) {
         MyPlaylist p = mPlaylists.get(id);
         if (p != null) {
             p.setSongs(songs);
+            mPlaylistCache.putSongs(id, songs);
         }
 
-        if (mPlaylistsToDownload.contains(Integer.valueOf(id))) {
-            mPlaylistsToDownload.remove(Integer.valueOf(id));
+        FetchRequest request = mFetchInFlight.get(id);
+        if (request != null) {
+            mTimeoutHandler.removeCallbacks(request);
+            mFetchInFlight.remove(id);
+        }
+        removeQueuedRequest(id);
+
+        if (mTimeToFirstInteractive < 0 && mFetchStartTime > 0 && id == mActivePlaylist) {
+            mTimeToFirstInteractive = SystemClock.elapsedRealtime() - mFetchStartTime;
+            Log.d(TAG, "Time to first interactive playlist: " + mTimeToFirstInteractive + "ms");
         }
 
         fireOnPlaylistSongsReceived(mPlaylists.get(id));
-        if (mPlaylistsToDownload.isEmpty()) {
+        if (mFetchQueue.isEmpty() && mFetchInFlight.size() == 0) {
+            savePlaylistCache();
             fireOnAllRequestedPlaylistsReceived();
+        } else {
+            sendNextRequests();
         }
 
         return p != null;
     }
 
+    /**
+     * All playlists were added. The cache is read on the cache worker, then the playlists
+     * get their cached songs before the listeners request the missing ones.
+     */
     public void allPlaylistsReceived() {
-        fireAllPlaylistsReceived();
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPlaylistCache.load();
+                applyCachedSongs();
+                fireAllPlaylistsReceived();
+            }
+        });
+    }
+
+    /**
+     * Use the cached songs of the playlists that did not change since the last connection
+     */
+    private synchronized void applyCachedSongs() {
+        for (int i = 0; i < mPlaylists.size(); i++) {
+            MyPlaylist p = mPlaylists.valueAt(i);
+            if (!p.hasSongs()) {
+                List<MySong> cachedSongs = mPlaylistCache.getSongs(p);
+                if (cachedSongs != null) {
+                    p.setSongs(cachedSongs);
+                }
+            }
+        }
     }
 
-    public MyPlaylist getPlaylist(int id) {
+    public synchronized MyPlaylist getPlaylist(int id) {
         return mPlaylists.get(id);
     }
 
-    public MyPlaylist getActivePlaylist() {
+    public synchronized MyPlaylist getActivePlaylist() {
         return mPlaylists.get(getActivePlaylistId());
     }
 
+    /**
+     * @return The time from requesting the playlists until the songs of the active playlist
+     * were shown in milliseconds, 0 if they were cached or -1 if they are not received yet
+     */
+    public synchronized long getTimeToFirstInteractive() {
+        return mTimeToFirstInteractive;
+    }
+
     public int getActivePlaylistId() {
         return mActivePlaylist;
     }
 
-    public LinkedList<MyPlaylist> getAllPlaylists() {
+    public synchronized LinkedList<MyPlaylist> getAllPlaylists() {
         LinkedList<MyPlaylist> playlists = new LinkedList<MyPlaylist>();
         for (int i = 0; i < mPlaylists.size(); ++i) {
             playlists.add(mPlaylists.valueAt(i));
@@ -112,15 +205,29 @@ public class PlaylistManager {
         return playlists;
     }
 
-    public int requestAllPlaylistSongs() {
+    /**
+     * Request all playlists which have no songs yet. The active playlist is fetched first,
+     * the others are fetched in the background.
+     *
+     * @return The number of requested playlists
+     */
+    public synchronized int requestAllPlaylistSongs() {
         int count = 0;
 
+        if (mFetchQueue.isEmpty() && mFetchInFlight.size() == 0) {
+            mFetchStartTime = SystemClock.elapsedRealtime();
+            MyPlaylist active = getActivePlaylist();
+            mTimeToFirstInteractive = (active != null && active.hasSongs()) ? 0 : -1;
+        }
+
         for (int i = 0; i < mPlaylists.size(); i++) {
             // Get the Playlsit
             MyPlaylist playlist = mPlaylists.valueAt(i);
 
             if (!playlist.hasSongs()) {
-                requestPlaylistSongs(playlist.getId());
+                requestPlaylistSongs(playlist.getId(),
+                        playlist.getId() == mActivePlaylist ? PRIORITY_ACTIVE
+                                : PRIORITY_BACKGROUND);
 
                 count++;
             }
@@ -129,15 +236,127 @@ public class PlaylistManager {
         return count;
     }
 
-    public void requestPlaylistSongs(int id) {
-        mPlaylistsToDownload.add(id);
+    /**
+     * Request the songs of a playlist the user selected
+     *
+     * @param id The playlist id
+     */
+    public synchronized void requestPlaylistSongs(int id) {
+        requestPlaylistSongs(id, PRIORITY_SELECTED);
+    }
 
-        Message msg = Message.obtain();
-        msg.obj = ClementineMessageFactory.buildRequestPlaylistSongs(id);
-        App.ClementineConnection.mHandler.sendMessage(msg);
+    /**
+     * Request the songs of a playlist. If the playlist is already requested, the request
+     * is not sent again. A queued request gets the higher priority of both.
+     *
+     * @param id       The playlist id
+     * @param priority One of PRIORITY_ACTIVE, PRIORITY_SELECTED or PRIORITY_BACKGROUND
+     */
+    public synchronized void requestPlaylistSongs(int id, int priority) {
+        if (mFetchInFlight.get(id) != null) {
+            return;
+        }
+
+        FetchRequest queued = removeQueuedRequest(id);
+        if (queued != null && queued.priority < priority) {
+            priority = queued.priority;
+        }
+
+        mFetchQueue.add(new FetchRequest(id, priority, mFetchSequence++,
+                queued == null ? 0 : queued.retries));
+
+        sendNextRequests();
+    }
+
+    private void sendNextRequests() {
+        while (mFetchInFlight.size() < MAX_REQUESTS_IN_FLIGHT && !mFetchQueue.isEmpty()) {
+            if (App.ClementineConnection == null || !App.ClementineConnection.isConnected()) {
+                // Requests will be sent again on the next connect. The listeners must not
+                // wait for the requests, or they never request again.
+                cancelRequests();
+                fireOnAllRequestedPlaylistsReceived();
+                return;
+            }
+
+            FetchRequest request = mFetchQueue.poll();
+            mFetchInFlight.put(request.id, request);
+            mTimeoutHandler.postDelayed(request, getTimeout(request.id));
+
+            Message msg = Message.obtain();
+            msg.obj = ClementineMessageFactory.buildRequestPlaylistSongs(request.id);
+            App.ClementineConnection.mHandler.sendMessage(msg);
+        }
+    }
+
+    private void cancelRequests() {
+        for (int i = 0; i < mFetchInFlight.size(); i++) {
+            mTimeoutHandler.removeCallbacks(mFetchInFlight.valueAt(i));
+        }
+        mFetchInFlight.clear();
+        mFetchQueue.clear();
+    }
+
+    private long getTimeout(int id) {
+        MyPlaylist p = mPlaylists.get(id);
+        return REQUEST_TIMEOUT + (p == null ? 0 : p.getItemCount() * REQUEST_TIMEOUT_PER_SONG);
+    }
+
+    /**
+     * Save the playlists currently known on the cache worker. The list is taken now, the
+     * songs were already copied into the cache by putSongs().
+     */
+    private void savePlaylistCache() {
+        final LinkedList<MyPlaylist> playlists = getAllPlaylists();
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPlaylistCache.save(playlists);
+            }
+        });
+    }
+
+    private FetchRequest removeQueuedRequest(int id) {
+        for (FetchRequest request : mFetchQueue) {
+            if (request.id == id) {
+                mFetchQueue.remove(request);
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void onRequestTimeout(FetchRequest request) {
+        if (mFetchInFlight.get(request.id) != request) {
+            return;
+        }
+
+        // Clementine answers in order. While data arrives, the response is on its way and a
+        // retry would only send the playlist again.
+        ClementinePlayerConnection connection = App.ClementineConnection;
+        if (connection != null && connection.isConnected()
+                && SystemClock.elapsedRealtime() - connection.getLastReceived()
+                < REQUEST_TIMEOUT) {
+            mTimeoutHandler.postDelayed(request, getTimeout(request.id));
+            return;
+        }
+        mFetchInFlight.remove(request.id);
+
+        if (request.retries < MAX_RETRIES) {
+            Log.d(TAG, "Request for playlist " + request.id + " timed out, retrying");
+            mFetchQueue.add(new FetchRequest(request.id, request.priority, mFetchSequence++,
+                    request.retries + 1));
+        } else {
+            Log.d(TAG, "Request for playlist " + request.id + " failed");
+        }
+
+        if (mFetchQueue.isEmpty() && mFetchInFlight.size() == 0) {
+            fireOnAllRequestedPlaylistsReceived();
+        } else {
+            sendNextRequests();
+        }
     }
 
-    public void clearPlaylist(int id) {
+    public synchronized void clearPlaylist(int id) {
         Message msg = Message.obtain();
         msg.obj = ClementineMessageFactory.buildRemoveMultipleSongsFromPlaylist(id,
                 mPlaylists.get(id).getPlaylistSongs());
@@ -177,4 +396,39 @@ public class PlaylistManager {
             l.onAllPlaylistsReceived();
         }
     }
+
+    /**
+     * A queued or sent request for the songs of a playlist. When it runs, the request
+     * timed out.
+     */
+    private class FetchRequest implements Runnable, Comparable<FetchRequest> {
+
+        final int id;
+
+        final int priority;
+
+        final long sequence;
+
+        final int retries;
+
+        FetchRequest(int id, int priority, long sequence, int retries) {
+            this.id = id;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.retries = retries;
+        }
+
+        @Override
+        public int compareTo(FetchRequest another) {
+            if (priority != another.priority) {
+                return priority < another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            onRequestTimeout(this);
+        }
+    }
 }
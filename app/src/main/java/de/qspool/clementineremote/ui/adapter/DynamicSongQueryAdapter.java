@@ -20,31 +20,44 @@ package de.qspool.clementineremote.ui.adapter;
 import android.app.Activity;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.Filterable;
 import android.widget.ImageView;
+import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import de.qspool.clementineremote.R;
 import de.qspool.clementineremote.backend.database.DynamicSongQuery;
+import de.qspool.clementineremote.backend.database.PagedQueryCursor;
+import de.qspool.clementineremote.backend.database.QuerySections;
 import de.qspool.clementineremote.backend.database.SongSelectItem;
 
 /**
  * Class is used for displaying the song data
  */
-public class DynamicSongQueryAdapter extends CursorAdapter implements Filterable {
+public class DynamicSongQueryAdapter extends CursorAdapter
+        implements Filterable, SectionIndexer {
 
     private Context mContext;
 
     private DynamicSongQuery mDynamicSongQuery;
 
+    // Empty until they are loaded
+    private QuerySections mSections = new QuerySections();
+
+    // The sections do not match the search results
+    private volatile boolean mFiltered;
+
 
     public DynamicSongQueryAdapter(Context context, DynamicSongQuery library) {
         super(context, library.buildQuery(), false);
         mContext = context;
         mDynamicSongQuery = library;
+
+        new SectionsTask().execute();
     }
 
     @Override
@@ -68,6 +81,14 @@ public class DynamicSongQueryAdapter extends CursorAdapter implements Filterable
     public void bindView(View view, Context context, Cursor cursor) {
         ViewHolder viewHolder = (ViewHolder) view.getTag();
 
+        if (isPlaceholder(cursor)) {
+            // The page is loaded in the background, the list is bound again afterwards
+            viewHolder.title.setText(R.string.playlist_loading);
+            viewHolder.subtitle.setText("");
+            viewHolder.image.setVisibility(View.GONE);
+            return;
+        }
+
         SongSelectItem songSelectItem = mDynamicSongQuery.fillSongSelectItem(cursor);
         viewHolder.title.setText(songSelectItem.getListTitle());
         viewHolder.subtitle.setText(songSelectItem.getListSubtitle());
@@ -80,6 +101,17 @@ public class DynamicSongQueryAdapter extends CursorAdapter implements Filterable
         }
     }
 
+    @Override
+    public boolean isEnabled(int position) {
+        // Rows that are not loaded yet cannot be selected
+        Cursor c = getCursor();
+        return c == null || !c.moveToPosition(position) || !isPlaceholder(c);
+    }
+
+    private boolean isPlaceholder(Cursor c) {
+        return c instanceof PagedQueryCursor && ((PagedQueryCursor) c).isPlaceholder();
+    }
+
     @Override
     public SongSelectItem getItem(int position) {
         Cursor c = getCursor();
@@ -87,12 +119,43 @@ public class DynamicSongQueryAdapter extends CursorAdapter implements Filterable
         return mDynamicSongQuery.fillSongSelectItem(c);
     }
 
+    @Override
+    public Object[] getSections() {
+        return mFiltered ? new Object[]{} : mSections.getSections();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        return mFiltered ? 0 : mSections.getPositionForSection(sectionIndex);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return mFiltered ? 0 : mSections.getSectionForPosition(position);
+    }
+
     @Override
     public Cursor runQueryOnBackgroundThread(CharSequence constraint) {
+        mFiltered = constraint.length() != 0;
         if (constraint.length() == 0) {
             return mDynamicSongQuery.buildQuery();
         } else {
-            return mDynamicSongQuery.buildQuery(mDynamicSongQuery.getMatchesSubQuery(constraint.toString()));
+            return mDynamicSongQuery.buildMatchQuery(constraint.toString());
+        }
+    }
+
+    private class SectionsTask extends AsyncTask<Void, Void, QuerySections> {
+
+        @Override
+        protected QuerySections doInBackground(Void... params) {
+            return mDynamicSongQuery.buildSections();
+        }
+
+        @Override
+        protected void onPostExecute(QuerySections sections) {
+            mSections = sections;
+            // The list reads the new sections
+            notifyDataSetChanged();
         }
     }
 
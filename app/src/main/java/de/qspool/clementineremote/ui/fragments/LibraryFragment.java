@@ -17,6 +17,7 @@
 
 package de.qspool.clementineremote.ui.fragments;
 
+import com.afollestad.materialdialogs.DialogAction;
 import com.afollestad.materialdialogs.MaterialDialog;
 
 import android.annotation.SuppressLint;
@@ -48,6 +49,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.util.LinkedList;
+import java.util.List;
 
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.R;
@@ -57,8 +59,10 @@ import de.qspool.clementineremote.backend.database.SongSelectItem;
 import de.qspool.clementineremote.backend.downloader.DownloadManager;
 import de.qspool.clementineremote.backend.elements.DownloaderResult;
 import de.qspool.clementineremote.backend.elements.DownloaderResult.DownloadResult;
-import de.qspool.clementineremote.backend.library.LibraryDatabaseHelper;
+import de.qspool.clementineremote.backend.library.LibraryConsistencyChecker;
 import de.qspool.clementineremote.backend.library.LibraryQuery;
+import de.qspool.clementineremote.backend.listener.OnBulkInsertListener;
+import de.qspool.clementineremote.backend.listener.OnLibraryCheckedListener;
 import de.qspool.clementineremote.backend.listener.OnLibraryDownloadListener;
 import de.qspool.clementineremote.backend.listener.OnSongSelectFinishedListener;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
@@ -66,6 +70,7 @@ import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer;
 import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.MsgType;
 import de.qspool.clementineremote.backend.player.MySong;
+import de.qspool.clementineremote.backend.player.PlaylistBulkInserter;
 import de.qspool.clementineremote.ui.adapter.DynamicSongQueryAdapter;
 import de.qspool.clementineremote.ui.interfaces.BackPressHandleable;
 import de.qspool.clementineremote.ui.interfaces.RemoteDataReceiver;
@@ -74,6 +79,9 @@ import de.qspool.clementineremote.utils.Utilities;
 public class LibraryFragment extends Fragment implements BackPressHandleable, RemoteDataReceiver,
         SwipeRefreshLayout.OnRefreshListener, SharedPreferences.OnSharedPreferenceChangeListener {
 
+    // Smaller selections are added without a progress dialog
+    private final static int BULK_INSERT_PROGRESS_THRESHOLD = 1000;
+
     private ActionBar mActionBar;
 
     private SwipeRefreshLayout mSwipeRefreshLayout;
@@ -169,20 +177,16 @@ public class LibraryFragment extends Fragment implements BackPressHandleable, Re
                     }
                 }
 
+                if (item.getItemId() == R.id.library_context_add) {
+                    addSongsToPlaylist(selectedItems);
+                    mode.finish();
+                    return true;
+                }
+
                 for (SongSelectItem libraryItem : selectedItems) {
                     OnSongSelectFinishedListener listener;
 
                     switch (item.getItemId()) {
-                        case R.id.library_context_add:
-
-                            listener = new OnSongSelectFinishedListener() {
-                                @Override
-                                public void OnSongSelectFinished(LinkedList<SongSelectItem> l) {
-                                    addSongsToPlaylist(l);
-                                }
-                            };
-
-                            break;
                         case R.id.library_context_download:
                             listener = new OnSongSelectFinishedListener() {
                                 @Override
@@ -317,6 +321,13 @@ public class LibraryFragment extends Fragment implements BackPressHandleable, Re
                     .progress(true, -1)
                     .show();
         }
+
+        @Override
+        public void OnOptimizeProgress(int step, int steps) {
+            if (mProgressDialog != null && mProgressDialog.isShowing()) {
+                mProgressDialog.setContent(getString(R.string.library_optimize_step, step, steps));
+            }
+        }
     };
 
     private void createDownloadProgressDialog() {
@@ -328,21 +339,38 @@ public class LibraryFragment extends Fragment implements BackPressHandleable, Re
                 .show();
     }
 
+    /**
+     * Check the library in the background and show the first level afterwards. Until then
+     * the list shows that the library is loading.
+     */
     private void createRootAdapter() {
-        // Check if we have the correct Clementine library. Otherwise delete it
-        LibraryDatabaseHelper libraryDatabaseHelper = new LibraryDatabaseHelper();
-        libraryDatabaseHelper.removeDatabaseIfFromOtherClementine();
+        mLibraryLevels = new LibraryQuery(getActivity()).getMaxLevels();
 
-        LibraryQuery libraryQuery = new LibraryQuery(getActivity());
-        mLibraryLevels = libraryQuery.getMaxLevels();
+        showLibraryLoading(true);
+        LibraryConsistencyChecker.getInstance().checkOnStartup(new OnLibraryCheckedListener() {
+            @Override
+            public void OnLibraryChecked(boolean exists) {
+                if (getView() == null) {
+                    return;
+                }
+                showLibraryLoading(false);
+
+                // A download started meanwhile replaces the library
+                if (exists && mAdapters.isEmpty() && mClementineLibraryDownloader == null) {
+                    LibraryQuery libraryQuery = new LibraryQuery(getActivity());
+                    libraryQuery.openDatabase();
+                    libraryQuery.setLevel(0);
+                    mAdapters.add(new DynamicSongQueryAdapter(getActivity(), libraryQuery));
+                }
+                showList();
+            }
+        });
+    }
 
-        // Create the adapter
-        if (mClementineLibraryDownloader == null && libraryDatabaseHelper.databaseExists()) {
-            libraryQuery.openDatabase();
-            libraryQuery.setLevel(0);
-            DynamicSongQueryAdapter a = new DynamicSongQueryAdapter(getActivity(), libraryQuery);
-            mAdapters.add(a);
-        }
+    private void showLibraryLoading(boolean loading) {
+        mLibraryEmptyText.setText(loading ? R.string.library_loading : R.string.library_empty);
+        mEmptyLibrary.setRefreshing(loading);
+        mEmptyLibrary.setEnabled(!loading);
     }
 
     @Override
@@ -489,23 +517,77 @@ public class LibraryFragment extends Fragment implements BackPressHandleable, Re
         }
     }
 
-    private void addSongsToPlaylist(LinkedList<SongSelectItem> l) {
-        Message msg = Message.obtain();
-        LinkedList<String> urls = new LinkedList<>();
-        for (SongSelectItem item : l) {
-            urls.add(item.getUrl());
+    /**
+     * Add the songs below the selected items to the current playlist. The urls are streamed
+     * from the library, big selections show their progress and can be cancelled.
+     */
+    private void addSongsToPlaylist(List<SongSelectItem> items) {
+        LinkedList<PlaylistBulkInserter.Item> selection = new LinkedList<>();
+        for (SongSelectItem item : items) {
+            if (item.getLevel() == mLibraryLevels - 1) {
+                selection.add(new PlaylistBulkInserter.Item(item.getUrl()));
+            } else {
+                LibraryQuery libraryQuery = new LibraryQuery(getActivity());
+                libraryQuery.openDatabase();
+                libraryQuery.setLevel(mLibraryLevels - 1);
+                libraryQuery.setSelection(item.getSelection());
+                selection.add(new PlaylistBulkInserter.Item(libraryQuery));
+            }
         }
 
-        msg.obj = ClementineMessageFactory.buildInsertUrl(
-                App.Clementine.getPlaylistManager().getActivePlaylistId(), urls);
+        final PlaylistBulkInserter inserter = new PlaylistBulkInserter(
+                App.Clementine.getPlaylistManager().getActivePlaylistId(), selection);
+        inserter.addOnBulkInsertListener(new OnBulkInsertListener() {
+
+            private MaterialDialog mDialog;
+
+            @Override
+            public void OnBulkInsertProgress(int inserted, int total) {
+                if (!isAdded()) {
+                    return;
+                }
+
+                if (mDialog == null && total >= BULK_INSERT_PROGRESS_THRESHOLD) {
+                    mDialog = new MaterialDialog.Builder(getActivity())
+                            .title(R.string.library_please_wait)
+                            .content(R.string.library_adding_songs)
+                            .cancelable(false)
+                            .progress(false, total)
+                            .negativeText(R.string.dialog_cancel)
+                            .onNegative(new MaterialDialog.SingleButtonCallback() {
+                                @Override
+                                public void onClick(MaterialDialog dialog,
+                                        DialogAction which) {
+                                    inserter.cancel(false);
+                                }
+                            })
+                            .show();
+                }
+
+                if (mDialog != null) {
+                    mDialog.setMaxProgress(total);
+                    mDialog.setProgress(inserted);
+                }
+            }
 
-        App.ClementineConnection.mHandler.sendMessage(msg);
+            @Override
+            public void OnBulkInsertFinished(int inserted, boolean cancelled) {
+                if (mDialog != null) {
+                    mDialog.dismiss();
+                }
 
-        String text = getActivity().getResources().getQuantityString(R.plurals.songs_added,
-                urls.size(), urls.size());
-        Toast.makeText(getActivity(),
-                text,
-                Toast.LENGTH_SHORT).show();
+                if (!isAdded()) {
+                    return;
+                }
+
+                String text = getActivity().getResources().getQuantityString(
+                        R.plurals.songs_added, inserted, inserted);
+                Toast.makeText(getActivity(),
+                        text,
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+        inserter.startInsert();
     }
 
     private OnItemClickListener oiclLibraryClick = new OnItemClickListener() {
@@ -69,7 +69,7 @@ public class PlaylistFragment extends Fragment implements BackPressHandleable, R
 
     private PlaylistSongAdapter mAdapter;
 
-    private MaterialDialog mProgressDialog;
+    private boolean mLoadingPlaylists;
 
     private ActionBar mActionBar;
 
@@ -111,12 +111,13 @@ public class PlaylistFragment extends Fragment implements BackPressHandleable, R
                 getActivity().runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mProgressDialog != null) {
-                            mProgressDialog.incrementProgress(1);
-                            mProgressDialog.setContent(p.getName());
+                        // Only the selected playlist is shown, the others are loaded
+                        // in the background
+                        int pos = getSelectedPlaylistPosition();
+                        if (p != null && pos >= 0 && pos < mPlaylists.size()
+                                && mPlaylists.get(pos).getId() == p.getId()) {
+                            updateSongList();
                         }
-
-                        updateSongList();
                     }
                 });
             }
@@ -130,14 +131,10 @@ public class PlaylistFragment extends Fragment implements BackPressHandleable, R
                 getActivity().runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (mProgressDialog != null && mProgressDialog.isShowing()) {
-                            mPlaylists = mPlaylistManager.getAllPlaylists();
-
-                            mProgressDialog.dismiss();
+                        if (mLoadingPlaylists) {
+                            mLoadingPlaylists = false;
+                            mActionBar.setSubtitle("");
                             getActivity().invalidateOptionsMenu();
-
-                            mPlaylistsSpinner.setSelection(
-                                    mPlaylists.indexOf(mPlaylistManager.getActivePlaylist()));
                         }
                     }
                 });
@@ -209,6 +206,11 @@ public class PlaylistFragment extends Fragment implements BackPressHandleable, R
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                 updateSongList();
+
+                // Fetch the selected playlist before the ones loading in the background
+                if (position < mPlaylists.size() && !mPlaylists.get(position).hasSongs()) {
+                    mPlaylistManager.requestPlaylistSongs(mPlaylists.get(position).getId());
+                }
             }
 
             @Override
@@ -514,27 +516,24 @@ public class PlaylistFragment extends Fragment implements BackPressHandleable, R
     }
 
     /**
-     * Sends a request to Clementine to send all songs in all active playlists.
+     * Sends a request to Clementine to send all songs in all active playlists. The active
+     * playlist is shown as soon as its songs are received, the others are loaded in the
+     * background.
      */
     public void RequestPlaylistSongs() {
-        // If a progress is showing, do not show again!
-        if (mProgressDialog != null && mProgressDialog.isShowing()) {
+        // Requests are already running
+        if (mLoadingPlaylists) {
             return;
         }
 
-        // Open it directly only when we got all playlists
         int requests = mPlaylistManager.requestAllPlaylistSongs();
         if (requests > 0) {
-            // Start a Progressbar
-            mProgressDialog = new MaterialDialog.Builder(getActivity())
-                    .progress(false, requests, true)
-                    .title(R.string.player_download_playlists)
-                    .content(R.string.playlist_loading)
-                    .show();
-        } else {
-            mPlaylistsSpinner.setSelection(
-                    mPlaylists.indexOf(mPlaylistManager.getActivePlaylist()));
+            mLoadingPlaylists = true;
+            mActionBar.setSubtitle(R.string.playlist_loading);
         }
+
+        mPlaylistsSpinner.setSelection(
+                mPlaylists.indexOf(mPlaylistManager.getActivePlaylist()));
     }
 
     @Override
@@ -23,6 +23,7 @@ import android.annotation.SuppressLint;
 import android.app.Fragment;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Message;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -46,6 +47,7 @@ import java.util.List;
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.R;
 import de.qspool.clementineremote.backend.Clementine;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.downloader.DownloadManager;
 import de.qspool.clementineremote.backend.pb.ClementineMessage;
 import de.qspool.clementineremote.backend.pb.ClementineMessageFactory;
@@ -66,6 +68,9 @@ public class PlayerPageFragment extends Fragment
 
     private final static int ANIMATION_DURATION = 750;
 
+    // Update rate of the track position while playing
+    private final static int POSITION_UPDATE_INTERVAL = 250;
+
     private TextView mTvArtist;
 
     private TextView mTvTitle;
@@ -100,6 +105,13 @@ public class PlayerPageFragment extends Fragment
 
     private MySong mCurrentSong = new MySong();
 
+    // The player state snapshot the views show
+    private PlayerState mPlayerState = App.Clementine.getPlayerState();
+
+    private long mStateVersion = -1;
+
+    private Handler mPositionHandler = new Handler();
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -143,8 +155,8 @@ public class PlayerPageFragment extends Fragment
         mAlphaUp.setInterpolator(new AccelerateInterpolator());
 
         // Initialize interface
-        updateTrackMetadata();
-        updateTrackPosition();
+        mStateVersion = -1;
+        updatePlayerState();
 
         return view;
     }
@@ -170,7 +182,15 @@ public class PlayerPageFragment extends Fragment
 
         mCurrentSong = new MySong();
         mFirstCall = true;
-        updateTrackMetadata();
+        mStateVersion = -1;
+        updatePlayerState();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        mPositionHandler.removeCallbacks(mPositionUpdater);
     }
 
     @Override
@@ -183,11 +203,11 @@ public class PlayerPageFragment extends Fragment
                 doRepeat();
                 break;
             case R.id.download:
-                if (App.Clementine.getCurrentSong() == null) {
+                if (mPlayerState.getCurrentSong() == null) {
                     Toast.makeText(getActivity(), R.string.player_nosong, Toast.LENGTH_LONG).show();
                     break;
                 }
-                if (App.Clementine.getCurrentSong().isLocal()) {
+                if (mPlayerState.getCurrentSong().isLocal()) {
                     DownloadChooserDialog downloadChooserDialog = new DownloadChooserDialog(getActivity());
                     downloadChooserDialog.setCallback(new DownloadChooserDialog.Callback() {
                         @Override
@@ -230,18 +250,18 @@ public class PlayerPageFragment extends Fragment
     @Override
     public void MessageFromClementine(ClementineMessage clementineMessage) {
         switch (clementineMessage.getMessageType()) {
-            case UPDATE_TRACK_POSITION:
+            case PLAY:
+            case PAUSE:
             case STOP:
-                updateTrackPosition();
-                break;
             case CURRENT_METAINFO:
-                updateTrackMetadata();
-                break;
             case SHUFFLE:
-                updateShuffleIcon();
-                break;
             case REPEAT:
-                updateRepeatIcon();
+                updatePlayerState();
+                break;
+            case UPDATE_TRACK_POSITION:
+                // Only sent when the updater does not run or the position jumped,
+                // e.g. after a seek in Clementine while paused
+                updateTrackPosition();
                 break;
             case LYRICS:
                 showLyricsDialog();
@@ -251,6 +271,30 @@ public class PlayerPageFragment extends Fragment
         }
     }
 
+    /**
+     * Take a new snapshot of the player state and update the views that changed since the
+     * last one. All views read the same snapshot, so they never show a half updated state.
+     */
+    private void updatePlayerState() {
+        mPlayerState = App.Clementine.getPlayerState();
+        int changes = mPlayerState.getChangesSince(mStateVersion);
+        mStateVersion = mPlayerState.getVersion();
+
+        if ((changes & PlayerState.CHANGED_SONG) != 0) {
+            updateTrackMetadata();
+        }
+        if ((changes & (PlayerState.CHANGED_SONG | PlayerState.CHANGED_STATE)) != 0) {
+            updateTrackPosition();
+            schedulePositionUpdates();
+        }
+        if ((changes & PlayerState.CHANGED_SHUFFLE) != 0) {
+            updateShuffleIcon();
+        }
+        if ((changes & PlayerState.CHANGED_REPEAT) != 0) {
+            updateRepeatIcon();
+        }
+    }
+
     /**
      * Update the track position. This method updates the seekbar and the time printed on the right
      * hand side.
@@ -258,7 +302,7 @@ public class PlayerPageFragment extends Fragment
     private void updateTrackPosition() {
         mSbPosition.setEnabled(true);
         mSbPosition.setMax(mCurrentSong.getLength());
-        if (App.Clementine.getState() == Clementine.State.STOP) {
+        if (mPlayerState.getState() == Clementine.State.STOP) {
             mSbPosition.setProgress(0);
         } else {
             mSbPosition.setProgress(App.Clementine.getSongPosition());
@@ -271,9 +315,9 @@ public class PlayerPageFragment extends Fragment
      * The track changed. Update the metadata shown on the user interface
      */
     @SuppressLint("NewApi")
-    public void updateTrackMetadata() {
+    private void updateTrackMetadata() {
         // Get the currently played song
-        MySong currentSong = App.Clementine.getCurrentSong();
+        MySong currentSong = mPlayerState.getCurrentSong();
         if (currentSong == null) {
             // If none is played right now, show a text and the clementine icon
             mTvArtist.setText(getString(R.string.player_nosong));
@@ -325,7 +369,8 @@ public class PlayerPageFragment extends Fragment
         msg.obj = ClementineMessageFactory.buildShuffle();
         App.ClementineConnection.mHandler.sendMessage(msg);
 
-        switch (App.Clementine.getShuffleMode()) {
+        updatePlayerState();
+        switch (mPlayerState.getShuffleMode()) {
             case OFF:
                 makeToast(R.string.shuffle_off, Toast.LENGTH_SHORT);
                 break;
@@ -339,8 +384,6 @@ public class PlayerPageFragment extends Fragment
                 makeToast(R.string.shuffle_albums, Toast.LENGTH_SHORT);
                 break;
         }
-
-        updateShuffleIcon();
     }
 
     /**
@@ -352,7 +395,7 @@ public class PlayerPageFragment extends Fragment
         if (mMenuShuffle == null)
             return;
 
-        switch (App.Clementine.getShuffleMode()) {
+        switch (mPlayerState.getShuffleMode()) {
             case OFF:
                 mMenuShuffle.setIcon(R.drawable.ab_shuffle_off);
                 break;
@@ -378,7 +421,8 @@ public class PlayerPageFragment extends Fragment
         msg.obj = ClementineMessageFactory.buildRepeat();
         App.ClementineConnection.mHandler.sendMessage(msg);
 
-        switch (App.Clementine.getRepeatMode()) {
+        updatePlayerState();
+        switch (mPlayerState.getRepeatMode()) {
             case OFF:
                 makeToast(R.string.repeat_off, Toast.LENGTH_SHORT);
                 break;
@@ -392,8 +436,6 @@ public class PlayerPageFragment extends Fragment
                 makeToast(R.string.repeat_playlist, Toast.LENGTH_SHORT);
                 break;
         }
-
-        updateRepeatIcon();
     }
 
     /**
@@ -405,7 +447,7 @@ public class PlayerPageFragment extends Fragment
         if (mMenuRepeat == null)
             return;
 
-        switch (App.Clementine.getRepeatMode()) {
+        switch (mPlayerState.getRepeatMode()) {
             case OFF:
                 mMenuRepeat.setIcon(R.drawable.ab_repeat_off);
                 break;
@@ -437,7 +479,7 @@ public class PlayerPageFragment extends Fragment
         if (mCurrentSong.getLength() == 0) {
             sb.append(Utilities.PrettyTime(App.Clementine.getSongPosition()));
         } else {
-            if (App.Clementine.getState() == Clementine.State.STOP) {
+            if (mPlayerState.getState() == Clementine.State.STOP) {
                 sb.append(Utilities.PrettyTime(0));
             } else {
                 sb.append(Utilities.PrettyTime(App.Clementine.getSongPosition()));
@@ -550,6 +592,32 @@ public class PlayerPageFragment extends Fragment
         }
     };
 
+    /**
+     * Run the position updater while a track is playing and the page is visible
+     */
+    private void schedulePositionUpdates() {
+        mPositionHandler.removeCallbacks(mPositionUpdater);
+        if (isResumed() && mPlayerState.getState() == Clementine.State.PLAY) {
+            mPositionHandler.post(mPositionUpdater);
+        }
+    }
+
+    /**
+     * Updates the track position from the playback clock while a track is playing
+     */
+    private Runnable mPositionUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (mPlayerState.getState() != Clementine.State.PLAY) {
+                return;
+            }
+            if (mPlayerState.getCurrentSong() != null) {
+                updateTrackPosition();
+            }
+            mPositionHandler.postDelayed(this, POSITION_UPDATE_INTERVAL);
+        }
+    };
+
     private OnSeekBarChangeListener onSeekBarChanged = new OnSeekBarChangeListener() {
 
         @Override
@@ -578,7 +646,7 @@ public class PlayerPageFragment extends Fragment
         @Override
         public void onAnimationEnd(Animation animation) {
             if (!mCoverUpdated) {
-                mImgArt.setImageBitmap(App.Clementine.getCurrentSong().getArt());
+                mImgArt.setImageBitmap(mCurrentSong.getArt());
                 mImgArt.startAnimation(mAlphaUp);
             }
             mCoverUpdated = !mCoverUpdated;
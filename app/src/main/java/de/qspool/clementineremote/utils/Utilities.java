@@ -8,12 +8,14 @@ import android.app.Dialog;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.preference.PreferenceManager;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.Html;
 
@@ -27,6 +29,8 @@ import java.util.Locale;
 
 import de.qspool.clementineremote.App;
 import de.qspool.clementineremote.R;
+import de.qspool.clementineremote.SharedPreferencesKeys;
+import de.qspool.clementineremote.backend.Clementine;
 import de.qspool.clementineremote.backend.mediasession.ClementineMediaSessionNotification;
 import de.qspool.clementineremote.ui.MainActivity;
 
@@ -228,6 +232,20 @@ public class Utilities {
         return str.replaceAll(illegal, "");
     }
 
+    /**
+     * Identifies the configured Clementine host by ip and port, e.g. for per host caches
+     *
+     * @return The host id, usable as file name
+     */
+    public static String getCurrentHostId() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(App.getApp());
+        String ip = prefs.getString(SharedPreferencesKeys.SP_KEY_IP, "");
+        String port = prefs.getString(SharedPreferencesKeys.SP_KEY_PORT,
+                String.valueOf(Clementine.DefaultPort));
+
+        return (ip + "_" + port).replaceAll("[^a-zA-Z0-9._-]", "_");
+    }
+
     public static PendingIntent getClementineRemotePendingIntent(Context context) {
         // Set the result intent
         Intent resultIntent = new Intent(context, MainActivity.class);
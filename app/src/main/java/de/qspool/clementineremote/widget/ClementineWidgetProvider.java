@@ -32,6 +32,7 @@ import de.qspool.clementineremote.R;
 import de.qspool.clementineremote.SharedPreferencesKeys;
 import de.qspool.clementineremote.backend.Clementine;
 import de.qspool.clementineremote.backend.ClementinePlayerConnection;
+import de.qspool.clementineremote.backend.PlayerState;
 import de.qspool.clementineremote.backend.player.MySong;
 import de.qspool.clementineremote.backend.receivers.ClementineBroadcastReceiver;
 import de.qspool.clementineremote.utils.Utilities;
@@ -152,7 +153,9 @@ public class ClementineWidgetProvider extends AppWidgetProvider {
     }
 
     private void updateViewsOnStateChange(Context context, RemoteViews views) {
-        MySong currentSong = App.Clementine.getCurrentSong();
+        // Read song and play state from the same snapshot
+        PlayerState playerState = App.Clementine.getPlayerState();
+        MySong currentSong = playerState.getCurrentSong();
 
         // Textviews
         if (currentSong == null) {
@@ -168,7 +171,7 @@ public class ClementineWidgetProvider extends AppWidgetProvider {
         // Play or pause?
         Intent intentPlayPause = new Intent(context, ClementineBroadcastReceiver.class);
 
-        if (App.Clementine.getState() == Clementine.State.PLAY) {
+        if (playerState.getState() == Clementine.State.PLAY) {
             views.setImageViewResource(R.id.widget_btn_play_pause,
                     R.drawable.ab_media_pause);
             intentPlayPause.setAction(ClementineBroadcastReceiver.PAUSE);
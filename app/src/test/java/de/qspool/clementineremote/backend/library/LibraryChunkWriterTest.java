@@ -0,0 +1,241 @@
+/* This file is part of the Android Clementine Remote.
+ * Copyright (C) 2014, Andreas Muttscheller <asfa194@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.qspool.clementineremote.backend.library;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import de.qspool.clementineremote.backend.pb.ClementineRemoteProtocolBuffer.ResponseLibraryChunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads a library from a fake server that drops the connection after some chunks,
+ * then resumes the download with the receive loop ClementineLibraryDownloader uses.
+ */
+public class LibraryChunkWriterTest {
+
+    private final static int CHUNK_SIZE = 1000;
+
+    private final static int LIBRARY_SIZE = 10 * CHUNK_SIZE + 123;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mLibraryDb;
+
+    @Before
+    public void setUp() throws IOException {
+        mLibraryDb = new File(mFolder.getRoot(), "library.db");
+    }
+
+    @Test
+    public void resumesAfterConnectionDrop() throws Exception {
+        byte[] library = generateLibrary(1);
+
+        // Journal every chunk
+        assertFalse(download(new FakeServer(library, hash(library), 4), 1));
+        LibraryDownloadJournal journal = new LibraryDownloadJournal(mLibraryDb);
+        assertTrue(journal.load());
+        assertEquals(4, journal.getLastChunk());
+
+        FakeServer server = new FakeServer(library, hash(library), -1);
+        assertTrue(download(server, 1));
+        assertTrue(server.mResumed);
+        assertDownloaded(library);
+    }
+
+    @Test
+    public void resumeDropsDataNotInJournal() throws Exception {
+        byte[] library = generateLibrary(2);
+
+        // Journal every third chunk, and kill the app after the fifth without closing
+        LibraryChunkWriter writer = new LibraryChunkWriter(
+                new LibraryDownloadJournal(mLibraryDb), 3 * CHUNK_SIZE);
+        FakeServer killed = new FakeServer(library, hash(library), 5);
+        writer.open(killed.getChunk(1));
+        for (int i = 1; i <= 5; i++) {
+            writer.write(killed.getChunk(i));
+        }
+
+        // A partly written chunk at the end of the part file
+        FileOutputStream out = new FileOutputStream(new File(mLibraryDb + ".part"), true);
+        out.write(new byte[CHUNK_SIZE / 2]);
+        out.close();
+
+        FakeServer server = new FakeServer(library, hash(library), -1);
+        assertTrue(download(server, 3 * CHUNK_SIZE));
+        assertTrue(server.mResumed);
+        assertDownloaded(library);
+    }
+
+    @Test
+    public void resumesAfterSeveralDrops() throws Exception {
+        byte[] library = generateLibrary(3);
+
+        assertFalse(download(new FakeServer(library, hash(library), 2), 1));
+        assertFalse(download(new FakeServer(library, hash(library), 7), 1));
+        assertTrue(download(new FakeServer(library, hash(library), -1), 1));
+        assertDownloaded(library);
+    }
+
+    @Test
+    public void changedLibraryStartsOver() throws Exception {
+        byte[] oldLibrary = generateLibrary(4);
+        assertFalse(download(new FakeServer(oldLibrary, hash(oldLibrary), 6), 1));
+
+        byte[] library = new byte[LIBRARY_SIZE + CHUNK_SIZE];
+        new Random(5).nextBytes(library);
+        FakeServer server = new FakeServer(library, hash(library), -1);
+        assertTrue(download(server, 1));
+        assertFalse(server.mResumed);
+        assertDownloaded(library);
+    }
+
+    @Test
+    public void damagedPartFileFailsHashCheck() throws Exception {
+        byte[] library = generateLibrary(6);
+        assertFalse(download(new FakeServer(library, hash(library), 4), 1));
+
+        // Same length, other content
+        RandomAccessFile raf = new RandomAccessFile(new File(mLibraryDb + ".part"), "rw");
+        raf.seek(CHUNK_SIZE);
+        raf.write(~library[CHUNK_SIZE]);
+        raf.close();
+
+        assertFalse(download(new FakeServer(library, hash(library), -1), 1));
+        assertFalse(new File(mLibraryDb + ".part").exists());
+        assertFalse(new File(mLibraryDb + ".journal").exists());
+    }
+
+    @Test
+    public void downloadWithoutHash() throws Exception {
+        byte[] library = generateLibrary(7);
+        assertFalse(download(new FakeServer(library, ByteString.EMPTY, 3), 1));
+        assertTrue(download(new FakeServer(library, ByteString.EMPTY, -1), 1));
+        assertDownloaded(library);
+    }
+
+    /**
+     * Receive the chunks of the server
+     *
+     * @return true if the download finished and the hash matches
+     */
+    private boolean download(FakeServer server, int syncSize) throws IOException {
+        LibraryDownloadJournal journal = new LibraryDownloadJournal(mLibraryDb);
+        LibraryChunkWriter writer = new LibraryChunkWriter(journal, syncSize);
+        if (writer.receive(server) != LibraryChunkWriter.Result.COMPLETE) {
+            return false;
+        }
+        server.mResumed = writer.isResumed();
+        return journal.complete(mLibraryDb);
+    }
+
+    private void assertDownloaded(byte[] library) throws Exception {
+        assertFalse(new File(mLibraryDb + ".part").exists());
+        assertFalse(new File(mLibraryDb + ".journal").exists());
+
+        byte[] downloaded = new byte[(int) mLibraryDb.length()];
+        RandomAccessFile raf = new RandomAccessFile(mLibraryDb, "r");
+        raf.readFully(downloaded);
+        raf.close();
+
+        assertArrayEquals(library, downloaded);
+        assertEquals(hash(library), hash(downloaded));
+    }
+
+    private byte[] generateLibrary(long seed) {
+        byte[] library = new byte[LIBRARY_SIZE];
+        new Random(seed).nextBytes(library);
+        return library;
+    }
+
+    private ByteString hash(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return ByteString.copyFromUtf8(hex.toString());
+    }
+
+    /**
+     * Sends a library in chunks from the first one, like Clementine does for every
+     * request. The connection is lost after a number of chunks.
+     */
+    private static class FakeServer implements LibraryChunkWriter.ChunkSource {
+
+        private byte[] mLibrary;
+
+        private ByteString mHash;
+
+        private int mDropAfter;
+
+        private int mSent;
+
+        boolean mResumed;
+
+        /**
+         * @param dropAfter The number of chunks sent before the connection is lost, or -1
+         */
+        FakeServer(byte[] library, ByteString hash, int dropAfter) {
+            mLibrary = library;
+            mHash = hash;
+            mDropAfter = dropAfter;
+        }
+
+        @Override
+        public ResponseLibraryChunk nextChunk() {
+            if (mSent == mDropAfter) {
+                // Connection lost
+                return null;
+            }
+            return getChunk(++mSent);
+        }
+
+        @Override
+        public void onChunkWritten(ResponseLibraryChunk chunk, long length) {
+        }
+
+        ResponseLibraryChunk getChunk(int number) {
+            int count = (mLibrary.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            int offset = (number - 1) * CHUNK_SIZE;
+            return ResponseLibraryChunk.newBuilder()
+                    .setChunkNumber(number)
+                    .setChunkCount(count)
+                    .setSize(mLibrary.length)
+                    .setFileHash(mHash)
+                    .setData(ByteString.copyFrom(mLibrary, offset,
+                            Math.min(CHUNK_SIZE, mLibrary.length - offset)))
+                    .build();
+        }
+    }
+}